@@ -0,0 +1,126 @@
+/*******************************************************************************
+ * Copyright 2018 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ******************************************************************************/
+package org.sciserver.quota.manager;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.sciserver.quota.manager.dto.Quota;
+import org.springframework.boot.actuate.health.Health;
+
+/**
+ * A health check over folders on disk, with the usage report already cached.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class QuotaManagerHealthIndicatorBenchmark {
+	@Param({"1000", "10000", "100000"})
+	private int projects;
+
+	private Path directory;
+	private UsageSnapshotCache usageCache;
+	private QuotaManagerHealthIndicator healthIndicator;
+
+	@Setup
+	public void createFolders() throws IOException {
+		directory = Files.createTempDirectory("health-benchmark");
+		String[] rootVolumePaths = new String[SyntheticUsage.ROOT_VOLUME_NAMES.length];
+		for (int i = 0; i < rootVolumePaths.length; i++) {
+			rootVolumePaths[i] = directory.resolve("rv" + i).toString();
+		}
+		for (int project = 0; project < projects; project++) {
+			Files.createDirectories(directory.resolve("rv" + SyntheticUsage.rootVolume(project))
+					.resolve(SyntheticUsage.relativePath(project)));
+		}
+
+		Config config = SyntheticUsage.config(rootVolumePaths);
+		config.getUsageCache().setRefreshInterval(Duration.ZERO);
+		config.getUsageCache().setTtl(Duration.ofDays(1));
+		config.getUsageCache().setMaxStaleness(Duration.ofDays(1));
+		List<Quota> quotas = SyntheticUsage.quotas(projects);
+		usageCache = new UsageSnapshotCache(config, new FileSystemModule() {
+			@Override
+			public CompletableFuture<Void> setQuota(String filePath, long numberOfBytes) {
+				return CompletableFuture.completedFuture(null);
+			}
+
+			@Override
+			public CompletableFuture<Void> setQuotas(Map<String, Long> numberOfBytesByFilePath,
+					Priority priority) {
+				return CompletableFuture.completedFuture(null);
+			}
+
+			@Override
+			public CompletableFuture<Void> removeUserVolumeWithQuota(String filePath) {
+				return CompletableFuture.completedFuture(null);
+			}
+
+			@Override
+			public CompletableFuture<Void> removeUserVolumesWithQuota(Collection<String> filePaths) {
+				return CompletableFuture.completedFuture(null);
+			}
+
+			@Override
+			public Collection<Quota> getUsage() {
+				return quotas;
+			}
+
+			@Override
+			public Optional<Quota> getUsage(String filePath) {
+				return Optional.empty();
+			}
+		}, event -> { });
+		usageCache.startRefreshing();
+		usageCache.getSnapshot(true);
+		healthIndicator = new QuotaManagerHealthIndicator(config, usageCache, new UserFolderScanner(config));
+	}
+
+	@TearDown
+	public void deleteFolders() throws IOException {
+		usageCache.stopRefreshing();
+		FileUtils.deleteDirectory(directory.toFile());
+	}
+
+	@Benchmark
+	public Health health() {
+		return healthIndicator.health();
+	}
+}
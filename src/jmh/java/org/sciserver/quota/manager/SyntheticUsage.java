@@ -0,0 +1,105 @@
+/*******************************************************************************
+ * Copyright 2018 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ******************************************************************************/
+package org.sciserver.quota.manager;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.sciserver.quota.manager.dto.Quota;
+
+/**
+ * Made-up projects, spread over the root volumes of the example configuration,
+ * for the benchmarks.
+ */
+public final class SyntheticUsage {
+	public static final String[] ROOT_VOLUME_NAMES = {
+			"Persistent Volumes", "Scratch Volumes",
+			"Persistent Workspace Volumes", "Scratch Workspace Volumes" };
+	public static final String[] ROOT_VOLUME_PATHS = {
+			"/some/path/to/persistent", "/some/path/to/scratch",
+			"/some/path/to/workspaces/persistent", "/some/path/to/workspace/scratch" };
+	public static final long QUOTA = 4194304;
+
+	private SyntheticUsage() {
+	}
+
+	public static Config config() {
+		return config(ROOT_VOLUME_PATHS);
+	}
+
+	/**
+	 * @param rootVolumePaths where to put each of the root volumes
+	 */
+	public static Config config(String[] rootVolumePaths) {
+		Config config = new Config();
+		for (int i = 0; i < ROOT_VOLUME_NAMES.length; i++) {
+			Config.RootVolume rootVolume = new Config.RootVolume();
+			rootVolume.setPathOnFileServer(rootVolumePaths[i]);
+			rootVolume.setPerVolumeQuota(QUOTA);
+			config.getRootVolumes().put(ROOT_VOLUME_NAMES[i], rootVolume);
+		}
+		return config;
+	}
+
+	public static String relativePath(int project) {
+		return String.format("user%07d/volume%d", project / 4, project % 4);
+	}
+
+	public static int rootVolume(int project) {
+		return project % ROOT_VOLUME_NAMES.length;
+	}
+
+	public static String fullPath(int project) {
+		return ROOT_VOLUME_PATHS[rootVolume(project)] + "/" + relativePath(project);
+	}
+
+	/**
+	 * @return the contents of an /etc/projects file
+	 */
+	public static String projectsFile(int projects) {
+		StringBuilder contents = new StringBuilder();
+		for (int project = 0; project < projects; project++) {
+			contents.append(project + 1).append(':').append(fullPath(project)).append('\n');
+		}
+		return contents.toString();
+	}
+
+	/**
+	 * @param combined if true, report blocks and inodes on one line (report -bi)
+	 * @return the output of xfs_quota report -N
+	 */
+	public static String report(int projects, boolean combined) {
+		StringBuilder contents = new StringBuilder();
+		for (int project = 0; project < projects; project++) {
+			contents.append(String.format("%-40s %10d %10d %10d     00 [--------]",
+					fullPath(project), project % 1000L, 0, QUOTA / 1024));
+			if (combined) {
+				contents.append(String.format(" %10d %10d %10d     00 [--------]", project, 0, 0));
+			}
+			contents.append('\n');
+		}
+		return contents.toString();
+	}
+
+	public static List<Quota> quotas(int projects) {
+		List<Quota> quotas = new ArrayList<>(projects);
+		for (int project = 0; project < projects; project++) {
+			quotas.add(new Quota(ROOT_VOLUME_NAMES[rootVolume(project)], relativePath(project),
+					project, 0, project % 1000L * 1024, QUOTA));
+		}
+		return quotas;
+	}
+}
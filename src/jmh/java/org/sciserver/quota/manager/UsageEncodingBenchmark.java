@@ -0,0 +1,84 @@
+/*******************************************************************************
+ * Copyright 2018 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ******************************************************************************/
+package org.sciserver.quota.manager;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.sciserver.quota.manager.dto.Quota;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Writing a usage report in each of the {@link UsageEncoding}s, with and
+ * without gzip. JMH only reports times; how the payload sizes compare is
+ * checked by UsageEncodingTests.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(value = 1, jvmArgsAppend = "-XX:+UseParallelGC")
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class UsageEncodingBenchmark {
+	@Param({"1000", "100000"})
+	private int projects;
+
+	@Param({"JSON", "SMILE", "CBOR"})
+	private String encodingName;
+
+	@Param({"false", "true"})
+	private boolean gzip;
+
+	private final ObjectMapper objectMapper = new ObjectMapper();
+	private UsageEncoding encoding;
+	private List<Quota> quotas;
+	private ByteArrayOutputStream buffer;
+
+	@Setup
+	public void createUsage() {
+		encoding = UsageEncoding.valueOf(encodingName);
+		quotas = SyntheticUsage.quotas(projects);
+		buffer = new ByteArrayOutputStream();
+	}
+
+	@Benchmark
+	public int write() throws IOException {
+		buffer.reset();
+		OutputStream output = gzip ? new GZIPOutputStream(buffer) : buffer;
+		try (JsonGenerator generator = encoding.createGenerator(objectMapper, output)) {
+			UsageEncoding.writeQuotas(quotas, generator);
+		}
+		output.close();
+		return buffer.size();
+	}
+}
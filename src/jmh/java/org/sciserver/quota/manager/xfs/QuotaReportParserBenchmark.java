@@ -0,0 +1,90 @@
+/*******************************************************************************
+ * Copyright 2018 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ******************************************************************************/
+package org.sciserver.quota.manager.xfs;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.sciserver.quota.manager.SyntheticUsage;
+
+/**
+ * Parsing a report -N dump with {@link QuotaReportParser}, compared with the
+ * previous approach of splitting each line with a regular expression.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(value = 1, jvmArgsAppend = "-XX:+UseParallelGC")
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class QuotaReportParserBenchmark {
+	@Param({"1000", "10000", "100000"})
+	private int projects;
+
+	private byte[] report;
+
+	@Setup
+	public void createReport() {
+		report = SyntheticUsage.report(projects, false).getBytes();
+	}
+
+	@Benchmark
+	public void parser(Blackhole blackhole) throws IOException {
+		try (QuotaReportParser parser = new QuotaReportParser(1, line -> {
+				blackhole.consume(line.getFullPath());
+				blackhole.consume(line.getUsed());
+				blackhole.consume(line.getHardLimit());
+			})) {
+			parser.write(report, 0, report.length);
+		}
+	}
+
+	@Benchmark
+	public Map<String, Map<String, long[]>> regexSplit() throws IOException {
+		Map<String, Map<String, long[]>> outputHolder = new HashMap<>();
+		try (BufferedReader lines = new BufferedReader(
+				new InputStreamReader(new ByteArrayInputStream(report)))) {
+			String line;
+			while ((line = lines.readLine()) != null) {
+				if (line.isEmpty()) continue;
+				String[] quotaComponents = line.split("\\s+");
+				// the line used to be split a second time when it was parsed
+				String[] lineComponents = line.split("\\s+");
+				outputHolder.computeIfAbsent(quotaComponents[0], s -> new HashMap<>())
+					.put("bytes", new long[] {
+							Long.parseLong(lineComponents[1]), Long.parseLong(lineComponents[3]) });
+			}
+		}
+		return outputHolder;
+	}
+}
@@ -0,0 +1,73 @@
+/*******************************************************************************
+ * Copyright 2018 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ******************************************************************************/
+package org.sciserver.quota.manager.xfs;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.sciserver.quota.manager.SyntheticUsage;
+import org.sciserver.quota.manager.dto.Quota;
+import org.sciserver.quota.manager.xfs.XFSFileSystemModule.ProjectUsage;
+
+/**
+ * Turning reported project paths into quotas on root volumes, the last step of getUsage.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class RootVolumeMatchingBenchmark {
+	@Param({"1000", "10000", "100000"})
+	private int projects;
+
+	private XFSFileSystemModule module;
+	private Map<String, ProjectUsage> usageByPath;
+
+	@Setup
+	public void createUsage() {
+		XFSConfig xfsConfig = new XFSConfig();
+		// nothing is run, so none of the collaborators need to work
+		module = new XFSFileSystemModule(SyntheticUsage.config(), xfsConfig, null, null, null, null,
+				null, new SimpleMeterRegistry());
+		usageByPath = new HashMap<>();
+		for (int project = 0; project < projects; project++) {
+			usageByPath.put(SyntheticUsage.fullPath(project),
+					new ProjectUsage(project % 1000L, SyntheticUsage.QUOTA / 1024, project, 0));
+		}
+	}
+
+	@Benchmark
+	public Collection<Quota> toQuotas() {
+		return module.toQuotas(usageByPath);
+	}
+}
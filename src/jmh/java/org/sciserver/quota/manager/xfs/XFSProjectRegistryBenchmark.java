@@ -0,0 +1,84 @@
+/*******************************************************************************
+ * Copyright 2018 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ******************************************************************************/
+package org.sciserver.quota.manager.xfs;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.sciserver.quota.manager.SyntheticUsage;
+
+/**
+ * Loading /etc/projects and allocating project ids for new paths.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class XFSProjectRegistryBenchmark {
+	@Param({"1000", "10000", "100000"})
+	private int projects;
+
+	private Path directory;
+	private Path projectsFile;
+	private Path projidFile;
+	private XFSProjectRegistry registry;
+	private int nextPath;
+
+	@Setup(Level.Iteration)
+	public void createProjectFiles() throws IOException {
+		directory = Files.createTempDirectory("registry-benchmark");
+		projectsFile = directory.resolve("projects");
+		projidFile = directory.resolve("projid");
+		Files.write(projectsFile, SyntheticUsage.projectsFile(projects).getBytes());
+		Files.write(projidFile, new byte[0]);
+		registry = new XFSProjectRegistry(projectsFile, projidFile);
+		registry.load();
+	}
+
+	@TearDown(Level.Iteration)
+	public void deleteProjectFiles() throws IOException {
+		FileUtils.deleteDirectory(directory.toFile());
+	}
+
+	@Benchmark
+	public int load() throws IOException {
+		registry.load();
+		return registry.size();
+	}
+
+	@Benchmark
+	public long addProject() throws IOException {
+		return registry.addProject("/some/path/to/new/project" + nextPath++);
+	}
+}
@@ -15,21 +15,45 @@
  ******************************************************************************/
 package org.sciserver.quota.manager;
 
+import org.springframework.boot.actuate.endpoint.annotation.DeleteOperation;
 import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.boot.actuate.endpoint.annotation.Selector;
 import org.springframework.boot.actuate.endpoint.annotation.WriteOperation;
 import org.springframework.stereotype.Component;
 
+/**
+ * Starts applyQuotas runs in the background, reports on them and cancels
+ * them. Reading an unknown run id gives a 404.
+ *
+ * There is no read operation without a run id: Spring Boot would look up a
+ * cache time-to-live for it under the endpoint id, and "applyQuotas" is not a
+ * valid property name.
+ */
 @Component
 @Endpoint(id="applyQuotas")
 public class ApplyQuotasEndpoint {
-	private final QuotaApplier quotaApplier;
+	private final ApplyQuotasJobs jobs;
 
-	public ApplyQuotasEndpoint(QuotaApplier quotaApplier) {
-		this.quotaApplier = quotaApplier;
+	ApplyQuotasEndpoint(ApplyQuotasJobs jobs) {
+		this.jobs = jobs;
 	}
 
+	/**
+	 * @return the new run, or the one that is already going
+	 */
 	@WriteOperation
-	public void applyQuotas() {
-		quotaApplier.applyQuotas();
+	public ApplyQuotasJob applyQuotas() {
+		return jobs.start(ApplyQuotasJobs.REQUEST);
+	}
+
+	@ReadOperation
+	public ApplyQuotasJob run(@Selector String id) {
+		return jobs.get(id).orElse(null);
+	}
+
+	@DeleteOperation
+	public ApplyQuotasJob cancel(@Selector String id) {
+		return jobs.cancel(id).orElse(null);
 	}
 }
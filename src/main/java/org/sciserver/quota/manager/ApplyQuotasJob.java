@@ -0,0 +1,201 @@
+/*******************************************************************************
+ * Copyright 2018 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ******************************************************************************/
+package org.sciserver.quota.manager;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.sciserver.quota.manager.dto.ApplyQuotasSummary;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonInclude.Include;
+
+/**
+ * One run of {@link QuotaApplier}, and how far it has got. A run scans the
+ * user folders, then queues the changes it found and waits for them to be
+ * applied.
+ *
+ * The estimated completion time is based on how many folders the previous
+ * run found while scanning, and on the rate changes are applied at after that.
+ */
+public final class ApplyQuotasJob {
+	public enum State { PENDING, SCANNING, APPLYING, SUCCEEDED, FAILED, CANCELLED }
+
+	private final String id;
+	private final String trigger;
+	private final Instant createdAt;
+	// folders found by the previous run, or 0 if there wasn't one
+	private final long expectedFolders;
+	private final LongAdder foldersScanned = new LongAdder();
+	private final LongAdder changesQueued = new LongAdder();
+	private final LongAdder changesApplied = new LongAdder();
+	private final LongAdder changesFailed = new LongAdder();
+	private volatile State state = State.PENDING;
+	private volatile Instant startedAt;
+	private volatile Instant applyingSince;
+	private volatile Instant completedAt;
+	private volatile long changesFound;
+	private volatile boolean cancelRequested;
+	private volatile String error;
+	private volatile ApplyQuotasSummary summary;
+
+	ApplyQuotasJob(String id, String trigger, long expectedFolders) {
+		this.id = id;
+		this.trigger = trigger;
+		this.createdAt = Instant.now();
+		this.expectedFolders = expectedFolders;
+	}
+
+	public String getId() {
+		return id;
+	}
+	/**
+	 * @return what started the run: <code>request</code> or <code>schedule</code>
+	 */
+	public String getTrigger() {
+		return trigger;
+	}
+	public State getState() {
+		return state;
+	}
+	public Instant getCreatedAt() {
+		return createdAt;
+	}
+	@JsonInclude(Include.NON_NULL)
+	public Instant getStartedAt() {
+		return startedAt;
+	}
+	@JsonInclude(Include.NON_NULL)
+	public Instant getCompletedAt() {
+		return completedAt;
+	}
+	public long getFoldersScanned() {
+		return foldersScanned.sum();
+	}
+	public long getChangesFound() {
+		return changesFound;
+	}
+	public long getChangesQueued() {
+		return changesQueued.sum();
+	}
+	public long getChangesApplied() {
+		return changesApplied.sum();
+	}
+	public long getChangesFailed() {
+		return changesFailed.sum();
+	}
+	public boolean isCancelRequested() {
+		return cancelRequested;
+	}
+	@JsonInclude(Include.NON_NULL)
+	public String getError() {
+		return error;
+	}
+	@JsonInclude(Include.NON_NULL)
+	public ApplyQuotasSummary getSummary() {
+		return summary;
+	}
+
+	/**
+	 * @return when the current stage is expected to be done, or null if
+	 * there is nothing to go on yet. While scanning, this is only the end of
+	 * the scan.
+	 */
+	@JsonInclude(Include.NON_NULL)
+	public Instant getEstimatedCompletion() {
+		Instant now = Instant.now();
+		long done;
+		long total;
+		Instant since;
+		if (state == State.SCANNING) {
+			done = foldersScanned.sum();
+			total = expectedFolders;
+			since = startedAt;
+		} else if (state == State.APPLYING) {
+			done = changesApplied.sum() + changesFailed.sum();
+			total = changesFound;
+			since = applyingSince;
+		} else {
+			return null;
+		}
+		if (done == 0 || done >= total) {
+			return null;
+		}
+		return now.plus(Duration.between(since, now).multipliedBy(total - done).dividedBy(done));
+	}
+
+	boolean isFinished() {
+		return state == State.SUCCEEDED || state == State.FAILED || state == State.CANCELLED;
+	}
+
+	void cancel() {
+		cancelRequested = true;
+	}
+
+	void checkNotCancelled() {
+		if (cancelRequested) {
+			throw new CancellationException("applyQuotas run " + id + " was cancelled");
+		}
+	}
+
+	void scanning() {
+		startedAt = Instant.now();
+		state = State.SCANNING;
+	}
+
+	void folderScanned() {
+		foldersScanned.increment();
+	}
+
+	void applying(long changes) {
+		changesFound = changes;
+		applyingSince = Instant.now();
+		state = State.APPLYING;
+	}
+
+	void changesQueued(int changes) {
+		changesQueued.add(changes);
+	}
+
+	void changeApplied() {
+		changesApplied.increment();
+	}
+
+	void changeFailed() {
+		changesFailed.increment();
+	}
+
+	void succeeded(ApplyQuotasSummary result) {
+		summary = result;
+		finish(State.SUCCEEDED);
+	}
+
+	void failed(Throwable e) {
+		error = e.getMessage() != null ? e.getMessage() : e.toString();
+		finish(State.FAILED);
+	}
+
+	void cancelled() {
+		finish(State.CANCELLED);
+	}
+
+	private void finish(State finalState) {
+		completedAt = Instant.now();
+		state = finalState;
+	}
+}
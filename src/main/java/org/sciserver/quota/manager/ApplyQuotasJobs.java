@@ -0,0 +1,137 @@
+/*******************************************************************************
+ * Copyright 2018 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ******************************************************************************/
+package org.sciserver.quota.manager;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.CancellationException;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
+import org.springframework.scheduling.support.CronTrigger;
+import org.springframework.stereotype.Component;
+
+/**
+ * Runs {@link QuotaApplier} in the background, one run at a time, when asked
+ * and on the <code>apply-quotas.schedule</code> if there is one. Asking for a
+ * run while one is going returns that one. The last <code>keep-jobs</code>
+ * runs are remembered.
+ */
+@Component
+class ApplyQuotasJobs {
+	static final String REQUEST = "request";
+	static final String SCHEDULE = "schedule";
+
+	private final Logger logger = LoggerFactory.getLogger(ApplyQuotasJobs.class);
+	private final QuotaApplier quotaApplier;
+	private final Config.ApplyQuotas settings;
+	private final ThreadPoolTaskScheduler scheduler = new ThreadPoolTaskScheduler();
+	// oldest first
+	private final Map<String, ApplyQuotasJob> jobs = new LinkedHashMap<>();
+	private ApplyQuotasJob current;
+	private long lastFoldersScanned;
+
+	ApplyQuotasJobs(Config config, QuotaApplier quotaApplier) {
+		this.quotaApplier = quotaApplier;
+		this.settings = config.getApplyQuotas();
+	}
+
+	@PostConstruct
+	void startScheduling() {
+		// one thread for runs, and one so that the schedule isn't held up by them
+		scheduler.setPoolSize(2);
+		scheduler.setThreadNamePrefix("apply-quotas-");
+		scheduler.initialize();
+		if (settings.getSchedule() != null) {
+			logger.info("Applying quotas on the schedule '{}'", settings.getSchedule());
+			scheduler.schedule(() -> start(SCHEDULE), new CronTrigger(settings.getSchedule()));
+		}
+	}
+
+	@PreDestroy
+	void stopScheduling() {
+		synchronized (this) {
+			if (current != null) {
+				current.cancel();
+			}
+		}
+		scheduler.shutdown();
+	}
+
+	/**
+	 * @return the new run, or the one that was already going
+	 */
+	synchronized ApplyQuotasJob start(String trigger) {
+		// a finished run may not have cleared current yet
+		if (current != null && !current.isFinished()) {
+			logger.info("Not starting another applyQuotas run ({}), {} is still going", trigger, current.getId());
+			return current;
+		}
+		ApplyQuotasJob job = new ApplyQuotasJob(UUID.randomUUID().toString(), trigger, lastFoldersScanned);
+		current = job;
+		jobs.put(job.getId(), job);
+		while (jobs.size() > Math.max(1, settings.getKeepJobs())) {
+			jobs.remove(jobs.keySet().iterator().next());
+		}
+		scheduler.execute(() -> run(job));
+		return job;
+	}
+
+	synchronized Optional<ApplyQuotasJob> get(String id) {
+		return Optional.ofNullable(jobs.get(id));
+	}
+
+	/**
+	 * Stops a run between folders or batches of changes. Changes that were
+	 * already handed to the file system module are still made.
+	 */
+	synchronized Optional<ApplyQuotasJob> cancel(String id) {
+		ApplyQuotasJob job = jobs.get(id);
+		if (job != null && !job.isFinished()) {
+			logger.info("Cancelling applyQuotas run {}", id);
+			job.cancel();
+		}
+		return Optional.ofNullable(job);
+	}
+
+	private void run(ApplyQuotasJob job) {
+		try {
+			job.checkNotCancelled();
+			job.succeeded(quotaApplier.applyQuotas(job));
+		} catch (CancellationException e) {
+			logger.info("applyQuotas run {} was cancelled", job.getId());
+			job.cancelled();
+		} catch (RuntimeException e) {
+			logger.error("Error applying quotas", e);
+			job.failed(e);
+		} finally {
+			synchronized (this) {
+				if (job.getState() != ApplyQuotasJob.State.CANCELLED) {
+					lastFoldersScanned = job.getFoldersScanned();
+				}
+				if (current == job) {
+					current = null;
+				}
+			}
+		}
+	}
+}
@@ -15,7 +15,11 @@
  ******************************************************************************/
 package org.sciserver.quota.manager;
 
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import javax.validation.Valid;
@@ -35,10 +39,51 @@ public class Config {
 	@Valid
 	private Map<String, RootVolume> rootVolumes = new HashMap<>();
 
+	private UsageCache usageCache = new UsageCache();
+
+	private Trash trash = new Trash();
+
+	private History history = new History();
+
+	private Events events = new Events();
+
+	private ApplyQuotas applyQuotas = new ApplyQuotas();
+
+	// where listings of user folders are kept between restarts, or null to not keep them
+	private String folderCacheFile;
+
 	public Map<String, RootVolume> getRootVolumes() {
 		return rootVolumes;
 	}
 
+	public UsageCache getUsageCache() {
+		return usageCache;
+	}
+
+	public Trash getTrash() {
+		return trash;
+	}
+
+	public History getHistory() {
+		return history;
+	}
+
+	public Events getEvents() {
+		return events;
+	}
+
+	public ApplyQuotas getApplyQuotas() {
+		return applyQuotas;
+	}
+
+	public void setFolderCacheFile(String folderCacheFile) {
+		this.folderCacheFile = folderCacheFile;
+	}
+
+	public String getFolderCacheFile() {
+		return folderCacheFile;
+	}
+
 	@ScriptAssert(lang="javascript", script="!(_this.perUserQuota && _this.perVolumeQuota)",
 			message="Cannot set both a per-user and per-volume quota")
 	public static class RootVolume {
@@ -66,4 +111,166 @@ public class Config {
 			return perVolumeQuota;
 		}
 	}
+
+	public static class UsageCache {
+		private Duration refreshInterval = Duration.ofSeconds(30);
+		private Duration ttl = Duration.ofSeconds(30);
+		private Duration maxStaleness = Duration.ofMinutes(5);
+		private int maxRemovals = 100000;
+
+		public void setRefreshInterval(Duration refreshInterval) {
+			this.refreshInterval = refreshInterval;
+		}
+		public void setTtl(Duration ttl) {
+			this.ttl = ttl;
+		}
+		public void setMaxStaleness(Duration maxStaleness) {
+			this.maxStaleness = maxStaleness;
+		}
+		public void setMaxRemovals(int maxRemovals) {
+			this.maxRemovals = maxRemovals;
+		}
+		public Duration getRefreshInterval() {
+			return refreshInterval;
+		}
+		public Duration getTtl() {
+			return ttl;
+		}
+		public Duration getMaxStaleness() {
+			return maxStaleness;
+		}
+		public int getMaxRemovals() {
+			return maxRemovals;
+		}
+	}
+
+	public static class Trash {
+		private int deleteThreads = 4;
+		// 0 for no limit
+		private int maxDeletesPerSecond;
+
+		public void setDeleteThreads(int deleteThreads) {
+			this.deleteThreads = deleteThreads;
+		}
+		public void setMaxDeletesPerSecond(int maxDeletesPerSecond) {
+			this.maxDeletesPerSecond = maxDeletesPerSecond;
+		}
+		public int getDeleteThreads() {
+			return deleteThreads;
+		}
+		public int getMaxDeletesPerSecond() {
+			return maxDeletesPerSecond;
+		}
+	}
+
+	public static class History {
+		// null to not keep a usage history
+		private String directory;
+		private int maxProjects = 100000;
+		// from finest to coarsest
+		private List<Resolution> resolutions = new ArrayList<>(Arrays.asList(
+				new Resolution(Duration.ofMinutes(1), 360),
+				new Resolution(Duration.ofHours(1), 336),
+				new Resolution(Duration.ofDays(1), 365)));
+
+		public void setDirectory(String directory) {
+			this.directory = directory;
+		}
+		public void setMaxProjects(int maxProjects) {
+			this.maxProjects = maxProjects;
+		}
+		public void setResolutions(List<Resolution> resolutions) {
+			this.resolutions = resolutions;
+		}
+		public String getDirectory() {
+			return directory;
+		}
+		public int getMaxProjects() {
+			return maxProjects;
+		}
+		public List<Resolution> getResolutions() {
+			return resolutions;
+		}
+	}
+
+	public static class Resolution {
+		private Duration interval;
+		private int samples;
+
+		public Resolution() {
+		}
+		public Resolution(Duration interval, int samples) {
+			this.interval = interval;
+			this.samples = samples;
+		}
+
+		public void setInterval(Duration interval) {
+			this.interval = interval;
+		}
+		public void setSamples(int samples) {
+			this.samples = samples;
+		}
+		public Duration getInterval() {
+			return interval;
+		}
+		public int getSamples() {
+			return samples;
+		}
+	}
+
+	public static class Events {
+		// how many events are kept for clients that reconnect
+		private int bufferSize = 100000;
+		// fractions of a quota that are reported when crossed
+		private List<Double> thresholds = new ArrayList<>(Arrays.asList(0.8, 0.95, 1.0));
+		// clients are expected to reconnect after this long
+		private Duration streamTimeout = Duration.ofMinutes(30);
+
+		public void setBufferSize(int bufferSize) {
+			this.bufferSize = bufferSize;
+		}
+		public void setThresholds(List<Double> thresholds) {
+			this.thresholds = thresholds;
+		}
+		public void setStreamTimeout(Duration streamTimeout) {
+			this.streamTimeout = streamTimeout;
+		}
+		public int getBufferSize() {
+			return bufferSize;
+		}
+		public List<Double> getThresholds() {
+			return thresholds;
+		}
+		public Duration getStreamTimeout() {
+			return streamTimeout;
+		}
+	}
+
+	public static class ApplyQuotas {
+		// a cron expression for when to apply quotas, or null to only do it when asked
+		private String schedule;
+		// changes handed to the file system module at a time
+		private int batchSize = 500;
+		// finished runs that are remembered
+		private int keepJobs = 10;
+
+		public void setSchedule(String schedule) {
+			this.schedule = schedule;
+		}
+		public void setBatchSize(int batchSize) {
+			this.batchSize = batchSize;
+		}
+		public void setKeepJobs(int keepJobs) {
+			this.keepJobs = keepJobs;
+		}
+		public String getSchedule() {
+			return schedule;
+		}
+		public int getBatchSize() {
+			return batchSize;
+		}
+		public int getKeepJobs() {
+			return keepJobs;
+		}
+	}
 }
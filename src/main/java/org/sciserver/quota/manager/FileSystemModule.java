@@ -17,12 +17,56 @@ package org.sciserver.quota.manager;
 
 import java.io.IOException;
 import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
 
 import org.apache.commons.exec.ExecuteException;
 import org.sciserver.quota.manager.dto.Quota;
 
+/**
+ * Applies quotas on some kind of file system. Changes are made asynchronously;
+ * the returned futures complete once they are in effect, or exceptionally if
+ * they could not be made. Implementations may turn changes away with a
+ * {@link QueueFullException} if they have too many waiting.
+ */
 public interface FileSystemModule {
-	void setQuota(String filePath, long numberOfBytes);
-	void removeUserVolumeWithQuota(String filePath);
+	CompletableFuture<Void> setQuota(String filePath, long numberOfBytes);
+	/**
+	 * Sets several quotas at once, for a user who is waiting for them.
+	 */
+	default CompletableFuture<Void> setQuotas(Map<String, Long> numberOfBytesByFilePath) {
+		return setQuotas(numberOfBytesByFilePath, Priority.INTERACTIVE);
+	}
+	/**
+	 * Sets several quotas at once. Implementations may apply these
+	 * more efficiently than the equivalent calls to {@link #setQuota}, and
+	 * may make bulk changes wait for interactive ones.
+	 * @throws QueueFullException if there are too many changes waiting already
+	 */
+	CompletableFuture<Void> setQuotas(Map<String, Long> numberOfBytesByFilePath, Priority priority);
+	/**
+	 * Like {@link #setQuotas(Map, Priority)}, with a result for each path.
+	 * By default every path gets the result of the whole batch.
+	 */
+	default Map<String, CompletableFuture<Void>> setEachQuota(Map<String, Long> numberOfBytesByFilePath,
+			Priority priority) {
+		CompletableFuture<Void> result = setQuotas(numberOfBytesByFilePath, priority);
+		Map<String, CompletableFuture<Void>> results = new LinkedHashMap<>();
+		numberOfBytesByFilePath.keySet().forEach(filePath -> results.put(filePath, result));
+		return results;
+	}
+	CompletableFuture<Void> removeUserVolumeWithQuota(String filePath);
+	/**
+	 * Removes several user volumes at once. Implementations may do this
+	 * more efficiently than the equivalent calls to {@link #removeUserVolumeWithQuota}.
+	 */
+	CompletableFuture<Void> removeUserVolumesWithQuota(Collection<String> filePaths);
 	Collection<Quota> getUsage() throws ExecuteException, IOException;
+	/**
+	 * The usage of just the folder at <code>filePath</code>, or nothing if
+	 * it has no quota.
+	 */
+	Optional<Quota> getUsage(String filePath) throws IOException;
 }
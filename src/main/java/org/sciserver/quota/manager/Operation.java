@@ -0,0 +1,79 @@
+/*******************************************************************************
+ * Copyright 2018 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ******************************************************************************/
+package org.sciserver.quota.manager;
+
+import java.time.Instant;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonInclude.Include;
+
+/**
+ * A quota change that was requested through the API, so that callers can
+ * find out when (and whether) it took effect.
+ */
+public final class Operation {
+	public enum State { PENDING, SUCCEEDED, FAILED }
+
+	private final String id;
+	private final String description;
+	private final Instant createdAt;
+	private final CompletableFuture<?> future;
+	private volatile State state = State.PENDING;
+	private volatile String error;
+	private volatile Instant completedAt;
+
+	Operation(String id, String description, CompletableFuture<?> future) {
+		this.id = id;
+		this.description = description;
+		this.createdAt = Instant.now();
+		// completes once the state below has been updated
+		this.future = future.whenComplete((result, e) -> {
+			if (e != null) {
+				Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+				error = cause.getMessage() != null ? cause.getMessage() : cause.toString();
+			}
+			completedAt = Instant.now();
+			state = e == null ? State.SUCCEEDED : State.FAILED;
+		});
+	}
+
+	public String getId() {
+		return id;
+	}
+	public String getDescription() {
+		return description;
+	}
+	public State getState() {
+		return state;
+	}
+	@JsonInclude(Include.NON_NULL)
+	public String getError() {
+		return error;
+	}
+	public Instant getCreatedAt() {
+		return createdAt;
+	}
+	@JsonInclude(Include.NON_NULL)
+	public Instant getCompletedAt() {
+		return completedAt;
+	}
+
+	CompletableFuture<?> getFuture() {
+		return future;
+	}
+}
@@ -0,0 +1,56 @@
+/*******************************************************************************
+ * Copyright 2018 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ******************************************************************************/
+package org.sciserver.quota.manager;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+
+import org.springframework.stereotype.Component;
+
+/**
+ * Remembers recent operations by id. Only the most recent ones are kept,
+ * which by then have normally long finished.
+ */
+@Component
+public class OperationTracker {
+	private static final int MAX_OPERATIONS = 10000;
+
+	private final Map<String, Operation> operations = new LinkedHashMap<String, Operation>() {
+		private static final long serialVersionUID = 2306914712871405231L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Operation> eldest) {
+			return size() > MAX_OPERATIONS;
+		}
+	};
+
+	public Operation track(String description, CompletableFuture<?> future) {
+		Operation operation = new Operation(UUID.randomUUID().toString(), description, future);
+		synchronized (operations) {
+			operations.put(operation.getId(), operation);
+		}
+		return operation;
+	}
+
+	public Optional<Operation> get(String id) {
+		synchronized (operations) {
+			return Optional.ofNullable(operations.get(id));
+		}
+	}
+}
@@ -20,47 +20,190 @@ import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
 
+import org.sciserver.quota.manager.dto.ApplyQuotasSummary;
+import org.sciserver.quota.manager.dto.ApplyQuotasSummary.QuotaChange;
+import org.sciserver.quota.manager.dto.Quota;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Component;
 
+/**
+ * Brings the quotas on the file system in line with the configuration.
+ *
+ * Only folders whose hard limit is missing or differs from the configured one
+ * (according to a single usage report taken at the start) are changed. The
+ * changes are handed to the file system module in batches of
+ * <code>apply-quotas.batch-size</code>, with bulk priority so that they don't
+ * hold up changes made by users. If the module has too many changes waiting,
+ * the next batch waits until it has room.
+ * Root volumes are scanned in parallel, and only user folders that changed
+ * since the last run are listed again (see {@link UserFolderScanner}).
+ *
+ * Progress is reported to an {@link ApplyQuotasJob}, which can also cancel
+ * the run between folders or batches. Changes that were already handed over
+ * are still made.
+ */
 @Component
 public class QuotaApplier {
     private final Logger logger = LoggerFactory.getLogger(QuotaApplier.class);
+    // how long to wait before trying again when the file system module is busy
+    private static final long QUEUE_FULL_RETRY_MILLIS = 1000;
+    // how often to check for cancellation while waiting for changes to be applied
+    private static final long CANCELLATION_CHECK_MILLIS = 1000;
     private final Config config;
     private final FileSystemModule fileSystemModule;
+    private final UsageSnapshotCache usageCache;
+    private final UserFolderScanner folderScanner;
 
-    public QuotaApplier(Config config, FileSystemModule fileSystemModule) {
+    public QuotaApplier(Config config, FileSystemModule fileSystemModule, UsageSnapshotCache usageCache,
+            UserFolderScanner folderScanner) {
         this.fileSystemModule = fileSystemModule;
         this.config = config;
+        this.usageCache = usageCache;
+        this.folderScanner = folderScanner;
     }
 
-    public void applyQuotas() {
+    /**
+     * @throws CancellationException if the job was cancelled
+     */
+    ApplyQuotasSummary applyQuotas(ApplyQuotasJob job) {
         logger.info("[Re-]applying quotas");
-        config.getRootVolumes().entrySet().stream()
-            .forEach(rvEntry -> {
+        job.scanning();
+        UsageIndex currentQuotas;
+        try {
+            currentQuotas = UsageIndex.of(usageCache.getSnapshot(true).getQuotas());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        LongAdder foldersChecked = new LongAdder();
+        LongAdder quotasAlreadyCorrect = new LongAdder();
+        // root volumes are scanned in parallel, but changes are kept in configuration order
+        List<QuotaChange> changes = new ArrayList<>();
+        config.getRootVolumes().entrySet().parallelStream()
+            .map(rvEntry -> {
+                String rootVolumeName = rvEntry.getKey();
                 String rootVolumePath = rvEntry.getValue().getPathOnFileServer();
                 Path rootVolumeAsPath = Paths.get(rootVolumePath);
+                List<QuotaChange> rootVolumeChanges = new ArrayList<>();
                 if (!Files.isDirectory(rootVolumeAsPath)) {
-                    return;
+                    return rootVolumeChanges;
                 }
                 try {
-                    Files.walk(rootVolumeAsPath, 2)
-                        .filter(folder -> !folder.equals(rootVolumeAsPath))
+                    folderScanner.list(rootVolumeAsPath)
                         .forEach(folder -> {
+                            job.checkNotCancelled();
+                            job.folderScanned();
                             Path relativePath = rootVolumeAsPath.relativize(folder);
-                            String folderFullName = folder.toAbsolutePath().toString();
+                            long expectedQuota;
                             if (relativePath.getNameCount() == 1 && rvEntry.getValue().getPerUserQuota() > 0) {
-                                fileSystemModule.setQuota(folderFullName, rvEntry.getValue().getPerUserQuota());
+                                expectedQuota = rvEntry.getValue().getPerUserQuota();
+                            } else if (relativePath.getNameCount() == 2 && rvEntry.getValue().getPerVolumeQuota() > 0) {
+                                expectedQuota = rvEntry.getValue().getPerVolumeQuota();
+                            } else {
+                                return;
                             }
-                            if (relativePath.getNameCount() == 2 && rvEntry.getValue().getPerVolumeQuota() > 0 ) {
-                                fileSystemModule.setQuota(folderFullName, rvEntry.getValue().getPerVolumeQuota());
+                            foldersChecked.increment();
+                            Optional<Long> existingQuota = currentQuotas
+                                .get(rootVolumeName, relativePath.toString())
+                                .map(Quota::getNumberOfBytesQuota);
+                            if (existingQuota.isPresent() && existingQuota.get() == expectedQuota) {
+                                quotasAlreadyCorrect.increment();
+                            } else {
+                                rootVolumeChanges.add(new QuotaChange(
+                                        folder.toAbsolutePath().toString(),
+                                        existingQuota.orElse(null),
+                                        expectedQuota));
                             }
                         });
                 } catch (IOException e) {
                     throw new UncheckedIOException(e);
                 }
-            });
+                return rootVolumeChanges;
+            })
+            .collect(Collectors.toList())
+            .forEach(changes::addAll);
+        folderScanner.saveCache();
+
+        ApplyQuotasSummary summary = new ApplyQuotasSummary(foldersChecked.sum(), quotasAlreadyCorrect.sum(), changes);
+        logger.info("Finished checking quotas: {}", summary);
+
+        job.applying(changes.size());
+        List<CompletableFuture<Void>> results = new ArrayList<>(changes.size());
+        int batchSize = Math.max(1, config.getApplyQuotas().getBatchSize());
+        for (int start = 0; start < changes.size(); start += batchSize) {
+            Map<String, Long> quotasToSet = new LinkedHashMap<>();
+            changes.subList(start, Math.min(start + batchSize, changes.size()))
+                .forEach(change -> quotasToSet.put(change.getPath(), change.getNumberOfBytes()));
+            queue(quotasToSet, job).forEach((path, result) -> results.add(result.whenComplete((r, e) -> {
+                if (e == null) {
+                    job.changeApplied();
+                } else {
+                    job.changeFailed();
+                    logger.error("Error applying quota on {}", path, e);
+                }
+            })));
+            job.changesQueued(quotasToSet.size());
+        }
+        awaitChanges(results, job);
+        logger.info("Finished applying quotas: {} applied, {} failed", job.getChangesApplied(), job.getChangesFailed());
+        return summary;
+    }
+
+    private Map<String, CompletableFuture<Void>> queue(Map<String, Long> quotasToSet, ApplyQuotasJob job) {
+        while (true) {
+            job.checkNotCancelled();
+            try {
+                return fileSystemModule.setEachQuota(quotasToSet, Priority.BULK);
+            } catch (QueueFullException e) {
+                // changes that were queued before the queue filled up are picked up again next time
+                logger.debug("Waiting for room to queue quota changes: {}", e.getMessage());
+                sleep(QUEUE_FULL_RETRY_MILLIS);
+            }
+        }
+    }
+
+    // waits for all of the changes to be made or fail, or for the job to be cancelled
+    private void awaitChanges(List<CompletableFuture<Void>> results, ApplyQuotasJob job) {
+        CompletableFuture<Void> all = CompletableFuture.allOf(results.stream()
+                .map(result -> result.handle((r, e) -> (Void) null))
+                .toArray(CompletableFuture<?>[]::new));
+        while (true) {
+            job.checkNotCancelled();
+            try {
+                all.get(CANCELLATION_CHECK_MILLIS, TimeUnit.MILLISECONDS);
+                return;
+            } catch (TimeoutException e) {
+                // check for cancellation again
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CancellationException("Interrupted while waiting for quotas to be applied");
+            } catch (ExecutionException e) {
+                // failures were already counted
+                return;
+            }
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException("Interrupted while waiting to queue quota changes");
+        }
     }
 }
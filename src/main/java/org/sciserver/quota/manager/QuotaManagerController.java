@@ -16,102 +16,536 @@
 package org.sciserver.quota.manager;
 
 import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.attribute.PosixFilePermissions;
-import java.util.Collection;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
-import org.apache.commons.io.FileUtils;
 import org.sciserver.quota.manager.Config.RootVolume;
 import org.sciserver.quota.manager.dto.Quota;
+import org.sciserver.quota.manager.dto.UsageHistory;
 import org.sciserver.quota.manager.dto.VolumeDTO;
+import org.sciserver.quota.manager.dto.VolumeResult;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.convert.DurationStyle;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.util.AntPathMatcher;
 import org.springframework.util.PathMatcher;
 import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
-import org.springframework.web.bind.annotation.ResponseStatus;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.WebRequest;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+import org.springframework.web.servlet.support.ServletUriComponentsBuilder;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.micrometer.core.annotation.Timed;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.swagger.annotations.ApiOperation;
 
 @RestController
 public class QuotaManagerController {
+	private final Logger logger = LoggerFactory.getLogger(QuotaManagerController.class);
 	private static final String RELATIVE_PATH_PATTERN = "{keystoneId}/{userVolumeName}";
+	private static final String NEXT_CURSOR_HEADER = "X-Next-Cursor";
+	private static final String VERSION_HEADER = "X-Usage-Version";
+	private static final String LAST_EVENT_ID_HEADER = "Last-Event-ID";
+	// latency histograms are kept for the busiest endpoints
+	private static final String REQUEST_METRIC = "quota.manager.requests";
+	// the body of getUsage is written after the request metric has stopped
+	private static final String USAGE_WRITE_METRIC = "quota.manager.usage.write";
 
 	private final FileSystemModule fileSystemModule;
+	private final UsageSnapshotCache usageCache;
 	private final Config config;
+	private final ObjectMapper objectMapper;
+	private final OperationTracker operationTracker;
+	private final VolumeTrash volumeTrash;
+	private final UsageHistoryStore usageHistory;
+	private final UsageEventStream usageEvents;
+	private final MeterRegistry meterRegistry;
 
 	@Autowired
-	public QuotaManagerController(Config config, FileSystemModule fileSystemModule) {
+	public QuotaManagerController(Config config, FileSystemModule fileSystemModule,
+			UsageSnapshotCache usageCache, ObjectMapper objectMapper, OperationTracker operationTracker,
+			VolumeTrash volumeTrash, UsageHistoryStore usageHistory, UsageEventStream usageEvents,
+			MeterRegistry meterRegistry) {
 		this.config = config;
 		this.fileSystemModule = fileSystemModule;
+		this.usageCache = usageCache;
+		this.objectMapper = objectMapper;
+		this.operationTracker = operationTracker;
+		this.volumeTrash = volumeTrash;
+		this.usageHistory = usageHistory;
+		this.usageEvents = usageEvents;
+		this.meterRegistry = meterRegistry;
 	}
 
 	/**
 	 * Do any and all setup required for creating a volume
 	 * given a root folder and a relative path.
-	 * @param path
+	 * The Location header points to the operation that sets its quotas.
+	 * @param wait if true, wait (up to <code>timeout</code> seconds) for the quotas to be set
 	 * @throws IOException
 	 */
-	@ResponseStatus(HttpStatus.NO_CONTENT)
 	@PostMapping("createVolume")
-	public void createVolume(@RequestBody VolumeDTO newVolumeInfo) throws IOException {
-		PathMatcher matcher = new AntPathMatcher();
-		Map<String, String> pathVariables = matcher.extractUriTemplateVariables(
-				RELATIVE_PATH_PATTERN, newVolumeInfo.getRelativePath());
-		RootVolume rv = config.getRootVolumes().computeIfAbsent(newVolumeInfo.getRootVolumeName(),
-				key -> {
-					throw new UnknownVolumeNameException("Unknown root volume "
-							+ newVolumeInfo.getRootVolumeName());
-				});
+	@Timed(value = REQUEST_METRIC, histogram = true)
+	public ResponseEntity<Operation> createVolume(@RequestBody VolumeDTO newVolumeInfo,
+			@RequestParam(defaultValue = "false") boolean wait,
+			@RequestParam(defaultValue = "60") long timeout) throws IOException {
+		Map<String, Long> quotas = createFolders(newVolumeInfo);
+		CompletableFuture<?>[] results = quotas.entrySet().stream()
+			.map(quota -> fileSystemModule.setQuota(quota.getKey(), quota.getValue()))
+			.toArray(CompletableFuture<?>[]::new);
+		Operation operation = operationTracker.track(
+				"createVolume " + describe(newVolumeInfo), CompletableFuture.allOf(results));
+		return respondTo(operation, wait, timeout);
+	}
 
-		Path userFolder = Paths.get(rv.getPathOnFileServer(), pathVariables.get("keystoneId"));
-		Path userVolumeFolder = userFolder.resolve(pathVariables.get("userVolumeName"));
+	/**
+	 * Like createVolume, for many volumes at once. The folders are created in
+	 * parallel, and all of their quotas are handed to the file system in one batch.
+	 * If the file system has too many changes waiting to take the batch, the
+	 * volumes are still created, but are reported as failed, as is the operation.
+	 * @return whether each volume could be created, in the order they were given
+	 */
+	@PostMapping("createVolumes")
+	public ResponseEntity<List<VolumeResult>> createVolumes(@RequestBody List<VolumeDTO> newVolumes) {
+		List<Map<String, Long>> quotasOfVolumes = new ArrayList<>(Collections.nCopies(newVolumes.size(), null));
+		List<VolumeResult> results = IntStream.range(0, newVolumes.size())
+			.parallel()
+			.mapToObj(i -> {
+				try {
+					quotasOfVolumes.set(i, createFolders(newVolumes.get(i)));
+					return VolumeResult.succeeded(newVolumes.get(i));
+				} catch (IOException | RuntimeException e) {
+					logger.error("Error creating volume {}", newVolumes.get(i).getRelativePath(), e);
+					return VolumeResult.failed(newVolumes.get(i), e.getMessage());
+				}
+			})
+			.collect(Collectors.toList());
+
+		Map<String, Long> quotas = new LinkedHashMap<>();
+		quotasOfVolumes.stream()
+			.filter(Objects::nonNull)
+			.forEach(quotas::putAll);
+		CompletableFuture<Void> result;
+		try {
+			result = quotas.isEmpty() ?
+					CompletableFuture.completedFuture(null) : fileSystemModule.setQuotas(quotas);
+		} catch (QueueFullException e) {
+			// the folders exist by now, so say which ones were left without a quota
+			logger.warn("Could not queue the quotas of {} new volumes: {}", quotas.size(), e.getMessage());
+			for (int i = 0; i < newVolumes.size(); i++) {
+				if (quotasOfVolumes.get(i) != null && !quotasOfVolumes.get(i).isEmpty()) {
+					results.set(i, VolumeResult.failed(newVolumes.get(i),
+							"Created, but its quota could not be set: " + e.getMessage()));
+				}
+			}
+			result = new CompletableFuture<>();
+			result.completeExceptionally(e);
+		}
+		Operation operation = operationTracker.track(
+				"createVolumes (" + newVolumes.size() + " volumes)", result);
+		return ResponseEntity.ok().location(locationOf(operation)).body(results);
+	}
+
+	/**
+	 * The Location header points to the operation that removes the volume's quota.
+	 * @param wait if true, wait (up to <code>timeout</code> seconds) for the volume to be removed
+	 */
+	@PostMapping("deleteVolume")
+	@Timed(value = REQUEST_METRIC, histogram = true)
+	public ResponseEntity<Operation> deleteVolume(@RequestBody VolumeDTO newVolumeInfo,
+			@RequestParam(defaultValue = "false") boolean wait,
+			@RequestParam(defaultValue = "60") long timeout) {
+		VolumeFolders folders = resolve(newVolumeInfo);
+
+		CompletableFuture<Void> result;
+		if (folders.rootVolume.getPerVolumeQuota() != 0) {
+			result = fileSystemModule.removeUserVolumeWithQuota(
+					folders.userVolumeFolder.toString());
+		} else {
+			// without a quota to remove, the operation is the deletion itself
+			result = volumeTrash.moveToTrash(folders.userVolumeFolder);
+		}
+		Operation operation = operationTracker.track("deleteVolume " + describe(newVolumeInfo), result);
+		return respondTo(operation, wait, timeout);
+	}
+
+	/**
+	 * Like deleteVolume, for many volumes at once. Volumes without a quota of their
+	 * own are moved to the trash right away, and the rest are handed to the file
+	 * system in one batch. The operation covers both, and its error names each
+	 * volume that could not be deleted.
+	 * @return whether each volume could be deleted (or queued for deletion), in the
+	 * order they were given
+	 */
+	@PostMapping("deleteVolumes")
+	public ResponseEntity<List<VolumeResult>> deleteVolumes(@RequestBody List<VolumeDTO> volumes) {
+		List<String> volumesWithQuotas = new ArrayList<>(Collections.nCopies(volumes.size(), null));
+		Map<String, CompletableFuture<Void>> deletions = new ConcurrentHashMap<>();
+		List<VolumeResult> results = IntStream.range(0, volumes.size())
+			.parallel()
+			.mapToObj(i -> {
+				VolumeDTO volume = volumes.get(i);
+				try {
+					VolumeFolders folders = resolve(volume);
+					if (folders.rootVolume.getPerVolumeQuota() != 0) {
+						volumesWithQuotas.set(i, folders.userVolumeFolder.toString());
+					} else {
+						deletions.put(describe(volume), volumeTrash.moveToTrash(folders.userVolumeFolder));
+					}
+					return VolumeResult.succeeded(volume);
+				} catch (RuntimeException e) {
+					logger.error("Error deleting volume {}", volume.getRelativePath(), e);
+					return VolumeResult.failed(volume, e.getMessage());
+				}
+			})
+			.collect(Collectors.toList());
+
+		List<String> quotasToRemove = volumesWithQuotas.stream()
+			.filter(Objects::nonNull)
+			.collect(Collectors.toList());
+		if (!quotasToRemove.isEmpty()) {
+			String description = quotasToRemove.size() + " volumes with quotas";
+			try {
+				deletions.put(description, fileSystemModule.removeUserVolumesWithQuota(quotasToRemove));
+			} catch (QueueFullException e) {
+				// the volumes without quotas are already on their way out
+				logger.warn("Could not queue the removal of {}: {}", description, e.getMessage());
+				for (int i = 0; i < volumes.size(); i++) {
+					if (volumesWithQuotas.get(i) != null) {
+						results.set(i, VolumeResult.failed(volumes.get(i), e.getMessage()));
+					}
+				}
+				CompletableFuture<Void> rejected = new CompletableFuture<>();
+				rejected.completeExceptionally(e);
+				deletions.put(description, rejected);
+			}
+		}
+		Operation operation = operationTracker.track(
+				"deleteVolumes (" + volumes.size() + " volumes)", allOf(deletions));
+		return ResponseEntity.ok().location(locationOf(operation)).body(results);
+	}
+
+	/**
+	 * @return completes once all of the futures have, failing with the name
+	 * and error of each one that failed
+	 */
+	private static CompletableFuture<Void> allOf(Map<String, CompletableFuture<Void>> futuresByName) {
+		List<String> failures = Collections.synchronizedList(new ArrayList<>());
+		CompletableFuture<?>[] all = futuresByName.entrySet().stream()
+			.map(entry -> entry.getValue().whenComplete((result, e) -> {
+				if (e != null) {
+					Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+					failures.add(entry.getKey() + ": " + cause.getMessage());
+				}
+			}))
+			.toArray(CompletableFuture<?>[]::new);
+		return CompletableFuture.allOf(all).handle((result, e) -> {
+			if (!failures.isEmpty()) {
+				throw new CompletionException(new IOException("Could not delete " + String.join("; ", failures)));
+			}
+			return null;
+		});
+	}
+
+	@GetMapping("operations/{id}")
+	public Operation getOperation(@PathVariable String id) {
+		return operationTracker.get(id)
+				.orElseThrow(() -> new UnknownOperationException("Unknown operation " + id));
+	}
+
+	/**
+	 * No content if the operation succeeded (or isn't waited for), 202 Accepted if it
+	 * is still running after the timeout, and an error if it failed.
+	 */
+	private ResponseEntity<Operation> respondTo(Operation operation, boolean wait, long timeout) {
+		URI location = locationOf(operation);
+		if (!wait) {
+			return ResponseEntity.noContent().location(location).build();
+		}
+		try {
+			operation.getFuture().get(timeout, TimeUnit.SECONDS);
+			return ResponseEntity.noContent().location(location).build();
+		} catch (TimeoutException e) {
+			return ResponseEntity.accepted().location(location).body(operation);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return ResponseEntity.accepted().location(location).body(operation);
+		} catch (ExecutionException e) {
+			return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).location(location).body(operation);
+		}
+	}
+
+	private static URI locationOf(Operation operation) {
+		return ServletUriComponentsBuilder.fromCurrentContextPath()
+				.path("/operations/{id}")
+				.buildAndExpand(operation.getId())
+				.toUri();
+	}
+
+	private static String describe(VolumeDTO volume) {
+		return volume.getRootVolumeName() + ":" + volume.getRelativePath();
+	}
 
-		Files.createDirectories(userVolumeFolder);
-		Files.setPosixFilePermissions(userVolumeFolder,
+	/**
+	 * Creates the folders for a volume.
+	 * @return the quotas to set on them, by path
+	 */
+	private Map<String, Long> createFolders(VolumeDTO newVolumeInfo) throws IOException {
+		VolumeFolders folders = resolve(newVolumeInfo);
+
+		Files.createDirectories(folders.userVolumeFolder);
+		Files.setPosixFilePermissions(folders.userVolumeFolder,
 				PosixFilePermissions.fromString("rwxrwxrwx"));
 
-		if (rv.getPerUserQuota() != 0) {
-			fileSystemModule.setQuota(
-					userFolder.toString(),
-					rv.getPerUserQuota());
+		Map<String, Long> quotas = new LinkedHashMap<>();
+		if (folders.rootVolume.getPerUserQuota() != 0) {
+			quotas.put(
+					folders.userFolder.toString(),
+					folders.rootVolume.getPerUserQuota());
 		}
-		if (rv.getPerVolumeQuota() != 0) {
-			fileSystemModule.setQuota(
-					userVolumeFolder.toString(),
-					rv.getPerVolumeQuota());
+		if (folders.rootVolume.getPerVolumeQuota() != 0) {
+			quotas.put(
+					folders.userVolumeFolder.toString(),
+					folders.rootVolume.getPerVolumeQuota());
 		}
+		return quotas;
 	}
 
-	@ResponseStatus(HttpStatus.NO_CONTENT)
-	@PostMapping("deleteVolume")
-	public void deleteVolume(@RequestBody VolumeDTO newVolumeInfo) throws IOException {
+	private VolumeFolders resolve(VolumeDTO volumeInfo) {
 		PathMatcher matcher = new AntPathMatcher();
 		Map<String, String> pathVariables = matcher.extractUriTemplateVariables(
-				RELATIVE_PATH_PATTERN, newVolumeInfo.getRelativePath());
-		RootVolume rv = config.getRootVolumes().computeIfAbsent(newVolumeInfo.getRootVolumeName(),
+				RELATIVE_PATH_PATTERN, volumeInfo.getRelativePath());
+		RootVolume rv = config.getRootVolumes().computeIfAbsent(volumeInfo.getRootVolumeName(),
 				key -> {
 					throw new UnknownVolumeNameException("Unknown root volume "
-							+ newVolumeInfo.getRootVolumeName());
+							+ volumeInfo.getRootVolumeName());
 				});
 
 		Path userFolder = Paths.get(rv.getPathOnFileServer(), pathVariables.get("keystoneId"));
 		Path userVolumeFolder = userFolder.resolve(pathVariables.get("userVolumeName"));
+		return new VolumeFolders(rv, userFolder, userVolumeFolder);
+	}
+
+	/**
+	 * Returns the most recent usage report, optionally filtered and split into pages.
+	 * The Age header gives the age of the report in seconds. If there are more
+	 * results, the X-Next-Cursor header holds the cursor for the next page.
+	 * The X-Usage-Version header (and the ETag) give the version of the report,
+	 * so If-None-Match gets a 304 Not Modified if nothing changed. The report
+	 * is in JSON, or in Smile or CBOR if the Accept header asks for one of them.
+	 * The request metric only covers getting the report; writing the body is
+	 * timed separately, as <code>quota.manager.usage.write</code>.
+	 * @param refresh wait for a new report instead of using a cached one
+	 * @param minUtilization only include quotas with at least this fraction of their bytes in use
+	 * @param limit the maximum number of quotas to return, 0 for no limit
+	 * @param since only return what changed after this version, as an object
+	 * with the quotas that <code>changed</code> and those that were <code>removed</code>
+	 */
+	@ApiOperation(value = "getUsage", response = Quota.class, responseContainer = "List")
+	@GetMapping("getUsage")
+	@Timed(value = REQUEST_METRIC, histogram = true)
+	public ResponseEntity<StreamingResponseBody> getUsage(
+			@RequestParam(defaultValue = "false") boolean refresh,
+			@RequestParam(required = false) String rootVolumeName,
+			@RequestParam(required = false) String keystoneId,
+			@RequestParam(required = false) String relativePathPrefix,
+			@RequestParam(required = false) Double minUtilization,
+			@RequestParam(required = false) String cursor,
+			@RequestParam(defaultValue = "0") int limit,
+			@RequestParam(required = false) Long since,
+			@RequestHeader(name = HttpHeaders.ACCEPT, required = false) String accept,
+			WebRequest request) throws IOException {
+		UsageQuery query = new UsageQuery(rootVolumeName, keystoneId, relativePathPrefix,
+				minUtilization, cursor, limit);
+		UsageSnapshot snapshot = usageCache.getSnapshot(refresh);
+		UsageEncoding encoding = UsageEncoding.forAccept(accept);
+		String eTag = "\"" + snapshot.getVersion()
+				+ (encoding == UsageEncoding.JSON ? "" : "-" + encoding.name().toLowerCase(Locale.ROOT)) + "\"";
+		if (request.checkNotModified(eTag)) {
+			return null;
+		}
 
-		if (rv.getPerVolumeQuota() != 0) {
-			fileSystemModule.removeUserVolumeWithQuota(
-					userVolumeFolder.toString());
+		ResponseEntity.BodyBuilder response = ResponseEntity.ok()
+				.contentType(encoding.getMediaType())
+				.varyBy(HttpHeaders.ACCEPT)
+				.header(HttpHeaders.AGE, Long.toString(snapshot.getAge().getSeconds()))
+				.header(VERSION_HEADER, Long.toString(snapshot.getVersion()))
+				.eTag(eTag)
+				.lastModified(snapshot.getTakenAt().toEpochMilli());
+		if (since != null) {
+			UsageQuery.Delta delta = query.runSince(snapshot, since);
+			return response.body(output -> timedWrite(encoding,
+					() -> writeDelta(snapshot.getVersion(), delta, encoding, output)));
+		}
+		UsageQuery.Page page = query.run(snapshot);
+		if (page.getNextCursor() != null) {
+			response.header(NEXT_CURSOR_HEADER, page.getNextCursor());
+		}
+		return response.body(output -> timedWrite(encoding,
+				() -> writeQuotas(page.getQuotas(), encoding, output)));
+	}
+
+	/**
+	 * Returns the usage of one user folder, or of one of its volumes. This comes
+	 * from the cached usage report if it is fresh (younger than its ttl), and
+	 * otherwise from the file system, for just that folder. The Age header
+	 * gives the age of the result in seconds.
+	 */
+	@GetMapping({"usage/{rootVolumeName}/{keystoneId:.+}", "usage/{rootVolumeName}/{keystoneId}/{userVolumeName:.+}"})
+	public ResponseEntity<Quota> getFolderUsage(@PathVariable String rootVolumeName,
+			@PathVariable String keystoneId,
+			@PathVariable(required = false) String userVolumeName) throws IOException {
+		RootVolume rootVolume = config.getRootVolumes().get(rootVolumeName);
+		if (rootVolume == null) {
+			throw new UnknownVolumeNameException("Unknown root volume " + rootVolumeName);
+		}
+		if (!isFolderName(keystoneId) || userVolumeName != null && !isFolderName(userVolumeName)) {
+			throw new InvalidUsageQueryException("Invalid folder name");
+		}
+		String relativePath = userVolumeName == null ? keystoneId : keystoneId + "/" + userVolumeName;
+
+		Optional<UsageSnapshot> snapshot = usageCache.getFreshSnapshot();
+		Optional<Quota> quota;
+		long age;
+		if (snapshot.isPresent()) {
+			quota = snapshot.get().get(rootVolumeName, relativePath);
+			age = snapshot.get().getAge().getSeconds();
 		} else {
-			FileUtils.deleteDirectory(userVolumeFolder.toFile());
+			quota = fileSystemModule.getUsage(
+					Paths.get(rootVolume.getPathOnFileServer(), relativePath).toString());
+			age = 0;
 		}
+		return ResponseEntity.ok()
+				.header(HttpHeaders.AGE, Long.toString(age))
+				.body(quota.orElseThrow(() -> new UnknownQuotaException(
+						"No quota on " + relativePath + " in " + rootVolumeName)));
 	}
 
-	@GetMapping("getUsage")
-	public Collection<Quota> getUsage() throws IOException {
-		return fileSystemModule.getUsage();
+	private static boolean isFolderName(String name) {
+		return !name.isEmpty() && !name.equals(".") && !name.equals("..") && name.indexOf('/') < 0;
+	}
+
+	/**
+	 * Returns the recorded usage of one project (a user or user volume folder),
+	 * and the rate at which it grew over that time.
+	 * @param resolution the interval between samples, such as 1m or 1h; by
+	 * default the finest one that is kept
+	 */
+	@GetMapping("getUsageHistory")
+	public UsageHistory getUsageHistory(@RequestParam String rootVolumeName,
+			@RequestParam String relativePath,
+			@RequestParam(required = false) String resolution) throws IOException {
+		if (!usageHistory.isEnabled()) {
+			throw new NoUsageHistoryException("Usage history is not being kept");
+		}
+		Duration interval;
+		try {
+			interval = resolution == null ? null : DurationStyle.detectAndParse(resolution);
+		} catch (IllegalArgumentException e) {
+			throw new InvalidUsageQueryException("Invalid resolution " + resolution);
+		}
+		return usageHistory.get(rootVolumeName, relativePath, interval)
+				.orElseThrow(() -> new NoUsageHistoryException(
+						"No usage history of " + relativePath + " in " + rootVolumeName));
+	}
+
+	/**
+	 * Streams changes to the usage report as server-sent events, starting
+	 * with the next refresh. A client that reconnects with the Last-Event-ID
+	 * header (or <code>lastEventId</code> parameter) first gets the events it
+	 * missed, or a <code>reset</code> event if they are no longer available.
+	 */
+	@GetMapping(path = "getUsageEvents", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+	public SseEmitter getUsageEvents(
+			@RequestHeader(name = LAST_EVENT_ID_HEADER, required = false) String lastEventIdHeader,
+			@RequestParam(required = false) String lastEventId) {
+		return usageEvents.subscribe(lastEventIdHeader != null ? lastEventIdHeader : lastEventId);
+	}
+
+	private void timedWrite(UsageEncoding encoding, UsageWriter writer) throws IOException {
+		Timer.Sample sample = Timer.start(meterRegistry);
+		try {
+			writer.write();
+		} finally {
+			sample.stop(Timer.builder(USAGE_WRITE_METRIC)
+					.description("Time spent writing usage reports to clients")
+					.tag("encoding", encoding.name().toLowerCase(Locale.ROOT))
+					.publishPercentileHistogram()
+					.register(meterRegistry));
+		}
+	}
+
+	@FunctionalInterface
+	private interface UsageWriter {
+		void write() throws IOException;
+	}
+
+	private void writeQuotas(Iterable<Quota> quotas, UsageEncoding encoding, OutputStream output)
+			throws IOException {
+		try (JsonGenerator generator = encoding.createGenerator(objectMapper, output)) {
+			UsageEncoding.writeQuotas(quotas, generator);
+		}
+	}
+
+	private void writeDelta(long version, UsageQuery.Delta delta, UsageEncoding encoding, OutputStream output)
+			throws IOException {
+		try (JsonGenerator generator = encoding.createGenerator(objectMapper, output)) {
+			generator.writeStartObject();
+			generator.writeNumberField("version", version);
+			generator.writeBooleanField("full", delta.isFull());
+			generator.writeFieldName("changed");
+			UsageEncoding.writeQuotas(delta.getChanged(), generator);
+			generator.writeFieldName("removed");
+			generator.writeObject(delta.getRemoved());
+			generator.writeEndObject();
+		}
+	}
+
+	private static final class VolumeFolders {
+		private final RootVolume rootVolume;
+		private final Path userFolder;
+		private final Path userVolumeFolder;
+
+		private VolumeFolders(RootVolume rootVolume, Path userFolder, Path userVolumeFolder) {
+			this.rootVolume = rootVolume;
+			this.userFolder = userFolder;
+			this.userVolumeFolder = userVolumeFolder;
+		}
 	}
 }
@@ -21,9 +21,13 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 import org.sciserver.quota.manager.dto.Quota;
 import org.springframework.boot.actuate.health.Health;
@@ -32,42 +36,43 @@ import org.springframework.stereotype.Component;
 
 @Component
 public class QuotaManagerHealthIndicator implements HealthIndicator {
+	// only this many problems are listed in the details, the rest are just counted
+	private static final int MAX_REPORTED_PROBLEMS = 100;
+
 	private final Config config;
-	private final FileSystemModule fileSystemModule;
+	private final UsageSnapshotCache usageCache;
+	private final UserFolderScanner folderScanner;
 
-	public QuotaManagerHealthIndicator(Config config, FileSystemModule fileSystemModule) {
+	public QuotaManagerHealthIndicator(Config config, UsageSnapshotCache usageCache,
+			UserFolderScanner folderScanner) {
 		this.config = config;
-		this.fileSystemModule = fileSystemModule;
+		this.usageCache = usageCache;
+		this.folderScanner = folderScanner;
 	}
 
 	@Override
 	public Health health() {
 		Health.Builder healthBuilder = new Health.Builder().up();
 		try {
-			Collection<Quota> allQuotaInfo = fileSystemModule.getUsage();
-			List<QuotaProblem> errors = new ArrayList<>();
+			UsageIndex allQuotaInfo = UsageIndex.of(usageCache.getSnapshot(false).getQuotas());
+			QuotaProblems errors = new QuotaProblems(MAX_REPORTED_PROBLEMS);
 
-			config.getRootVolumes().entrySet().stream()
+			config.getRootVolumes().entrySet().parallelStream()
 				.forEach(rvEntry -> {
 					String rootVolumeName = rvEntry.getKey();
 					String rootVolumePath = rvEntry.getValue().getPathOnFileServer();
 					Path rootVolumeAsPath = Paths.get(rootVolumePath);
 					if (!Files.isDirectory(rootVolumeAsPath)) {
-						errors.add(new QuotaProblem(rootVolumePath,
+						errors.add(new QuotaProblem(ProblemType.MISSING_ROOT_VOLUME, rootVolumePath,
 								"Could not find '"+rootVolumeName+"'"));
 						return;
 					}
 					try {
-						Files.walk(rootVolumeAsPath, 2)
-							.filter(folder -> !folder.equals(rootVolumeAsPath))
+						folderScanner.list(rootVolumeAsPath)
 							.forEach(folder -> {
 								Path relativePath = rootVolumeAsPath.relativize(folder);
 								String folderFullName = folder.toAbsolutePath().toString();
-								Optional<Quota> folderQuota = allQuotaInfo
-									.stream()
-									.filter(q -> q.getRootVolumeName().equals(rootVolumeName))
-									.filter(q -> relativePath.toString().equals(q.getRelativePath()))
-									.findFirst();
+								Optional<Quota> folderQuota = allQuotaInfo.get(rootVolumeName, relativePath.toString());
 								if (relativePath.getNameCount() == 1) {
 									checkUserQuota(errors, rvEntry.getValue().getPerUserQuota(),
 											folderFullName, folderQuota);
@@ -81,10 +86,13 @@ public class QuotaManagerHealthIndicator implements HealthIndicator {
 						throw new UncheckedIOException(e);
 					}
 				});
-			if (!errors.isEmpty()) {
+			folderScanner.saveCache();
+			if (errors.getCount() > 0) {
 				healthBuilder
 					.down()
-					.withDetail("errors", errors);
+					.withDetail("errors", errors.getReported())
+					.withDetail("errorCount", errors.getCount())
+					.withDetail("errorCountsByType", errors.getCountsByType());
 			}
 			return healthBuilder.build();
 		} catch (Exception e) {
@@ -92,14 +100,14 @@ public class QuotaManagerHealthIndicator implements HealthIndicator {
 		}
 	}
 
-	private void checkUserQuota(List<QuotaProblem> errors, long perUserQuota,
+	private void checkUserQuota(QuotaProblems errors, long perUserQuota,
 			String folderFullName, Optional<Quota> folderQuota) {
 		long existingQuota = folderQuota.map(Quota::getNumberOfBytesQuota).orElse(0L);
 
 		if (perUserQuota > 0 && !folderQuota.isPresent()) {
-			errors.add(new QuotaProblem(folderFullName, "No user-id level quota found"));
+			errors.add(new QuotaProblem(ProblemType.MISSING_QUOTA, folderFullName, "No user-id level quota found"));
 		} else if (perUserQuota != existingQuota) {
-			errors.add(new QuotaProblem(folderFullName,
+			errors.add(new QuotaProblem(ProblemType.WRONG_QUOTA, folderFullName,
 				String.format("Expect a quota of %d bytes, but the quota is set to %d bytes",
 						perUserQuota,
 						existingQuota)));
@@ -109,20 +117,20 @@ public class QuotaManagerHealthIndicator implements HealthIndicator {
 		// folder has a quota set
 		long existingBytesUsed = folderQuota.map(Quota::getNumberOfBytesUsed).orElse(0L);
 		if (existingBytesUsed > 1.1*perUserQuota) {
-			errors.add(new QuotaProblem(folderFullName,
+			errors.add(new QuotaProblem(ProblemType.QUOTA_EXCEEDED, folderFullName,
 					String.format("A quota of %d bytes is exceeded by over 10%%. %d bytes are in use.",
 							perUserQuota, existingBytesUsed)));
 		}
 	}
 
-	private void checkUserVolumeQuota(List<QuotaProblem> errors, long perVolumeQuota,
+	private void checkUserVolumeQuota(QuotaProblems errors, long perVolumeQuota,
 			String folderFullName, Optional<Quota> folderQuota) {
 		long existingQuota = folderQuota.map(Quota::getNumberOfBytesQuota).orElse(0L);
 
 		if (perVolumeQuota > 0 && !folderQuota.isPresent()) {
-			errors.add(new QuotaProblem(folderFullName, "No volume level quota found"));
+			errors.add(new QuotaProblem(ProblemType.MISSING_QUOTA, folderFullName, "No volume level quota found"));
 		} else if (perVolumeQuota != existingQuota) {
-			errors.add(new QuotaProblem(folderFullName,
+			errors.add(new QuotaProblem(ProblemType.WRONG_QUOTA, folderFullName,
 				String.format("Expect a quota of %d bytes, but the quota is set to %d bytes",
 						perVolumeQuota,
 						existingQuota)));
@@ -132,17 +140,63 @@ public class QuotaManagerHealthIndicator implements HealthIndicator {
 		// folder has a quota set
 		long existingBytesUsed = folderQuota.map(Quota::getNumberOfBytesUsed).orElse(0L);
 		if (existingBytesUsed > 1.1 * perVolumeQuota) {
-			errors.add(new QuotaProblem(folderFullName,
+			errors.add(new QuotaProblem(ProblemType.QUOTA_EXCEEDED, folderFullName,
 					String.format("A quota of %d bytes is exceeded by over 10%%. %d bytes are in use.",
 							perVolumeQuota, existingBytesUsed)));
 		}
 	}
 
+	private enum ProblemType {
+		MISSING_ROOT_VOLUME, MISSING_QUOTA, WRONG_QUOTA, QUOTA_EXCEEDED
+	}
+
+	/**
+	 * Collects problems from several threads, keeping only the
+	 * first few but counting all of them.
+	 */
+	private static class QuotaProblems {
+		private final int maxReported;
+		private final List<QuotaProblem> reported = new ArrayList<>();
+		private final AtomicLong count = new AtomicLong();
+		private final Map<ProblemType, LongAdder> countsByType = new ConcurrentHashMap<>();
+
+		private QuotaProblems(int maxReported) {
+			this.maxReported = maxReported;
+		}
+
+		void add(QuotaProblem problem) {
+			countsByType.computeIfAbsent(problem.type, key -> new LongAdder()).increment();
+			if (count.getAndIncrement() < maxReported) {
+				synchronized (reported) {
+					reported.add(problem);
+				}
+			}
+		}
+
+		long getCount() {
+			return count.get();
+		}
+
+		List<QuotaProblem> getReported() {
+			synchronized (reported) {
+				return new ArrayList<>(reported);
+			}
+		}
+
+		Map<ProblemType, Long> getCountsByType() {
+			Map<ProblemType, Long> counts = new TreeMap<>();
+			countsByType.forEach((type, typeCount) -> counts.put(type, typeCount.sum()));
+			return counts;
+		}
+	}
+
 	@SuppressWarnings("unused")
-	private class QuotaProblem {
+	private static class QuotaProblem {
+		private final ProblemType type;
 		private final String path;
 		private final String message;
-		private QuotaProblem(String path, String message) {
+		private QuotaProblem(ProblemType type, String path, String message) {
+			this.type = type;
 			this.path = path;
 			this.message = message;
 		}
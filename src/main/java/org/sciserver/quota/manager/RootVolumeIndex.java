@@ -0,0 +1,131 @@
+/*******************************************************************************
+ * Copyright 2018 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ******************************************************************************/
+package org.sciserver.quota.manager;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Finds the root volume that an absolute path on the file server is in.
+ *
+ * The paths of the root volumes are kept in a trie of characters, so a lookup
+ * is a single pass over the path that allocates nothing. A root volume only
+ * matches at a path component boundary, and if root volumes are nested, the
+ * longest (innermost) one wins.
+ */
+public final class RootVolumeIndex {
+	private final Node root = new Node();
+
+	private RootVolumeIndex(Map<String, Config.RootVolume> rootVolumes) {
+		rootVolumes.forEach((name, rootVolume) -> add(name, rootVolume.getPathOnFileServer()));
+	}
+
+	public static RootVolumeIndex of(Config config) {
+		return new RootVolumeIndex(config.getRootVolumes());
+	}
+
+	/**
+	 * @return the innermost root volume that <code>fullPath</code> is strictly
+	 * inside of, or null if there is none
+	 */
+	public RootVolumeEntry find(String fullPath) {
+		RootVolumeEntry longestMatch = null;
+		Node node = root;
+		int position = 0;
+		while (node != null) {
+			if (node.entry != null
+					&& position < fullPath.length() - 1
+					&& fullPath.charAt(position) == '/') {
+				longestMatch = node.entry;
+			}
+			if (position == fullPath.length()) {
+				break;
+			}
+			node = node.child(fullPath.charAt(position++));
+		}
+		return longestMatch;
+	}
+
+	private void add(String name, String pathOnFileServer) {
+		// "/a/b/" and "/a/b" are the same root volume, and "/" is stored as ""
+		String path = pathOnFileServer;
+		while (path.endsWith("/")) {
+			path = path.substring(0, path.length() - 1);
+		}
+		Node node = root;
+		for (int i = 0; i < path.length(); i++) {
+			node = node.childOrNew(path.charAt(i));
+		}
+		if (node.entry != null) {
+			throw new IllegalArgumentException(String.format(
+					"Root volumes '%s' and '%s' are both at %s", node.entry.name, name, pathOnFileServer));
+		}
+		node.entry = new RootVolumeEntry(name, path.length());
+	}
+
+	public static final class RootVolumeEntry {
+		private final String name;
+		private final int pathLength;
+
+		private RootVolumeEntry(String name, int pathLength) {
+			this.name = name;
+			this.pathLength = pathLength;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * @param fullPath a path that this root volume was found for
+		 * @return the path relative to the root volume, without a leading slash
+		 */
+		public String relativePath(String fullPath) {
+			return fullPath.substring(pathLength + 1);
+		}
+	}
+
+	// children are kept sorted by character, there are only ever a few of them
+	private static final class Node {
+		private char[] keys = new char[0];
+		private Node[] children = new Node[0];
+		private RootVolumeEntry entry;
+
+		private Node child(char key) {
+			int index = Arrays.binarySearch(keys, key);
+			return index >= 0 ? children[index] : null;
+		}
+
+		private Node childOrNew(char key) {
+			int index = Arrays.binarySearch(keys, key);
+			if (index >= 0) {
+				return children[index];
+			}
+			int insertAt = -index - 1;
+			char[] newKeys = new char[keys.length + 1];
+			Node[] newChildren = new Node[children.length + 1];
+			System.arraycopy(keys, 0, newKeys, 0, insertAt);
+			System.arraycopy(children, 0, newChildren, 0, insertAt);
+			newKeys[insertAt] = key;
+			newChildren[insertAt] = new Node();
+			System.arraycopy(keys, insertAt, newKeys, insertAt + 1, keys.length - insertAt);
+			System.arraycopy(children, insertAt, newChildren, insertAt + 1, children.length - insertAt);
+			keys = newKeys;
+			children = newChildren;
+			return newChildren[insertAt];
+		}
+	}
+}
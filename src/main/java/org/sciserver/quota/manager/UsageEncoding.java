@@ -0,0 +1,113 @@
+/*******************************************************************************
+ * Copyright 2018 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ******************************************************************************/
+package org.sciserver.quota.manager;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+import org.sciserver.quota.manager.dto.Quota;
+import org.springframework.http.InvalidMediaTypeException;
+import org.springframework.http.MediaType;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileGenerator;
+
+/**
+ * The encodings usage reports can be written in, picked with the Accept header.
+ *
+ * Smile and CBOR are binary forms of JSON, written with the same serializers.
+ * Smile refers back to field names it has already written, and here also to
+ * short strings such as root volume names, so each quota after the first
+ * costs little more than its path and numbers.
+ */
+enum UsageEncoding {
+	JSON(MediaType.APPLICATION_JSON_UTF8, null),
+	SMILE(new MediaType("application", "x-jackson-smile"),
+			new SmileFactory().enable(SmileGenerator.Feature.CHECK_SHARED_STRING_VALUES)),
+	CBOR(new MediaType("application", "cbor"), new CBORFactory());
+
+	private static final int QUOTAS_PER_FLUSH = 1000;
+
+	private final MediaType mediaType;
+	// null to use the ObjectMapper's own
+	private final JsonFactory factory;
+
+	UsageEncoding(MediaType mediaType, JsonFactory factory) {
+		this.mediaType = mediaType;
+		this.factory = factory;
+	}
+
+	MediaType getMediaType() {
+		return mediaType;
+	}
+
+	/**
+	 * @return the encoding the client prefers, JSON if it accepts none of them
+	 */
+	static UsageEncoding forAccept(String accept) {
+		if (accept == null) {
+			return JSON;
+		}
+		List<MediaType> accepted;
+		try {
+			accepted = MediaType.parseMediaTypes(accept);
+		} catch (InvalidMediaTypeException e) {
+			return JSON;
+		}
+		MediaType.sortBySpecificityAndQuality(accepted);
+		for (MediaType acceptedType : accepted) {
+			if (acceptedType.getQualityValue() == 0) {
+				continue;
+			}
+			for (UsageEncoding encoding : values()) {
+				if (acceptedType.isCompatibleWith(encoding.mediaType)) {
+					return encoding;
+				}
+			}
+		}
+		return JSON;
+	}
+
+	JsonGenerator createGenerator(ObjectMapper objectMapper, OutputStream output) throws IOException {
+		if (factory == null) {
+			return objectMapper.getFactory().createGenerator(output);
+		}
+		JsonGenerator generator = factory.createGenerator(output);
+		generator.setCodec(objectMapper);
+		return generator;
+	}
+
+	/**
+	 * Writes the quotas one at a time, rather than building the whole
+	 * response in memory.
+	 */
+	static void writeQuotas(Iterable<Quota> quotas, JsonGenerator generator) throws IOException {
+		generator.writeStartArray();
+		int written = 0;
+		for (Quota quota : quotas) {
+			generator.writeObject(quota);
+			if (++written % QUOTAS_PER_FLUSH == 0) {
+				generator.flush();
+			}
+		}
+		generator.writeEndArray();
+	}
+}
@@ -0,0 +1,250 @@
+/*******************************************************************************
+ * Copyright 2018 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ******************************************************************************/
+package org.sciserver.quota.manager;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.annotation.PreDestroy;
+
+import org.sciserver.quota.manager.dto.Quota;
+import org.sciserver.quota.manager.dto.QuotaRemoved;
+import org.sciserver.quota.manager.dto.ThresholdCrossed;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+/**
+ * Turns consecutive usage reports into a stream of changes, sent to
+ * subscribers as server-sent events:
+ * <ul>
+ * <li><code>changed</code>: a {@link Quota} that is new, or whose usage or limits changed</li>
+ * <li><code>removed</code>: a {@link QuotaRemoved} that is no longer reported</li>
+ * <li><code>threshold</code>: a {@link ThresholdCrossed} when the utilization (the
+ * larger of the fraction of bytes and of files used) crosses one of the
+ * configured thresholds</li>
+ * <li><code>reset</code>: the events since the client's last one are no longer
+ * available, so it has to get the full report again</li>
+ * </ul>
+ * Event ids are made of an id for this run of the service and a sequence
+ * number. The last <code>buffer-size</code> events are kept, so a client that
+ * reconnects with a <code>Last-Event-ID</code> gets the events it missed.
+ */
+@Component
+class UsageEventStream {
+	static final String CHANGED = "changed";
+	static final String REMOVED = "removed";
+	static final String THRESHOLD = "threshold";
+	static final String RESET = "reset";
+	private static final char ID_SEPARATOR = '-';
+
+	private final Logger logger = LoggerFactory.getLogger(UsageEventStream.class);
+	private final Config.Events settings;
+	private final String runId = Long.toString(System.currentTimeMillis(), Character.MAX_RADIX);
+	// events are sent from one thread, in order, so that slow clients don't hold up refreshes
+	private final ExecutorService sender = Executors.newSingleThreadExecutor(
+			new CustomizableThreadFactory("usage-events-"));
+	private final List<SseEmitter> emitters = new CopyOnWriteArrayList<>();
+	private final Deque<Event> recentEvents = new ArrayDeque<>();
+	private long lastSequence;
+	private UsageSnapshot previous;
+
+	UsageEventStream(Config config) {
+		this.settings = config.getEvents();
+	}
+
+	@PreDestroy
+	void stop() {
+		sender.shutdownNow();
+		emitters.forEach(SseEmitter::complete);
+	}
+
+	/**
+	 * @param lastEventId the id of the last event the client received, if it is reconnecting
+	 */
+	synchronized SseEmitter subscribe(String lastEventId) {
+		SseEmitter emitter = new SseEmitter(settings.getStreamTimeout().toMillis());
+		emitter.onCompletion(() -> emitters.remove(emitter));
+		emitter.onTimeout(() -> emitters.remove(emitter));
+		List<Event> missed = lastEventId == null ? new ArrayList<>() : eventsAfter(lastEventId);
+		sender.execute(() -> missed.forEach(event -> send(emitter, event)));
+		emitters.add(emitter);
+		return emitter;
+	}
+
+	@EventListener
+	synchronized void publishChanges(UsageSnapshotRefreshed refreshed) {
+		UsageSnapshot current = refreshed.getSnapshot();
+		if (previous != null) {
+			List<Event> events = new ArrayList<>();
+			diff(previous, current, settings.getThresholds(), (name, data) ->
+				events.add(newEvent(++lastSequence, name, data)));
+			events.forEach(this::remember);
+			if (!events.isEmpty()) {
+				logger.debug("Publishing {} usage events", events.size());
+				sender.execute(() -> emitters.forEach(emitter -> events.forEach(event -> send(emitter, event))));
+			}
+		}
+		previous = current;
+	}
+
+	interface EventSink {
+		void accept(String name, Object data);
+	}
+
+	/**
+	 * Compares two snapshots, which are both sorted in {@link UsageSnapshot#ORDER}.
+	 */
+	static void diff(UsageSnapshot before, UsageSnapshot after, List<Double> thresholds, EventSink sink) {
+		List<Quota> oldQuotas = before.getQuotas();
+		List<Quota> newQuotas = after.getQuotas();
+		int oldIndex = 0;
+		int newIndex = 0;
+		while (oldIndex < oldQuotas.size() || newIndex < newQuotas.size()) {
+			int comparison;
+			if (oldIndex == oldQuotas.size()) {
+				comparison = 1;
+			} else if (newIndex == newQuotas.size()) {
+				comparison = -1;
+			} else {
+				comparison = UsageSnapshot.ORDER.compare(oldQuotas.get(oldIndex), newQuotas.get(newIndex));
+			}
+			if (comparison < 0) {
+				Quota removed = oldQuotas.get(oldIndex++);
+				sink.accept(REMOVED, new QuotaRemoved(removed.getRootVolumeName(), removed.getRelativePath()));
+			} else if (comparison > 0) {
+				Quota added = newQuotas.get(newIndex++);
+				sink.accept(CHANGED, added);
+				crossedThresholds(0, added, thresholds, sink);
+			} else {
+				Quota oldQuota = oldQuotas.get(oldIndex++);
+				Quota newQuota = newQuotas.get(newIndex++);
+				if (!UsageSnapshot.sameUsage(oldQuota, newQuota)) {
+					sink.accept(CHANGED, newQuota);
+					crossedThresholds(utilization(oldQuota), newQuota, thresholds, sink);
+				}
+			}
+		}
+	}
+
+	private static void crossedThresholds(double oldUtilization, Quota quota, List<Double> thresholds,
+			EventSink sink) {
+		double newUtilization = utilization(quota);
+		for (double threshold : thresholds) {
+			boolean wasAbove = oldUtilization >= threshold;
+			boolean isAbove = newUtilization >= threshold;
+			if (wasAbove != isAbove) {
+				sink.accept(THRESHOLD, new ThresholdCrossed(quota.getRootVolumeName(), quota.getRelativePath(),
+						threshold, isAbove, newUtilization));
+			}
+		}
+	}
+
+	private static double utilization(Quota quota) {
+		double utilization = 0;
+		if (quota.getNumberOfBytesQuota() > 0) {
+			utilization = (double) quota.getNumberOfBytesUsed() / quota.getNumberOfBytesQuota();
+		}
+		if (quota.getNumberOfFilesQuota() > 0) {
+			utilization = Math.max(utilization,
+					(double) quota.getNumberOfFilesUsed() / quota.getNumberOfFilesQuota());
+		}
+		return utilization;
+	}
+
+	private void remember(Event event) {
+		if (recentEvents.size() == settings.getBufferSize()) {
+			recentEvents.removeFirst();
+		}
+		recentEvents.addLast(event);
+	}
+
+	// the events the client missed, or a reset if they are no longer all available
+	synchronized List<Event> eventsAfter(String lastEventId) {
+		long lastReceived;
+		int separator = lastEventId.lastIndexOf(ID_SEPARATOR);
+		try {
+			lastReceived = separator > 0 && lastEventId.substring(0, separator).equals(runId) ?
+					Long.parseLong(lastEventId.substring(separator + 1)) : -1;
+		} catch (NumberFormatException e) {
+			lastReceived = -1;
+		}
+		long oldestKept = recentEvents.isEmpty() ? lastSequence + 1 : recentEvents.getFirst().sequence;
+		List<Event> missed = new ArrayList<>();
+		if (lastReceived < oldestKept - 1 || lastReceived > lastSequence) {
+			missed.add(newEvent(lastSequence, RESET, "Some events are no longer available, get the full usage report"));
+			return missed;
+		}
+		for (Event event : recentEvents) {
+			if (event.sequence > lastReceived) {
+				missed.add(event);
+			}
+		}
+		return missed;
+	}
+
+	private Event newEvent(long sequence, String name, Object data) {
+		return new Event(sequence, runId + ID_SEPARATOR + sequence, name, data);
+	}
+
+	private void send(SseEmitter emitter, Event event) {
+		try {
+			emitter.send(SseEmitter.event()
+					.id(event.id)
+					.name(event.name)
+					.data(event.data));
+		} catch (IOException | IllegalStateException e) {
+			// the client went away, or the emitter timed out
+			emitters.remove(emitter);
+			emitter.completeWithError(e);
+		}
+	}
+
+	static final class Event {
+		private final long sequence;
+		private final String id;
+		private final String name;
+		private final Object data;
+
+		private Event(long sequence, String id, String name, Object data) {
+			this.sequence = sequence;
+			this.id = id;
+			this.name = name;
+			this.data = data;
+		}
+
+		String getId() {
+			return id;
+		}
+
+		String getName() {
+			return name;
+		}
+
+		Object getData() {
+			return data;
+		}
+	}
+}
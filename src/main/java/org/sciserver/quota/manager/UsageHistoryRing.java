@@ -0,0 +1,226 @@
+/*******************************************************************************
+ * Copyright 2018 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ******************************************************************************/
+package org.sciserver.quota.manager;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import org.sciserver.quota.manager.dto.UsageHistory.Sample;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Usage of up to <code>capacity</code> projects over the last
+ * <code>samples</code> intervals, in one memory-mapped file.
+ *
+ * Each interval has a slot, which is reused once the ring wraps around. A slot
+ * holds the usage of all projects for its interval, one after another (16
+ * bytes each, indexed by the project's row), so recording a snapshot writes
+ * one contiguous region of the file. A later snapshot in the same interval
+ * overwrites the earlier one, which is how coarser rings downsample.
+ *
+ * The file starts with a header, followed by the interval number held in each
+ * slot (0 while a slot is empty or being rewritten). The slots themselves
+ * start on a page boundary. The file is sparse, so rows that have never been
+ * written take no space. A stored byte count of 0 means there is no sample.
+ */
+final class UsageHistoryRing implements Closeable {
+	private static final Logger logger = LoggerFactory.getLogger(UsageHistoryRing.class);
+
+	private static final int MAGIC = 0x51555348;
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 32;
+	private static final int PAGE_SIZE = 4096;
+	private static final int ENTRY_SIZE = 16;
+
+	private final Duration interval;
+	private final long intervalSeconds;
+	private final int samples;
+	private final int capacity;
+	private final FileChannel channel;
+	private final MappedByteBuffer header;
+	private final long dataOffset;
+	// mapped on first use, since most of them are only touched once per interval
+	private final MappedByteBuffer[] slots;
+	private long latestInterval;
+
+	private UsageHistoryRing(FileChannel channel, Duration interval, int samples, int capacity) throws IOException {
+		this.channel = channel;
+		this.interval = interval;
+		this.intervalSeconds = interval.getSeconds();
+		this.samples = samples;
+		this.capacity = capacity;
+		long headerSize = HEADER_SIZE + 8L * samples;
+		this.dataOffset = (headerSize + PAGE_SIZE - 1) / PAGE_SIZE * PAGE_SIZE;
+		this.header = channel.map(MapMode.READ_WRITE, 0, headerSize);
+		this.slots = new MappedByteBuffer[samples];
+		for (int slot = 0; slot < samples; slot++) {
+			latestInterval = Math.max(latestInterval, slotInterval(slot));
+		}
+	}
+
+	/**
+	 * Opens the ring in <code>file</code>, creating it if needed. A file
+	 * written with a different layout is replaced by an empty one.
+	 */
+	static UsageHistoryRing open(Path file, Duration interval, int samples, int capacity) throws IOException {
+		if (interval.getSeconds() < 1 || samples < 1 || capacity < 1
+				|| (long) capacity * ENTRY_SIZE > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException(String.format(
+					"Invalid usage history ring: interval %s, %d samples, %d projects", interval, samples, capacity));
+		}
+		boolean existed = Files.exists(file);
+		FileChannel channel = FileChannel.open(file,
+				StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try {
+			if (existed && !hasLayout(channel, interval, samples, capacity)) {
+				logger.warn("{} was written with different settings, starting a new history", file);
+				channel.truncate(0);
+				existed = false;
+			}
+			UsageHistoryRing ring = new UsageHistoryRing(channel, interval, samples, capacity);
+			if (!existed) {
+				ring.writeHeader();
+			}
+			return ring;
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	private static boolean hasLayout(FileChannel channel, Duration interval, int samples, int capacity)
+			throws IOException {
+		ByteBuffer existingHeader = ByteBuffer.allocate(HEADER_SIZE);
+		channel.read(existingHeader, 0);
+		existingHeader.flip();
+		return existingHeader.remaining() == HEADER_SIZE
+				&& existingHeader.getInt() == MAGIC
+				&& existingHeader.getInt() == VERSION
+				&& existingHeader.getInt() == samples
+				&& existingHeader.getInt() == capacity
+				&& existingHeader.getLong() == interval.getSeconds();
+	}
+
+	private void writeHeader() throws IOException {
+		header.putInt(0, MAGIC);
+		header.putInt(4, VERSION);
+		header.putInt(8, samples);
+		header.putInt(12, capacity);
+		header.putLong(16, intervalSeconds);
+		// make the file as long as all of its slots, without writing them
+		channel.write(ByteBuffer.allocate(1), dataOffset + (long) samples * capacity * ENTRY_SIZE - 1);
+	}
+
+	Duration getInterval() {
+		return interval;
+	}
+
+	int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * @param bytesUsed the bytes used by the project in each row, or -1 for
+	 * projects that were not in the snapshot
+	 */
+	synchronized void record(Instant takenAt, long[] bytesUsed, long[] filesUsed, int rows) throws IOException {
+		long intervalNumber = Math.floorDiv(takenAt.getEpochSecond(), intervalSeconds);
+		if (intervalNumber < latestInterval - samples + 1) {
+			return;
+		}
+		int slot = (int) Math.floorMod(intervalNumber, (long) samples);
+		boolean reused = slotInterval(slot) != intervalNumber;
+		ByteBuffer data = slot(slot);
+		if (reused) {
+			header.putLong(slotIntervalPosition(slot), 0);
+		}
+		for (int row = 0; row < Math.min(rows, capacity); row++) {
+			int position = row * ENTRY_SIZE;
+			if (bytesUsed[row] >= 0) {
+				data.putLong(position, bytesUsed[row] + 1);
+				data.putLong(position + 8, filesUsed[row]);
+			} else if (reused) {
+				data.putLong(position, 0);
+			}
+		}
+		header.putLong(slotIntervalPosition(slot), intervalNumber);
+		latestInterval = Math.max(latestInterval, intervalNumber);
+	}
+
+	/**
+	 * @return the samples of the project in <code>row</code>, oldest first
+	 */
+	synchronized List<Sample> read(int row) throws IOException {
+		List<Sample> history = new ArrayList<>();
+		if (row >= capacity) {
+			return history;
+		}
+		for (int slot = 0; slot < samples; slot++) {
+			long intervalNumber = slotInterval(slot);
+			if (intervalNumber == 0 || intervalNumber <= latestInterval - samples) {
+				continue;
+			}
+			ByteBuffer data = slot(slot);
+			long storedBytes = data.getLong(row * ENTRY_SIZE);
+			if (storedBytes != 0) {
+				history.add(new Sample(Instant.ofEpochSecond(intervalNumber * intervalSeconds),
+						storedBytes - 1, data.getLong(row * ENTRY_SIZE + 8)));
+			}
+		}
+		history.sort(Comparator.comparing(Sample::getTime));
+		return history;
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		header.force();
+		for (MappedByteBuffer slot : slots) {
+			if (slot != null) {
+				slot.force();
+			}
+		}
+		channel.close();
+	}
+
+	private long slotInterval(int slot) {
+		return header.getLong(slotIntervalPosition(slot));
+	}
+
+	private static int slotIntervalPosition(int slot) {
+		return HEADER_SIZE + 8 * slot;
+	}
+
+	private MappedByteBuffer slot(int slot) throws IOException {
+		if (slots[slot] == null) {
+			long slotSize = (long) capacity * ENTRY_SIZE;
+			slots[slot] = channel.map(MapMode.READ_WRITE, dataOffset + slot * slotSize, slotSize);
+		}
+		return slots[slot];
+	}
+}
@@ -0,0 +1,236 @@
+/*******************************************************************************
+ * Copyright 2018 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ******************************************************************************/
+package org.sciserver.quota.manager;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.sciserver.quota.manager.dto.Quota;
+import org.sciserver.quota.manager.dto.UsageHistory;
+import org.sciserver.quota.manager.dto.UsageHistory.Sample;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+/**
+ * Records each refreshed usage report into a local history, kept at each of
+ * the configured resolutions in a {@link UsageHistoryRing}. Nothing is kept
+ * unless <code>history.directory</code> is set.
+ *
+ * Each project gets a row the first time it is seen. Rows are never given
+ * back, and are listed in the <code>projects</code> file in the history
+ * directory, so that they stay the same across restarts. Projects beyond
+ * <code>max-projects</code> are not recorded.
+ */
+@Component
+class UsageHistoryStore {
+	private static final String PROJECTS_FILE = "projects";
+	private static final char KEY_SEPARATOR = '\0';
+	private static final double SECONDS_PER_DAY = 86400;
+
+	private final Logger logger = LoggerFactory.getLogger(UsageHistoryStore.class);
+	private final Config.History settings;
+	private final List<UsageHistoryRing> rings = new ArrayList<>();
+	private final Map<String, Integer> rowsByKey = new HashMap<>();
+	private DataOutputStream projectsOutput;
+
+	UsageHistoryStore(Config config) {
+		this.settings = config.getHistory();
+	}
+
+	@PostConstruct
+	synchronized void open() throws IOException {
+		if (settings.getDirectory() == null) {
+			return;
+		}
+		Path directory = Files.createDirectories(Paths.get(settings.getDirectory()));
+		Path projectsFile = directory.resolve(PROJECTS_FILE);
+		loadProjects(projectsFile);
+		projectsOutput = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(projectsFile,
+				StandardOpenOption.CREATE, StandardOpenOption.APPEND)));
+		for (Config.Resolution resolution : settings.getResolutions()) {
+			if (rings.stream().anyMatch(ring -> ring.getInterval().equals(resolution.getInterval()))) {
+				throw new IllegalArgumentException("Usage history resolution listed twice: " + resolution.getInterval());
+			}
+			rings.add(UsageHistoryRing.open(
+					directory.resolve("usage-" + resolution.getInterval().getSeconds() + "s"),
+					resolution.getInterval(), resolution.getSamples(), settings.getMaxProjects()));
+		}
+		logger.info("Keeping usage history of {} projects in {}", rowsByKey.size(), directory);
+	}
+
+	// a partly written last entry (from a crash) is cut off
+	private void loadProjects(Path projectsFile) throws IOException {
+		if (!Files.exists(projectsFile)) {
+			return;
+		}
+		long validLength = 0;
+		try (DataInputStream input = new DataInputStream(new BufferedInputStream(
+				Files.newInputStream(projectsFile)))) {
+			while (true) {
+				String key = input.readUTF();
+				rowsByKey.put(key, rowsByKey.size());
+				validLength += 2 + utfLength(key);
+			}
+		} catch (EOFException e) {
+			// the end of the file
+		}
+		if (validLength < Files.size(projectsFile)) {
+			logger.warn("Cutting off an incomplete entry at the end of {}", projectsFile);
+			try (FileChannel channel = FileChannel.open(projectsFile, StandardOpenOption.WRITE)) {
+				channel.truncate(validLength);
+			}
+		}
+	}
+
+	private static int utfLength(String key) {
+		int length = 0;
+		for (int i = 0; i < key.length(); i++) {
+			char c = key.charAt(i);
+			length += c >= 0x0001 && c <= 0x007F ? 1 : c > 0x07FF ? 3 : 2;
+		}
+		return length;
+	}
+
+	@PreDestroy
+	synchronized void close() throws IOException {
+		for (UsageHistoryRing ring : rings) {
+			ring.close();
+		}
+		rings.clear();
+		if (projectsOutput != null) {
+			projectsOutput.close();
+			projectsOutput = null;
+		}
+	}
+
+	boolean isEnabled() {
+		return settings.getDirectory() != null;
+	}
+
+	@EventListener
+	synchronized void record(UsageSnapshotRefreshed event) throws IOException {
+		if (rings.isEmpty()) {
+			return;
+		}
+		UsageSnapshot snapshot = event.getSnapshot();
+		int newProjects = 0;
+		int skippedProjects = 0;
+		long[] bytesUsed = new long[Math.min(rowsByKey.size() + snapshot.getQuotas().size(), settings.getMaxProjects())];
+		long[] filesUsed = new long[bytesUsed.length];
+		Arrays.fill(bytesUsed, -1);
+		for (Quota quota : snapshot.getQuotas()) {
+			String key = keyOf(quota.getRootVolumeName(), quota.getRelativePath());
+			Integer row = rowsByKey.get(key);
+			if (row == null) {
+				if (rowsByKey.size() >= settings.getMaxProjects()) {
+					skippedProjects++;
+					continue;
+				}
+				row = rowsByKey.size();
+				projectsOutput.writeUTF(key);
+				rowsByKey.put(key, row);
+				newProjects++;
+			}
+			bytesUsed[row] = quota.getNumberOfBytesUsed();
+			filesUsed[row] = quota.getNumberOfFilesUsed();
+		}
+		if (newProjects > 0) {
+			projectsOutput.flush();
+		}
+		if (skippedProjects > 0) {
+			logger.warn("Not keeping the usage history of {} projects, as there are already {} (max-projects)",
+					skippedProjects, settings.getMaxProjects());
+		}
+		for (UsageHistoryRing ring : rings) {
+			ring.record(snapshot.getTakenAt(), bytesUsed, filesUsed, rowsByKey.size());
+		}
+	}
+
+	/**
+	 * @param resolution the interval between samples, or null for the finest one kept
+	 * @throws InvalidUsageQueryException if there is no history at that resolution
+	 */
+	Optional<UsageHistory> get(String rootVolumeName, String relativePath, Duration resolution)
+			throws IOException {
+		UsageHistoryRing ring;
+		Integer row;
+		synchronized (this) {
+			row = rowsByKey.get(keyOf(rootVolumeName, relativePath));
+			ring = rings.stream()
+				.filter(candidate -> resolution == null || candidate.getInterval().equals(resolution))
+				.findFirst()
+				.orElse(null);
+		}
+		if (ring == null) {
+			throw new InvalidUsageQueryException("No usage history is kept every " + resolution);
+		}
+		if (row == null) {
+			return Optional.empty();
+		}
+		List<Sample> samples = ring.read(row);
+		return Optional.of(new UsageHistory(rootVolumeName, relativePath, ring.getInterval().getSeconds(),
+				samples, growthInBytesPerDay(samples)));
+	}
+
+	// the slope of a least-squares line through the samples
+	static Double growthInBytesPerDay(List<Sample> samples) {
+		if (samples.size() < 2) {
+			return null;
+		}
+		long start = samples.get(0).getTime().getEpochSecond();
+		double meanTime = 0;
+		double meanBytes = 0;
+		for (Sample sample : samples) {
+			meanTime += sample.getTime().getEpochSecond() - start;
+			meanBytes += sample.getNumberOfBytesUsed();
+		}
+		meanTime /= samples.size();
+		meanBytes /= samples.size();
+		double covariance = 0;
+		double variance = 0;
+		for (Sample sample : samples) {
+			double time = sample.getTime().getEpochSecond() - start - meanTime;
+			covariance += time * (sample.getNumberOfBytesUsed() - meanBytes);
+			variance += time * time;
+		}
+		return covariance / variance * SECONDS_PER_DAY;
+	}
+
+	private static String keyOf(String rootVolumeName, String relativePath) {
+		return rootVolumeName + KEY_SEPARATOR + relativePath;
+	}
+}
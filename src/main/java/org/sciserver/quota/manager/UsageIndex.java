@@ -0,0 +1,52 @@
+/*******************************************************************************
+ * Copyright 2018 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ******************************************************************************/
+package org.sciserver.quota.manager;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+
+import org.sciserver.quota.manager.dto.Quota;
+
+/**
+ * Quotas from a single usage report, looked up by root volume name and
+ * relative path.
+ */
+final class UsageIndex {
+	private final Map<String, Map<String, Quota>> quotasByRootVolume = new HashMap<>();
+
+	private UsageIndex(Collection<Quota> quotas) {
+		for (Quota quota : quotas) {
+			quotasByRootVolume
+				.computeIfAbsent(quota.getRootVolumeName(), key -> new HashMap<>())
+				// keep the first entry, as a linear search would have
+				.putIfAbsent(quota.getRelativePath(), quota);
+		}
+	}
+
+	static UsageIndex of(Collection<Quota> quotas) {
+		return new UsageIndex(quotas);
+	}
+
+	Optional<Quota> get(String rootVolumeName, String relativePath) {
+		Map<String, Quota> quotas = quotasByRootVolume.get(rootVolumeName);
+		if (quotas == null) {
+			return Optional.empty();
+		}
+		return Optional.ofNullable(quotas.get(relativePath));
+	}
+}
@@ -0,0 +1,286 @@
+/*******************************************************************************
+ * Copyright 2018 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ******************************************************************************/
+package org.sciserver.quota.manager;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.sciserver.quota.manager.dto.Quota;
+import org.sciserver.quota.manager.dto.QuotaRemoved;
+
+/**
+ * Filters and pages through a {@link UsageSnapshot} without copying it.
+ *
+ * Since snapshots are sorted by root volume name and relative path, filters on
+ * those are turned into a range of the snapshot, found by binary search.
+ * The cursor is the (encoded) key of the last quota of the previous page.
+ * Instead of a page, a query can ask for what changed since an earlier
+ * version of the snapshot.
+ */
+final class UsageQuery {
+	private static final char CURSOR_SEPARATOR = '\0';
+
+	private final String rootVolumeName;
+	private final String keystoneId;
+	private final String relativePathPrefix;
+	private final Double minUtilization;
+	private final String cursorRootVolumeName;
+	private final String cursorRelativePath;
+	private final int limit;
+
+	/**
+	 * All parameters other than <code>limit</code> are optional.
+	 * @param limit the maximum number of quotas to return, or 0 for all of them
+	 */
+	UsageQuery(String rootVolumeName, String keystoneId, String relativePathPrefix,
+			Double minUtilization, String cursor, int limit) {
+		if (limit < 0) {
+			throw new InvalidUsageQueryException("limit cannot be negative");
+		}
+		this.rootVolumeName = rootVolumeName;
+		this.keystoneId = keystoneId;
+		this.relativePathPrefix = relativePathPrefix;
+		this.minUtilization = minUtilization;
+		this.limit = limit;
+
+		if (cursor == null) {
+			cursorRootVolumeName = null;
+			cursorRelativePath = null;
+		} else {
+			String decodedCursor;
+			try {
+				decodedCursor = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+			} catch (IllegalArgumentException e) {
+				throw new InvalidUsageQueryException("Invalid cursor " + cursor);
+			}
+			int separator = decodedCursor.indexOf(CURSOR_SEPARATOR);
+			if (separator < 0) {
+				throw new InvalidUsageQueryException("Invalid cursor " + cursor);
+			}
+			cursorRootVolumeName = decodedCursor.substring(0, separator);
+			cursorRelativePath = decodedCursor.substring(separator + 1);
+		}
+	}
+
+	Page run(UsageSnapshot snapshot) {
+		Iterable<Quota> matches = () -> new MatchingQuotas(snapshot);
+		if (limit == 0) {
+			return new Page(matches, null);
+		}
+
+		List<Quota> page = new ArrayList<>(Math.min(limit, snapshot.getQuotas().size()));
+		Iterator<Quota> it = matches.iterator();
+		while (page.size() < limit && it.hasNext()) {
+			page.add(it.next());
+		}
+		String nextCursor = it.hasNext() ? cursorFor(page.get(page.size() - 1)) : null;
+		return new Page(page, nextCursor);
+	}
+
+	/**
+	 * The matching quotas that were added, changed or removed after
+	 * <code>sinceVersion</code>. If the snapshot no longer knows what changed
+	 * since then, this is all of the matching quotas instead.
+	 */
+	Delta runSince(UsageSnapshot snapshot, long sinceVersion) {
+		// a quota whose utilization drops below the minimum would never be reported as removed
+		if (minUtilization != null || cursorRootVolumeName != null || limit != 0) {
+			throw new InvalidUsageQueryException("since cannot be combined with minUtilization, cursor or limit");
+		}
+		if (!snapshot.hasChangesSince(sinceVersion)) {
+			return new Delta(true, () -> new MatchingQuotas(snapshot), Collections.emptyList());
+		}
+		List<Quota> changed = new ArrayList<>();
+		for (Quota quota : snapshot.changedSince(sinceVersion)) {
+			if (matches(quota)) {
+				changed.add(quota);
+			}
+		}
+		List<QuotaRemoved> removed = new ArrayList<>();
+		for (QuotaRemoved quota : snapshot.removedSince(sinceVersion)) {
+			if (matchesPath(quota.getRootVolumeName(), quota.getRelativePath())) {
+				removed.add(quota);
+			}
+		}
+		return new Delta(false, changed, removed);
+	}
+
+	boolean matches(Quota quota) {
+		if (!matchesPath(quota.getRootVolumeName(), quota.getRelativePath())) {
+			return false;
+		}
+		if (minUtilization != null) {
+			if (quota.getNumberOfBytesQuota() <= 0) {
+				return false;
+			}
+			double utilization = (double) quota.getNumberOfBytesUsed() / quota.getNumberOfBytesQuota();
+			if (utilization < minUtilization) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private boolean matchesPath(String quotaRootVolumeName, String relativePath) {
+		if (rootVolumeName != null && !rootVolumeName.equals(quotaRootVolumeName)) {
+			return false;
+		}
+		if (keystoneId != null && !relativePath.equals(keystoneId)
+				&& !relativePath.startsWith(keystoneId + "/")) {
+			return false;
+		}
+		return relativePathPrefix == null || relativePath.startsWith(relativePathPrefix);
+	}
+
+	static String cursorFor(Quota quota) {
+		String key = quota.getRootVolumeName() + CURSOR_SEPARATOR + quota.getRelativePath();
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(key.getBytes(StandardCharsets.UTF_8));
+	}
+
+	// the prefix that all matching relative paths share, if any
+	private String rangePrefix() {
+		return keystoneId != null ? keystoneId : relativePathPrefix;
+	}
+
+	private int startIndex(UsageSnapshot snapshot) {
+		int start = 0;
+		if (rootVolumeName != null) {
+			String prefix = rangePrefix();
+			start = snapshot.indexOf(rootVolumeName, prefix == null ? "" : prefix);
+		}
+		if (cursorRootVolumeName != null) {
+			int afterCursor = snapshot.indexOf(cursorRootVolumeName, cursorRelativePath);
+			if (afterCursor < snapshot.getQuotas().size()) {
+				Quota atCursor = snapshot.getQuotas().get(afterCursor);
+				if (atCursor.getRootVolumeName().equals(cursorRootVolumeName)
+						&& atCursor.getRelativePath().equals(cursorRelativePath)) {
+					afterCursor++;
+				}
+			}
+			start = Math.max(start, afterCursor);
+		}
+		return start;
+	}
+
+	private boolean isPastRange(Quota quota) {
+		if (rootVolumeName == null) {
+			return false;
+		}
+		int comparison = quota.getRootVolumeName().compareTo(rootVolumeName);
+		if (comparison != 0) {
+			return comparison > 0;
+		}
+		String prefix = rangePrefix();
+		return prefix != null && !quota.getRelativePath().startsWith(prefix)
+				&& quota.getRelativePath().compareTo(prefix) > 0;
+	}
+
+	private class MatchingQuotas implements Iterator<Quota> {
+		private final List<Quota> quotas;
+		private int position;
+		private Quota next;
+
+		private MatchingQuotas(UsageSnapshot snapshot) {
+			quotas = snapshot.getQuotas();
+			position = startIndex(snapshot);
+			advance();
+		}
+
+		private void advance() {
+			next = null;
+			while (position < quotas.size()) {
+				Quota candidate = quotas.get(position++);
+				if (isPastRange(candidate)) {
+					position = quotas.size();
+					return;
+				}
+				if (matches(candidate)) {
+					next = candidate;
+					return;
+				}
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+			return next != null;
+		}
+
+		@Override
+		public Quota next() {
+			if (next == null) {
+				throw new NoSuchElementException();
+			}
+			Quota result = next;
+			advance();
+			return result;
+		}
+	}
+
+	static final class Page {
+		private final Iterable<Quota> quotas;
+		private final String nextCursor;
+
+		private Page(Iterable<Quota> quotas, String nextCursor) {
+			this.quotas = quotas;
+			this.nextCursor = nextCursor;
+		}
+
+		Iterable<Quota> getQuotas() {
+			return quotas;
+		}
+
+		/**
+		 * @return the cursor for the next page, or null if this is the last one
+		 */
+		String getNextCursor() {
+			return nextCursor;
+		}
+	}
+
+	static final class Delta {
+		private final boolean full;
+		private final Iterable<Quota> changed;
+		private final List<QuotaRemoved> removed;
+
+		private Delta(boolean full, Iterable<Quota> changed, List<QuotaRemoved> removed) {
+			this.full = full;
+			this.changed = changed;
+			this.removed = removed;
+		}
+
+		/**
+		 * @return true if the changes are not known, so {@link #getChanged()}
+		 * holds all of the matching quotas, which replace any the client has
+		 */
+		boolean isFull() {
+			return full;
+		}
+
+		Iterable<Quota> getChanged() {
+			return changed;
+		}
+
+		List<QuotaRemoved> getRemoved() {
+			return removed;
+		}
+	}
+}
@@ -0,0 +1,278 @@
+/*******************************************************************************
+ * Copyright 2018 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ******************************************************************************/
+package org.sciserver.quota.manager;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+
+import org.sciserver.quota.manager.dto.Quota;
+import org.sciserver.quota.manager.dto.QuotaRemoved;
+
+/**
+ * The result of one {@link FileSystemModule#getUsage()} call and when it was taken.
+ * Quotas are kept sorted by root volume name and then relative path.
+ *
+ * Each snapshot has a version, which only goes up when a quota is added,
+ * changed or removed. Versions are based on the time the change was seen, so
+ * they keep going up across restarts. For each quota, the snapshot knows the
+ * version it last changed in, and it keeps the most recent removals, so that
+ * it can tell a client what changed since an earlier version.
+ */
+public final class UsageSnapshot {
+	static final Comparator<Quota> ORDER = Comparator
+			.comparing(Quota::getRootVolumeName)
+			.thenComparing(Quota::getRelativePath);
+
+	private final List<Quota> quotas;
+	private final Instant takenAt;
+	private final long version;
+	// the version each quota last changed in
+	private final long[] changedIn;
+	// oldest first
+	private final List<Removal> removals;
+	// the oldest version that changes can be given since
+	private final long oldestDeltaVersion;
+
+	/**
+	 * A first snapshot, with nothing to compare it to.
+	 */
+	UsageSnapshot(Collection<Quota> quotas, Instant takenAt) {
+		this(sorted(quotas), takenAt, takenAt.toEpochMilli(), null, Collections.emptyList(),
+				takenAt.toEpochMilli());
+	}
+
+	private UsageSnapshot(List<Quota> sortedQuotas, Instant takenAt, long version, long[] changedIn,
+			List<Removal> removals, long oldestDeltaVersion) {
+		this.quotas = Collections.unmodifiableList(sortedQuotas);
+		this.takenAt = takenAt;
+		this.version = version;
+		if (changedIn == null) {
+			changedIn = new long[sortedQuotas.size()];
+			Arrays.fill(changedIn, version);
+		}
+		this.changedIn = changedIn;
+		this.removals = Collections.unmodifiableList(removals);
+		this.oldestDeltaVersion = oldestDeltaVersion;
+	}
+
+	private static List<Quota> sorted(Collection<Quota> quotas) {
+		List<Quota> sortedQuotas = new ArrayList<>(quotas);
+		sortedQuotas.sort(ORDER);
+		return sortedQuotas;
+	}
+
+	/**
+	 * The snapshot that follows this one. It has the same version as this one
+	 * if none of the quotas changed.
+	 * @param maxRemovals how many removals to remember; changes cannot be given
+	 * since versions older than the oldest one that was forgotten
+	 */
+	UsageSnapshot next(Collection<Quota> newQuotas, Instant newTakenAt, int maxRemovals) {
+		List<Quota> sortedQuotas = sorted(newQuotas);
+		long newVersion = Math.max(version + 1, newTakenAt.toEpochMilli());
+		long[] newChangedIn = new long[sortedQuotas.size()];
+		List<Removal> newRemovals = new ArrayList<>();
+		Set<QuotaKey> added = new HashSet<>();
+		boolean changed = false;
+
+		int oldIndex = 0;
+		int newIndex = 0;
+		while (oldIndex < quotas.size() || newIndex < sortedQuotas.size()) {
+			int comparison;
+			if (oldIndex == quotas.size()) {
+				comparison = 1;
+			} else if (newIndex == sortedQuotas.size()) {
+				comparison = -1;
+			} else {
+				comparison = ORDER.compare(quotas.get(oldIndex), sortedQuotas.get(newIndex));
+			}
+			if (comparison < 0) {
+				Quota removed = quotas.get(oldIndex++);
+				newRemovals.add(new Removal(
+						new QuotaRemoved(removed.getRootVolumeName(), removed.getRelativePath()), newVersion));
+				changed = true;
+			} else if (comparison > 0) {
+				Quota quota = sortedQuotas.get(newIndex);
+				added.add(new QuotaKey(quota.getRootVolumeName(), quota.getRelativePath()));
+				newChangedIn[newIndex++] = newVersion;
+				changed = true;
+			} else if (sameUsage(quotas.get(oldIndex), sortedQuotas.get(newIndex))) {
+				newChangedIn[newIndex++] = changedIn[oldIndex++];
+			} else {
+				newChangedIn[newIndex++] = newVersion;
+				oldIndex++;
+				changed = true;
+			}
+		}
+		if (!changed) {
+			return new UsageSnapshot(sortedQuotas, newTakenAt, version, newChangedIn, removals,
+					oldestDeltaVersion);
+		}
+
+		// a quota that comes back is reported as changed, so its removal is no longer needed
+		List<Removal> keptRemovals = new ArrayList<>(removals.size() + newRemovals.size());
+		for (Removal removal : removals) {
+			if (!added.contains(new QuotaKey(removal.quota.getRootVolumeName(), removal.quota.getRelativePath()))) {
+				keptRemovals.add(removal);
+			}
+		}
+		keptRemovals.addAll(newRemovals);
+		long newOldestDeltaVersion = oldestDeltaVersion;
+		if (keptRemovals.size() > maxRemovals) {
+			List<Removal> forgotten = keptRemovals.subList(0, keptRemovals.size() - maxRemovals);
+			newOldestDeltaVersion = Math.max(newOldestDeltaVersion, forgotten.get(forgotten.size() - 1).version);
+			forgotten.clear();
+		}
+		return new UsageSnapshot(sortedQuotas, newTakenAt, newVersion, newChangedIn, keptRemovals,
+				newOldestDeltaVersion);
+	}
+
+	/**
+	 * @return whether the usage and limits of two quotas are the same
+	 */
+	static boolean sameUsage(Quota a, Quota b) {
+		return a.getNumberOfBytesUsed() == b.getNumberOfBytesUsed()
+				&& a.getNumberOfBytesQuota() == b.getNumberOfBytesQuota()
+				&& a.getNumberOfFilesUsed() == b.getNumberOfFilesUsed()
+				&& a.getNumberOfFilesQuota() == b.getNumberOfFilesQuota();
+	}
+
+	public List<Quota> getQuotas() {
+		return quotas;
+	}
+
+	public long getVersion() {
+		return version;
+	}
+
+	/**
+	 * @return whether the changes since <code>sinceVersion</code> are known
+	 */
+	boolean hasChangesSince(long sinceVersion) {
+		return sinceVersion >= oldestDeltaVersion && sinceVersion <= version;
+	}
+
+	/**
+	 * @return the quotas that were added or changed after <code>sinceVersion</code>
+	 */
+	List<Quota> changedSince(long sinceVersion) {
+		List<Quota> changed = new ArrayList<>();
+		for (int i = 0; i < quotas.size(); i++) {
+			if (changedIn[i] > sinceVersion) {
+				changed.add(quotas.get(i));
+			}
+		}
+		return changed;
+	}
+
+	/**
+	 * @return the quotas that were removed after <code>sinceVersion</code>
+	 */
+	List<QuotaRemoved> removedSince(long sinceVersion) {
+		List<QuotaRemoved> removed = new ArrayList<>();
+		for (Removal removal : removals) {
+			if (removal.version > sinceVersion) {
+				removed.add(removal.quota);
+			}
+		}
+		return removed;
+	}
+
+	/**
+	 * @return the position of the first quota that sorts at or after the given
+	 *         root volume name and relative path
+	 */
+	int indexOf(String rootVolumeName, String relativePath) {
+		int low = 0;
+		int high = quotas.size();
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			Quota quota = quotas.get(middle);
+			int comparison = quota.getRootVolumeName().compareTo(rootVolumeName);
+			if (comparison == 0) {
+				comparison = quota.getRelativePath().compareTo(relativePath);
+			}
+			if (comparison < 0) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+		return low;
+	}
+
+	Optional<Quota> get(String rootVolumeName, String relativePath) {
+		int index = indexOf(rootVolumeName, relativePath);
+		if (index < quotas.size()) {
+			Quota quota = quotas.get(index);
+			if (quota.getRootVolumeName().equals(rootVolumeName) && quota.getRelativePath().equals(relativePath)) {
+				return Optional.of(quota);
+			}
+		}
+		return Optional.empty();
+	}
+
+	public Instant getTakenAt() {
+		return takenAt;
+	}
+
+	public Duration getAge() {
+		return Duration.between(takenAt, Instant.now());
+	}
+
+	private static final class Removal {
+		private final QuotaRemoved quota;
+		private final long version;
+
+		private Removal(QuotaRemoved quota, long version) {
+			this.quota = quota;
+			this.version = version;
+		}
+	}
+
+	private static final class QuotaKey {
+		private final String rootVolumeName;
+		private final String relativePath;
+
+		private QuotaKey(String rootVolumeName, String relativePath) {
+			this.rootVolumeName = rootVolumeName;
+			this.relativePath = relativePath;
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * rootVolumeName.hashCode() + relativePath.hashCode();
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof QuotaKey)) {
+				return false;
+			}
+			QuotaKey other = (QuotaKey) obj;
+			return rootVolumeName.equals(other.rootVolumeName) && relativePath.equals(other.relativePath);
+		}
+	}
+}
@@ -0,0 +1,184 @@
+/*******************************************************************************
+ * Copyright 2018 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ******************************************************************************/
+package org.sciserver.quota.manager;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
+import org.springframework.stereotype.Component;
+
+/**
+ * Holds the most recent usage report so that the controller and health checks
+ * don't each run their own.
+ *
+ * The report is refreshed in the background every <code>refresh-interval</code>.
+ * A snapshot younger than <code>ttl</code> is returned as is. An older one is
+ * still returned while a refresh runs in the background, until it is older than
+ * <code>max-staleness</code>, at which point callers wait for the refresh.
+ * Each new snapshot is also published as a {@link UsageSnapshotRefreshed} event.
+ * Snapshots are versioned, with up to <code>max-removals</code> removed quotas
+ * remembered so that clients can be told what changed since an earlier version.
+ */
+@Component
+public class UsageSnapshotCache {
+	private final Logger logger = LoggerFactory.getLogger(UsageSnapshotCache.class);
+	private final FileSystemModule fileSystemModule;
+	private final Config.UsageCache settings;
+	private final ApplicationEventPublisher eventPublisher;
+	private final ThreadPoolTaskScheduler scheduler = new ThreadPoolTaskScheduler();
+
+	private volatile UsageSnapshot snapshot;
+	private CompletableFuture<UsageSnapshot> refreshInProgress;
+	// a refresh for forced callers that came in while another one was running
+	private CompletableFuture<UsageSnapshot> followUpRefresh;
+
+	public UsageSnapshotCache(Config config, FileSystemModule fileSystemModule,
+			ApplicationEventPublisher eventPublisher) {
+		this.fileSystemModule = fileSystemModule;
+		this.settings = config.getUsageCache();
+		this.eventPublisher = eventPublisher;
+	}
+
+	@PostConstruct
+	void startRefreshing() {
+		scheduler.setPoolSize(1);
+		scheduler.setThreadNamePrefix("usage-refresh-");
+		scheduler.initialize();
+		if (!settings.getRefreshInterval().isZero()) {
+			scheduler.scheduleWithFixedDelay(this::refreshInBackground,
+					settings.getRefreshInterval().toMillis());
+		}
+	}
+
+	@PreDestroy
+	void stopRefreshing() {
+		scheduler.shutdown();
+	}
+
+	/**
+	 * @param forceRefresh if true, always wait for a new usage report, taken
+	 * after this call was made
+	 */
+	public UsageSnapshot getSnapshot(boolean forceRefresh) throws IOException {
+		UsageSnapshot current = snapshot;
+		if (!forceRefresh && current != null) {
+			Duration age = current.getAge();
+			if (age.compareTo(settings.getTtl()) < 0) {
+				return current;
+			}
+			if (age.compareTo(settings.getMaxStaleness()) < 0) {
+				refreshInBackground();
+				return current;
+			}
+		}
+		try {
+			return refresh(forceRefresh).get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for a usage report", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			if (e.getCause() instanceof UncheckedIOException) {
+				throw ((UncheckedIOException) e.getCause()).getCause();
+			}
+			throw new IOException("Could not get a usage report", e.getCause());
+		}
+	}
+
+	/**
+	 * @return the current snapshot, if it is younger than <code>ttl</code>
+	 */
+	public Optional<UsageSnapshot> getFreshSnapshot() {
+		UsageSnapshot current = snapshot;
+		if (current == null || current.getAge().compareTo(settings.getTtl()) >= 0) {
+			return Optional.empty();
+		}
+		return Optional.of(current);
+	}
+
+	private void refreshInBackground() {
+		refresh(false);
+	}
+
+	/**
+	 * Starts a refresh, or returns the one that is already running. If
+	 * <code>afterNow</code> is set, a running refresh may have read usage
+	 * from before this call, so a follow-up refresh is started once it is
+	 * done, and shared by every such caller in the meantime.
+	 */
+	private synchronized CompletableFuture<UsageSnapshot> refresh(boolean afterNow) {
+		if (refreshInProgress == null) {
+			CompletableFuture<UsageSnapshot> newRefresh = new CompletableFuture<>();
+			refreshInProgress = newRefresh;
+			scheduler.execute(() -> runRefresh(newRefresh));
+			return newRefresh;
+		}
+		if (!afterNow) {
+			return refreshInProgress;
+		}
+		if (followUpRefresh == null) {
+			followUpRefresh = new CompletableFuture<>();
+		}
+		return followUpRefresh;
+	}
+
+	private void runRefresh(CompletableFuture<UsageSnapshot> result) {
+		UsageSnapshot newSnapshot;
+		try {
+			Instant startedAt = Instant.now();
+			UsageSnapshot previous = snapshot;
+			newSnapshot = previous == null ?
+					new UsageSnapshot(fileSystemModule.getUsage(), startedAt) :
+					previous.next(fileSystemModule.getUsage(), startedAt, settings.getMaxRemovals());
+			snapshot = newSnapshot;
+			logger.debug("Refreshed usage report with {} entries in {}, version {}",
+					newSnapshot.getQuotas().size(), newSnapshot.getAge(), newSnapshot.getVersion());
+			result.complete(newSnapshot);
+		} catch (Exception e) {
+			logger.error("Error refreshing usage report", e);
+			result.completeExceptionally(e);
+			return;
+		} finally {
+			synchronized (this) {
+				refreshInProgress = followUpRefresh;
+				followUpRefresh = null;
+				if (refreshInProgress != null) {
+					CompletableFuture<UsageSnapshot> followUp = refreshInProgress;
+					scheduler.execute(() -> runRefresh(followUp));
+				}
+			}
+		}
+		try {
+			eventPublisher.publishEvent(new UsageSnapshotRefreshed(this, newSnapshot));
+		} catch (RuntimeException e) {
+			logger.error("Error handling refreshed usage report", e);
+		}
+	}
+}
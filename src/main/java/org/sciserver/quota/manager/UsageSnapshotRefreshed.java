@@ -0,0 +1,37 @@
+/*******************************************************************************
+ * Copyright 2018 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ******************************************************************************/
+package org.sciserver.quota.manager;
+
+import org.springframework.context.ApplicationEvent;
+
+/**
+ * Published by {@link UsageSnapshotCache} on its refresh thread after each new
+ * usage report, so that listeners don't have to poll for it.
+ */
+public class UsageSnapshotRefreshed extends ApplicationEvent {
+	private static final long serialVersionUID = 2983349311532815093L;
+
+	private final transient UsageSnapshot snapshot;
+
+	UsageSnapshotRefreshed(Object source, UsageSnapshot snapshot) {
+		super(source);
+		this.snapshot = snapshot;
+	}
+
+	public UsageSnapshot getSnapshot() {
+		return snapshot;
+	}
+}
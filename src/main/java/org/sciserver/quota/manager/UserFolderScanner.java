@@ -0,0 +1,215 @@
+/*******************************************************************************
+ * Copyright 2018 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ******************************************************************************/
+package org.sciserver.quota.manager;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+import javax.annotation.PostConstruct;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+/**
+ * Lists the user folders (depth 1) and user volume folders (depth 2) of root
+ * volumes, leaving out the trash.
+ *
+ * Listing a directory is remembered along with its modification time, which
+ * changes whenever an entry is added to or removed from it. As long as the
+ * modification time stays the same, the remembered listing is used instead of
+ * reading the directory again, so a scan of an unchanged root volume only
+ * stats each user folder. Listings are saved to <code>folder-cache-file</code>,
+ * if set, so this also holds for the first scan after a restart.
+ */
+@Component
+class UserFolderScanner {
+	private static final int CACHE_FILE_VERSION = 1;
+	/* a directory modified this recently may be modified again within the
+	 * same timestamp, so its listing isn't trusted on the next scan
+	 */
+	private static final long MODIFICATION_TIME_GRANULARITY_MILLIS = 2000;
+
+	private final Logger logger = LoggerFactory.getLogger(UserFolderScanner.class);
+	private final Optional<Path> cacheFile;
+	private final Map<String, Listing> listingsByPath = new ConcurrentHashMap<>();
+	private volatile boolean changedSinceSave;
+
+	UserFolderScanner(Config config) {
+		this.cacheFile = Optional.ofNullable(config.getFolderCacheFile()).map(Paths::get);
+	}
+
+	@PostConstruct
+	void loadCache() {
+		if (!cacheFile.isPresent() || !Files.exists(cacheFile.get())) {
+			return;
+		}
+		try (DataInputStream input = new DataInputStream(new BufferedInputStream(
+				Files.newInputStream(cacheFile.get())))) {
+			if (input.readInt() != CACHE_FILE_VERSION) {
+				logger.info("Ignoring {}, which was written by a different version", cacheFile.get());
+				return;
+			}
+			int directories = input.readInt();
+			for (int i = 0; i < directories; i++) {
+				String path = input.readUTF();
+				long modifiedTime = input.readLong();
+				int entries = input.readInt();
+				List<String> names = new ArrayList<>(entries);
+				for (int j = 0; j < entries; j++) {
+					names.add(input.readUTF());
+				}
+				listingsByPath.put(path, new Listing(modifiedTime, names));
+			}
+			logger.info("Loaded listings of {} folders from {}", listingsByPath.size(), cacheFile.get());
+		} catch (IOException e) {
+			logger.warn("Could not read {}, folders will all be listed again", cacheFile.get(), e);
+			listingsByPath.clear();
+		}
+	}
+
+	/**
+	 * @return each user folder, followed by the folders (and files) in it
+	 */
+	List<Path> list(Path rootVolume) throws IOException {
+		long scanStartedAt = System.currentTimeMillis();
+		List<Path> users = listDirectory(rootVolume, scanStartedAt).stream()
+			.filter(name -> !name.equals(VolumeTrash.TRASH_DIRECTORY))
+			.map(rootVolume::resolve)
+			.collect(Collectors.toList());
+		forgetRemovedUsers(rootVolume, users);
+
+		List<List<Path>> foldersOfUsers = users.parallelStream()
+			.map(user -> {
+				List<Path> folders = new ArrayList<>();
+				folders.add(user);
+				try {
+					listDirectory(user, scanStartedAt).forEach(name -> folders.add(user.resolve(name)));
+				} catch (NoSuchFileException e) {
+					// deleted since it was listed
+				} catch (IOException e) {
+					logger.warn("Could not list {}", user, e);
+				}
+				return folders;
+			})
+			.collect(Collectors.toList());
+
+		List<Path> folders = new ArrayList<>();
+		foldersOfUsers.forEach(folders::addAll);
+		return folders;
+	}
+
+	/**
+	 * Saves the listings, if anything changed since they were last saved.
+	 * The file is written next to the cache file and renamed over it.
+	 */
+	synchronized void saveCache() {
+		if (!cacheFile.isPresent() || !changedSinceSave) {
+			return;
+		}
+		changedSinceSave = false;
+		Path newCacheFile = cacheFile.get().resolveSibling(cacheFile.get().getFileName() + ".new");
+		try {
+			try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(
+					Files.newOutputStream(newCacheFile)))) {
+				Map<String, Listing> listings = new HashMap<>(listingsByPath);
+				output.writeInt(CACHE_FILE_VERSION);
+				output.writeInt(listings.size());
+				for (Map.Entry<String, Listing> listing : listings.entrySet()) {
+					output.writeUTF(listing.getKey());
+					output.writeLong(listing.getValue().modifiedTime);
+					output.writeInt(listing.getValue().names.size());
+					for (String name : listing.getValue().names) {
+						output.writeUTF(name);
+					}
+				}
+			}
+			Files.move(newCacheFile, cacheFile.get(),
+					StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			changedSinceSave = true;
+			logger.warn("Could not save folder listings to {}", cacheFile.get(), e);
+		}
+	}
+
+	private void forgetRemovedUsers(Path rootVolume, List<Path> users) {
+		String prefix = rootVolume.toString() + "/";
+		Set<String> present = new HashSet<>();
+		users.forEach(user -> present.add(user.toString()));
+		if (listingsByPath.keySet().removeIf(key -> key.startsWith(prefix)
+				&& key.indexOf('/', prefix.length()) < 0 && !present.contains(key))) {
+			changedSinceSave = true;
+		}
+	}
+
+	// the names in a directory, or none if it is a file
+	private List<String> listDirectory(Path directory, long scanStartedAt) throws IOException {
+		BasicFileAttributes attributes = Files.readAttributes(directory, BasicFileAttributes.class);
+		String key = directory.toString();
+		if (!attributes.isDirectory()) {
+			if (listingsByPath.remove(key) != null) {
+				changedSinceSave = true;
+			}
+			return Collections.emptyList();
+		}
+		long modifiedTime = attributes.lastModifiedTime().toMillis();
+		Listing listing = listingsByPath.get(key);
+		if (listing != null && listing.modifiedTime == modifiedTime) {
+			return listing.names;
+		}
+
+		List<String> names = new ArrayList<>();
+		try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+			entries.forEach(entry -> names.add(entry.getFileName().toString()));
+		}
+		// a listing with an impossible time is never used
+		long trustedModifiedTime = scanStartedAt - modifiedTime < MODIFICATION_TIME_GRANULARITY_MILLIS ?
+				Long.MIN_VALUE : modifiedTime;
+		listingsByPath.put(key, new Listing(trustedModifiedTime, Collections.unmodifiableList(names)));
+		changedSinceSave = true;
+		return names;
+	}
+
+	private static final class Listing {
+		private final long modifiedTime;
+		private final List<String> names;
+
+		private Listing(long modifiedTime, List<String> names) {
+			this.modifiedTime = modifiedTime;
+			this.names = names;
+		}
+	}
+}
@@ -0,0 +1,230 @@
+/*******************************************************************************
+ * Copyright 2018 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ******************************************************************************/
+package org.sciserver.quota.manager;
+
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.sciserver.quota.manager.RootVolumeIndex.RootVolumeEntry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+/**
+ * Deletes volumes without making anyone wait for it.
+ *
+ * A volume is first renamed into the trash directory of its root volume, which
+ * is on the same file system and so takes no time. The trash is then deleted
+ * in the background by a pool of <code>delete-threads</code> threads, which
+ * split up the work directory by directory. Deletion can be throttled to
+ * <code>max-deletes-per-second</code> so that it does not starve users of I/O.
+ * Anything left in the trash when the service stopped is deleted on startup.
+ */
+@Component
+public class VolumeTrash {
+	// in each root volume; skipped when looking for user folders
+	public static final String TRASH_DIRECTORY = ".trash";
+
+	private final Logger logger = LoggerFactory.getLogger(VolumeTrash.class);
+	private final Config config;
+	private final RootVolumeIndex rootVolumes;
+	private final ForkJoinPool deletePool;
+	private final Throttle throttle;
+	// completes once everything left in the trash by the last run is deleted
+	private volatile CompletableFuture<Void> leftoversDeleted = CompletableFuture.completedFuture(null);
+
+	public VolumeTrash(Config config) {
+		this.config = config;
+		this.rootVolumes = RootVolumeIndex.of(config);
+		this.deletePool = new ForkJoinPool(Math.max(1, config.getTrash().getDeleteThreads()));
+		this.throttle = new Throttle(config.getTrash().getMaxDeletesPerSecond());
+	}
+
+	@PostConstruct
+	void emptyLeftoverTrash() {
+		List<CompletableFuture<Void>> deletions = new ArrayList<>();
+		config.getRootVolumes().values().forEach(rootVolume -> {
+			Path trash = Paths.get(rootVolume.getPathOnFileServer(), TRASH_DIRECTORY);
+			if (!Files.isDirectory(trash)) {
+				return;
+			}
+			try (DirectoryStream<Path> leftovers = Files.newDirectoryStream(trash)) {
+				for (Path leftover : leftovers) {
+					logger.info("Deleting {}, left in the trash since the last run", leftover);
+					deletions.add(delete(leftover));
+				}
+			} catch (IOException e) {
+				logger.error("Error listing {}", trash, e);
+				CompletableFuture<Void> listingFailed = new CompletableFuture<>();
+				listingFailed.completeExceptionally(e);
+				deletions.add(listingFailed);
+			}
+		});
+		leftoversDeleted = CompletableFuture.allOf(deletions.toArray(new CompletableFuture<?>[0]));
+	}
+
+	/**
+	 * @return completes once everything that was in the trash at startup is
+	 * deleted, or exceptionally if some of it could not be
+	 */
+	public CompletableFuture<Void> leftoversDeleted() {
+		return leftoversDeleted;
+	}
+
+	@PreDestroy
+	void stop() {
+		// whatever is not deleted yet will be on the next startup
+		deletePool.shutdownNow();
+	}
+
+	/**
+	 * Moves a volume into the trash, or if that is not possible, deletes it
+	 * where it is. Either way, deletion happens in the background.
+	 * @return completes once the volume's files are all deleted
+	 */
+	public CompletableFuture<Void> moveToTrash(Path volume) {
+		if (!Files.exists(volume, LinkOption.NOFOLLOW_LINKS)) {
+			return CompletableFuture.completedFuture(null);
+		}
+		Path toDelete = volume;
+		RootVolumeEntry rootVolume = rootVolumes.find(volume.toAbsolutePath().toString());
+		if (rootVolume != null) {
+			Path trash = Paths.get(config.getRootVolumes().get(rootVolume.getName()).getPathOnFileServer(),
+					TRASH_DIRECTORY);
+			Path inTrash = trash.resolve(volume.getFileName() + "-" + UUID.randomUUID());
+			try {
+				Files.createDirectories(trash);
+				Files.move(volume, inTrash, StandardCopyOption.ATOMIC_MOVE);
+				toDelete = inTrash;
+				logger.info("Moved {} to {}", volume, inTrash);
+			} catch (AtomicMoveNotSupportedException e) {
+				logger.warn("{} is not on the same file system as {}, deleting it in place", volume, trash);
+			} catch (IOException e) {
+				logger.warn("Could not move {} to {}, deleting it in place", volume, trash, e);
+			}
+		}
+		return delete(toDelete);
+	}
+
+	private CompletableFuture<Void> delete(Path path) {
+		DeleteTree task = new DeleteTree(path);
+		CompletableFuture<Void> result = new CompletableFuture<>();
+		deletePool.execute(() -> {
+			try {
+				task.invoke();
+				logger.info("Deleted {}", path);
+				result.complete(null);
+			} catch (RuntimeException e) {
+				logger.error("Error deleting {}", path, e);
+				result.completeExceptionally(e.getCause() != null ? e.getCause() : e);
+			}
+		});
+		return result;
+	}
+
+	/**
+	 * Deletes the files in a directory, and forks a task per subdirectory.
+	 * Directories (and symbolic links to them) are deleted once they are empty.
+	 */
+	private class DeleteTree extends RecursiveAction {
+		private static final long serialVersionUID = 3591284263001652849L;
+		private final Path path;
+
+		DeleteTree(Path path) {
+			this.path = path;
+		}
+
+		@Override
+		protected void compute() {
+			try {
+				if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+					List<DeleteTree> subdirectories = new ArrayList<>();
+					try (DirectoryStream<Path> entries = Files.newDirectoryStream(path)) {
+						for (Path entry : entries) {
+							if (Files.isDirectory(entry, LinkOption.NOFOLLOW_LINKS)) {
+								subdirectories.add(new DeleteTree(entry));
+							} else {
+								throttle.acquire();
+								Files.deleteIfExists(entry);
+							}
+						}
+					}
+					invokeAll(subdirectories);
+				}
+				throttle.acquire();
+				Files.deleteIfExists(path);
+			} catch (NoSuchFileException e) {
+				// already gone
+			} catch (IOException e) {
+				throw new TrashException(e);
+			}
+		}
+	}
+
+	/**
+	 * Spaces out deletions evenly to at most a given rate.
+	 */
+	private static class Throttle {
+		private final long nanosPerPermit;
+		private long nextPermitAt = System.nanoTime();
+
+		Throttle(int permitsPerSecond) {
+			this.nanosPerPermit = permitsPerSecond > 0 ? TimeUnit.SECONDS.toNanos(1) / permitsPerSecond : 0;
+		}
+
+		void acquire() {
+			if (nanosPerPermit == 0) {
+				return;
+			}
+			long waitUntil;
+			synchronized (this) {
+				long now = System.nanoTime();
+				waitUntil = Math.max(nextPermitAt, now);
+				nextPermitAt = waitUntil + nanosPerPermit;
+			}
+			long wait = waitUntil - System.nanoTime();
+			if (wait > 0) {
+				LockSupport.parkNanos(wait);
+			}
+		}
+	}
+
+	private static class TrashException extends RuntimeException {
+		private static final long serialVersionUID = -4260359146730470826L;
+
+		TrashException(IOException cause) {
+			super(cause);
+		}
+	}
+}
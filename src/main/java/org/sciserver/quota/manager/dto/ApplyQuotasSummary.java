@@ -0,0 +1,69 @@
+/*******************************************************************************
+ * Copyright 2018 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ******************************************************************************/
+package org.sciserver.quota.manager.dto;
+
+import java.util.List;
+
+public class ApplyQuotasSummary {
+	private final long foldersChecked;
+	private final long quotasAlreadyCorrect;
+	private final List<QuotaChange> changes;
+
+	public ApplyQuotasSummary(long foldersChecked, long quotasAlreadyCorrect, List<QuotaChange> changes) {
+		this.foldersChecked = foldersChecked;
+		this.quotasAlreadyCorrect = quotasAlreadyCorrect;
+		this.changes = changes;
+	}
+	public long getFoldersChecked() {
+		return foldersChecked;
+	}
+	public long getQuotasAlreadyCorrect() {
+		return quotasAlreadyCorrect;
+	}
+	public long getQuotasChanged() {
+		return changes.size();
+	}
+	public List<QuotaChange> getChanges() {
+		return changes;
+	}
+	@Override
+	public String toString() {
+		return "ApplyQuotasSummary [foldersChecked=" + foldersChecked + ", quotasAlreadyCorrect="
+				+ quotasAlreadyCorrect + ", quotasChanged=" + changes.size() + "]";
+	}
+
+	public static class QuotaChange {
+		private final String path;
+		// null if the folder had no quota at all
+		private final Long previousNumberOfBytes;
+		private final long numberOfBytes;
+
+		public QuotaChange(String path, Long previousNumberOfBytes, long numberOfBytes) {
+			this.path = path;
+			this.previousNumberOfBytes = previousNumberOfBytes;
+			this.numberOfBytes = numberOfBytes;
+		}
+		public String getPath() {
+			return path;
+		}
+		public Long getPreviousNumberOfBytes() {
+			return previousNumberOfBytes;
+		}
+		public long getNumberOfBytes() {
+			return numberOfBytes;
+		}
+	}
+}
@@ -0,0 +1,32 @@
+/*******************************************************************************
+ * Copyright 2018 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ******************************************************************************/
+package org.sciserver.quota.manager.dto;
+
+public class QuotaRemoved {
+	private final String rootVolumeName;
+	private final String relativePath;
+
+	public QuotaRemoved(String rootVolumeName, String relativePath) {
+		this.rootVolumeName = rootVolumeName;
+		this.relativePath = relativePath;
+	}
+	public String getRootVolumeName() {
+		return rootVolumeName;
+	}
+	public String getRelativePath() {
+		return relativePath;
+	}
+}
@@ -0,0 +1,49 @@
+/*******************************************************************************
+ * Copyright 2018 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ******************************************************************************/
+package org.sciserver.quota.manager.dto;
+
+public class ThresholdCrossed {
+	private final String rootVolumeName;
+	private final String relativePath;
+	private final double threshold;
+	// true if the utilization rose to or above the threshold, false if it fell below it
+	private final boolean above;
+	private final double utilization;
+
+	public ThresholdCrossed(String rootVolumeName, String relativePath, double threshold, boolean above,
+			double utilization) {
+		this.rootVolumeName = rootVolumeName;
+		this.relativePath = relativePath;
+		this.threshold = threshold;
+		this.above = above;
+		this.utilization = utilization;
+	}
+	public String getRootVolumeName() {
+		return rootVolumeName;
+	}
+	public String getRelativePath() {
+		return relativePath;
+	}
+	public double getThreshold() {
+		return threshold;
+	}
+	public boolean isAbove() {
+		return above;
+	}
+	public double getUtilization() {
+		return utilization;
+	}
+}
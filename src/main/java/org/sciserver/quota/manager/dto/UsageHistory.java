@@ -0,0 +1,78 @@
+/*******************************************************************************
+ * Copyright 2018 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ******************************************************************************/
+package org.sciserver.quota.manager.dto;
+
+import java.time.Instant;
+import java.util.List;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonInclude.Include;
+
+public class UsageHistory {
+	private final String rootVolumeName;
+	private final String relativePath;
+	private final long intervalSeconds;
+	private final List<Sample> samples;
+	// null if there are fewer than two samples
+	private final Double growthInBytesPerDay;
+
+	public UsageHistory(String rootVolumeName, String relativePath, long intervalSeconds,
+			List<Sample> samples, Double growthInBytesPerDay) {
+		this.rootVolumeName = rootVolumeName;
+		this.relativePath = relativePath;
+		this.intervalSeconds = intervalSeconds;
+		this.samples = samples;
+		this.growthInBytesPerDay = growthInBytesPerDay;
+	}
+	public String getRootVolumeName() {
+		return rootVolumeName;
+	}
+	public String getRelativePath() {
+		return relativePath;
+	}
+	public long getIntervalSeconds() {
+		return intervalSeconds;
+	}
+	public List<Sample> getSamples() {
+		return samples;
+	}
+	@JsonInclude(Include.NON_NULL)
+	public Double getGrowthInBytesPerDay() {
+		return growthInBytesPerDay;
+	}
+
+	public static class Sample {
+		// the start of the interval the sample was taken in
+		private final Instant time;
+		private final long numberOfBytesUsed;
+		private final long numberOfFilesUsed;
+
+		public Sample(Instant time, long numberOfBytesUsed, long numberOfFilesUsed) {
+			this.time = time;
+			this.numberOfBytesUsed = numberOfBytesUsed;
+			this.numberOfFilesUsed = numberOfFilesUsed;
+		}
+		public Instant getTime() {
+			return time;
+		}
+		public long getNumberOfBytesUsed() {
+			return numberOfBytesUsed;
+		}
+		public long getNumberOfFilesUsed() {
+			return numberOfFilesUsed;
+		}
+	}
+}
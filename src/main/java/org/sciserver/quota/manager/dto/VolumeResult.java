@@ -0,0 +1,58 @@
+/*******************************************************************************
+ * Copyright 2018 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ******************************************************************************/
+package org.sciserver.quota.manager.dto;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonInclude.Include;
+
+/**
+ * What happened to one volume of a batch request
+ */
+public class VolumeResult {
+	private final String rootVolumeName;
+	private final String relativePath;
+	private final boolean success;
+	private final String error;
+
+	private VolumeResult(VolumeDTO volume, boolean success, String error) {
+		this.rootVolumeName = volume.getRootVolumeName();
+		this.relativePath = volume.getRelativePath();
+		this.success = success;
+		this.error = error;
+	}
+
+	public static VolumeResult succeeded(VolumeDTO volume) {
+		return new VolumeResult(volume, true, null);
+	}
+
+	public static VolumeResult failed(VolumeDTO volume, String error) {
+		return new VolumeResult(volume, false, error);
+	}
+
+	public String getRootVolumeName() {
+		return rootVolumeName;
+	}
+	public String getRelativePath() {
+		return relativePath;
+	}
+	public boolean isSuccess() {
+		return success;
+	}
+	@JsonInclude(Include.NON_NULL)
+	public String getError() {
+		return error;
+	}
+}
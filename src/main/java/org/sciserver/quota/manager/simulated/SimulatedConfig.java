@@ -0,0 +1,109 @@
+/*******************************************************************************
+ * Copyright 2018 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ******************************************************************************/
+package org.sciserver.quota.manager.simulated;
+
+import java.time.Duration;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.stereotype.Component;
+
+@Component
+@Configuration
+@ConfigurationProperties(prefix="org.sciserver.quota.manager.simulated")
+public class SimulatedConfig {
+	private Duration setQuotaLatency = Duration.ZERO;
+	private Duration removeLatency = Duration.ZERO;
+	private Duration reportLatency = Duration.ZERO;
+	// the fraction of quota changes and removals that fail
+	private double failureRate;
+	// quota changes that can be waiting at once before more are turned away, or 0 for no limit
+	private int queueCapacity;
+	private int seedUsers;
+	private int seedVolumesPerUser;
+	private boolean createSeedFolders = true;
+
+	public Duration getSetQuotaLatency() {
+		return setQuotaLatency;
+	}
+
+	public void setSetQuotaLatency(Duration setQuotaLatency) {
+		this.setQuotaLatency = setQuotaLatency;
+	}
+
+	public Duration getRemoveLatency() {
+		return removeLatency;
+	}
+
+	public void setRemoveLatency(Duration removeLatency) {
+		this.removeLatency = removeLatency;
+	}
+
+	public Duration getReportLatency() {
+		return reportLatency;
+	}
+
+	public void setReportLatency(Duration reportLatency) {
+		this.reportLatency = reportLatency;
+	}
+
+	public double getFailureRate() {
+		return failureRate;
+	}
+
+	public void setFailureRate(double failureRate) {
+		this.failureRate = failureRate;
+	}
+
+	public int getQueueCapacity() {
+		return queueCapacity;
+	}
+
+	public void setQueueCapacity(int queueCapacity) {
+		this.queueCapacity = queueCapacity;
+	}
+
+	/**
+	 * @return how many users to create in each root volume at startup
+	 */
+	public int getSeedUsers() {
+		return seedUsers;
+	}
+
+	public void setSeedUsers(int seedUsers) {
+		this.seedUsers = seedUsers;
+	}
+
+	public int getSeedVolumesPerUser() {
+		return seedVolumesPerUser;
+	}
+
+	public void setSeedVolumesPerUser(int seedVolumesPerUser) {
+		this.seedVolumesPerUser = seedVolumesPerUser;
+	}
+
+	/**
+	 * @return whether seeded users and volumes also get folders, which
+	 * applying quotas and the health check look for
+	 */
+	public boolean isCreateSeedFolders() {
+		return createSeedFolders;
+	}
+
+	public void setCreateSeedFolders(boolean createSeedFolders) {
+		this.createSeedFolders = createSeedFolders;
+	}
+}
@@ -0,0 +1,259 @@
+/*******************************************************************************
+ * Copyright 2018 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ******************************************************************************/
+package org.sciserver.quota.manager.simulated;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.SplittableRandom;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.sciserver.quota.manager.Config;
+import org.sciserver.quota.manager.FileSystemModule;
+import org.sciserver.quota.manager.Priority;
+import org.sciserver.quota.manager.QueueFullException;
+import org.sciserver.quota.manager.RootVolumeIndex;
+import org.sciserver.quota.manager.RootVolumeIndex.RootVolumeEntry;
+import org.sciserver.quota.manager.VolumeTrash;
+import org.sciserver.quota.manager.dto.Quota;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.annotation.Profile;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+/**
+ * Keeps quotas in memory instead of on a file system, so that the service can
+ * be load tested without root access or an XFS mount. Each kind of operation
+ * takes a configurable time (once per call, batches included), and a fraction
+ * of the quota changes can be made to fail. Quota changes can also be limited
+ * to <code>queue-capacity</code> waiting at once, like the lanes of the XFS
+ * module.
+ *
+ * Users and volumes can be seeded at startup in every root volume, with
+ * quotas from the configuration and usage picked at random (the same on
+ * every run).
+ */
+@Component
+@Profile("simulated")
+public class SimulatedFileSystemModule implements FileSystemModule {
+	private static final String SEED_USER_FORMAT = "user%06d";
+	private static final String SEED_VOLUME_FORMAT = "volume%d";
+	private static final long SEED_MAX_FILES = 10000;
+
+	private final Logger logger = LoggerFactory.getLogger(SimulatedFileSystemModule.class);
+	private final Config config;
+	private final SimulatedConfig simulatedConfig;
+	private final RootVolumeIndex rootVolumes;
+	private final VolumeTrash volumeTrash;
+	private final Map<String, Project> projectsByPath = new ConcurrentHashMap<>();
+	private final AtomicInteger queuedChanges = new AtomicInteger();
+	private final ScheduledExecutorService scheduler = new ScheduledThreadPoolExecutor(1,
+			new CustomizableThreadFactory("simulated-"));
+
+	public SimulatedFileSystemModule(Config config, SimulatedConfig simulatedConfig, VolumeTrash volumeTrash) {
+		this.config = config;
+		this.simulatedConfig = simulatedConfig;
+		this.rootVolumes = RootVolumeIndex.of(config);
+		this.volumeTrash = volumeTrash;
+	}
+
+	@PostConstruct
+	void seed() {
+		if (simulatedConfig.getSeedUsers() <= 0) {
+			return;
+		}
+		config.getRootVolumes().forEach((name, rootVolume) -> {
+			Path rootVolumePath = Paths.get(rootVolume.getPathOnFileServer());
+			IntStream.range(0, simulatedConfig.getSeedUsers()).parallel().forEach(user -> {
+				SplittableRandom random = new SplittableRandom(user);
+				Path userFolder = rootVolumePath.resolve(String.format(SEED_USER_FORMAT, user));
+				seedFolder(userFolder, rootVolume.getPerUserQuota(), random);
+				for (int volume = 0; volume < simulatedConfig.getSeedVolumesPerUser(); volume++) {
+					seedFolder(userFolder.resolve(String.format(SEED_VOLUME_FORMAT, volume)),
+							rootVolume.getPerVolumeQuota(), random);
+				}
+			});
+		});
+		logger.info("Seeded {} simulated projects", projectsByPath.size());
+	}
+
+	private void seedFolder(Path folder, long quota, SplittableRandom random) {
+		if (simulatedConfig.isCreateSeedFolders()) {
+			try {
+				Files.createDirectories(folder);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+		if (quota > 0) {
+			projectsByPath.put(folder.toString(),
+					new Project(quota, (long) (random.nextDouble() * quota), random.nextLong(SEED_MAX_FILES)));
+		}
+	}
+
+	@PreDestroy
+	void stop() {
+		scheduler.shutdownNow();
+	}
+
+	@Override
+	public CompletableFuture<Void> setQuota(String filePath, long numberOfBytes) {
+		return setQuotas(Collections.singletonMap(filePath, numberOfBytes));
+	}
+
+	@Override
+	public CompletableFuture<Void> setQuotas(Map<String, Long> numberOfBytesByFilePath, Priority priority) {
+		return CompletableFuture.allOf(setEachQuota(numberOfBytesByFilePath, priority).values()
+				.toArray(new CompletableFuture<?>[0]));
+	}
+
+	// all changes take the same time here, whatever their priority
+	@Override
+	public Map<String, CompletableFuture<Void>> setEachQuota(Map<String, Long> numberOfBytesByFilePath,
+			Priority priority) {
+		int changes = numberOfBytesByFilePath.size();
+		int capacity = simulatedConfig.getQueueCapacity();
+		if (queuedChanges.addAndGet(changes) > capacity && capacity > 0) {
+			queuedChanges.addAndGet(-changes);
+			throw new QueueFullException("Too many simulated quota changes are waiting");
+		}
+		Map<String, CompletableFuture<Void>> results = laterEach(simulatedConfig.getSetQuotaLatency(),
+				numberOfBytesByFilePath.keySet(),
+				filePath -> projectsByPath.compute(filePath, (path, project) -> project == null ?
+						new Project(numberOfBytesByFilePath.get(filePath), 0, 0) :
+						project.withQuota(numberOfBytesByFilePath.get(filePath))));
+		results.values().forEach(result -> result.whenComplete((r, e) -> queuedChanges.decrementAndGet()));
+		return results;
+	}
+
+	@Override
+	public CompletableFuture<Void> removeUserVolumeWithQuota(String filePath) {
+		return removeUserVolumesWithQuota(Collections.singletonList(filePath));
+	}
+
+	/**
+	 * Like the XFS module, this completes once the folders have been moved
+	 * to the trash, not once they are deleted.
+	 */
+	@Override
+	public CompletableFuture<Void> removeUserVolumesWithQuota(Collection<String> filePaths) {
+		return later(simulatedConfig.getRemoveLatency(), filePaths, filePath -> {
+			projectsByPath.remove(filePath);
+			volumeTrash.moveToTrash(Paths.get(filePath));
+		});
+	}
+
+	@Override
+	public Collection<Quota> getUsage() throws IOException {
+		try {
+			Thread.sleep(simulatedConfig.getReportLatency().toMillis());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while simulating a usage report", e);
+		}
+		List<Quota> quotas = new ArrayList<>(projectsByPath.size());
+		projectsByPath.forEach((fullPath, project) -> {
+			RootVolumeEntry rootVolume = rootVolumes.find(fullPath);
+			if (rootVolume != null) {
+				quotas.add(toQuota(rootVolume, fullPath, project));
+			}
+		});
+		return quotas;
+	}
+
+	private static Quota toQuota(RootVolumeEntry rootVolume, String fullPath, Project project) {
+		return new Quota(rootVolume.getName(), rootVolume.relativePath(fullPath),
+				project.filesUsed, 0, project.bytesUsed, project.bytesQuota);
+	}
+
+	@Override
+	public Optional<Quota> getUsage(String filePath) {
+		Project project = projectsByPath.get(filePath);
+		RootVolumeEntry rootVolume = rootVolumes.find(filePath);
+		if (project == null || rootVolume == null) {
+			return Optional.empty();
+		}
+		return Optional.of(toQuota(rootVolume, filePath, project));
+	}
+
+	private interface Change {
+		void apply(String filePath) throws IOException;
+	}
+
+	private CompletableFuture<Void> later(Duration latency, Collection<String> filePaths, Change change) {
+		return CompletableFuture.allOf(laterEach(latency, filePaths, change).values()
+				.toArray(new CompletableFuture<?>[0]));
+	}
+
+	// applies the change to each path after the latency, failing some of them at random
+	private Map<String, CompletableFuture<Void>> laterEach(Duration latency, Collection<String> filePaths,
+			Change change) {
+		Map<String, CompletableFuture<Void>> results = filePaths.stream().distinct()
+				.collect(Collectors.toMap(Function.identity(), filePath -> new CompletableFuture<>(),
+						(a, b) -> a, LinkedHashMap::new));
+		scheduler.schedule(() -> results.forEach((filePath, result) -> {
+			try {
+				if (ThreadLocalRandom.current().nextDouble() < simulatedConfig.getFailureRate()) {
+					throw new IOException("Simulated failure on " + filePath);
+				}
+				change.apply(filePath);
+				result.complete(null);
+			} catch (IOException | RuntimeException e) {
+				result.completeExceptionally(e);
+			}
+		}), latency.toNanos(), TimeUnit.NANOSECONDS);
+		return results;
+	}
+
+	private static final class Project {
+		private final long bytesQuota;
+		private final long bytesUsed;
+		private final long filesUsed;
+
+		private Project(long bytesQuota, long bytesUsed, long filesUsed) {
+			this.bytesQuota = bytesQuota;
+			this.bytesUsed = bytesUsed;
+			this.filesUsed = filesUsed;
+		}
+
+		private Project withQuota(long newBytesQuota) {
+			return new Project(newBytesQuota, bytesUsed, filesUsed);
+		}
+	}
+}
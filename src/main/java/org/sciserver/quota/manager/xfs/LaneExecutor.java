@@ -0,0 +1,195 @@
+/*******************************************************************************
+ * Copyright 2018 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ******************************************************************************/
+package org.sciserver.quota.manager.xfs;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+import org.sciserver.quota.manager.Priority;
+import org.sciserver.quota.manager.QueueFullException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs tasks one at a time on a single thread, from a bounded queue (a lane)
+ * per {@link Priority}. The next task always comes from the most urgent lane
+ * that has one, so interactive changes only ever wait for the task that is
+ * running, however many bulk tasks are queued.
+ *
+ * A task given to a full lane is rejected with a {@link QueueFullException}.
+ * The time tasks wait in each lane is recorded as
+ * <code>quota.manager.xfs.edit.wait</code>.
+ */
+class LaneExecutor implements PrioritizedExecutor {
+	private final Logger logger = LoggerFactory.getLogger(LaneExecutor.class);
+
+	private final Map<Priority, Lane> lanes = new EnumMap<>(Priority.class);
+	private final Thread worker;
+	private volatile boolean running;
+	private boolean shutdown;
+
+	/**
+	 * @param capacities the most tasks that can wait in each lane
+	 */
+	LaneExecutor(String threadName, Map<Priority, Integer> capacities, MeterRegistry meterRegistry) {
+		for (Priority priority : Priority.values()) {
+			lanes.put(priority, new Lane(priority, capacities.get(priority), meterRegistry));
+		}
+		worker = new Thread(this::work, threadName);
+		worker.setDaemon(true);
+		worker.start();
+	}
+
+	@Override
+	public void execute(Priority priority, Runnable task, Consumer<CancellationException> onDropped) {
+		Lane lane = lanes.get(priority);
+		synchronized (this) {
+			if (shutdown) {
+				throw new RejectedExecutionException("The executor has been shut down");
+			}
+			if (lane.tasks.size() >= lane.capacity) {
+				lane.rejected.increment();
+				throw new QueueFullException(String.format("There are already %d %s changes waiting",
+						lane.tasks.size(), priority.name().toLowerCase()));
+			}
+			lane.tasks.addLast(new QueuedTask(task, onDropped, System.nanoTime()));
+			notifyAll();
+		}
+	}
+
+	synchronized int getQueued(Priority priority) {
+		return lanes.get(priority).tasks.size();
+	}
+
+	int getActiveCount() {
+		return running ? 1 : 0;
+	}
+
+	/**
+	 * Stops once the running task (if any) is done. Queued tasks are dropped,
+	 * and told so through their <code>onDropped</code> callbacks.
+	 */
+	void shutdown() {
+		List<QueuedTask> dropped = new ArrayList<>();
+		synchronized (this) {
+			shutdown = true;
+			for (Lane lane : lanes.values()) {
+				dropped.addAll(lane.tasks);
+				lane.tasks.clear();
+			}
+			notifyAll();
+		}
+		for (QueuedTask task : dropped) {
+			try {
+				task.onDropped.accept(new CancellationException("The executor was shut down before the task ran"));
+			} catch (RuntimeException e) {
+				logger.error("Error dropping a queued task", e);
+			}
+		}
+		try {
+			worker.join(TimeUnit.SECONDS.toMillis(10));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void work() {
+		while (true) {
+			Lane lane;
+			QueuedTask task;
+			synchronized (this) {
+				while (!shutdown && nextLane() == null) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+				if (shutdown) {
+					return;
+				}
+				lane = nextLane();
+				task = lane.tasks.removeFirst();
+				running = true;
+			}
+			lane.waitTimer.record(System.nanoTime() - task.queuedAt, TimeUnit.NANOSECONDS);
+			try {
+				task.task.run();
+			} catch (RuntimeException | Error e) {
+				logger.error("Error running {} task", lane.priority.name().toLowerCase(), e);
+			} finally {
+				running = false;
+			}
+		}
+	}
+
+	// the most urgent lane with a task waiting, if there is one
+	private Lane nextLane() {
+		for (Lane lane : lanes.values()) {
+			if (!lane.tasks.isEmpty()) {
+				return lane;
+			}
+		}
+		return null;
+	}
+
+	private static final class Lane {
+		private final Priority priority;
+		private final int capacity;
+		private final Deque<QueuedTask> tasks = new ArrayDeque<>();
+		private final Timer waitTimer;
+		private final Counter rejected;
+
+		private Lane(Priority priority, int capacity, MeterRegistry meterRegistry) {
+			this.priority = priority;
+			this.capacity = capacity;
+			String laneName = priority.name().toLowerCase();
+			waitTimer = Timer.builder("quota.manager.xfs.edit.wait")
+					.description("Time quota changes waited for the edit thread")
+					.tag("lane", laneName)
+					.publishPercentileHistogram()
+					.register(meterRegistry);
+			rejected = Counter.builder("quota.manager.xfs.edit.rejected")
+					.description("Quota changes turned away because their lane was full")
+					.tag("lane", laneName)
+					.register(meterRegistry);
+		}
+	}
+
+	private static final class QueuedTask {
+		private final Runnable task;
+		private final Consumer<CancellationException> onDropped;
+		private final long queuedAt;
+
+		private QueuedTask(Runnable task, Consumer<CancellationException> onDropped, long queuedAt) {
+			this.task = task;
+			this.onDropped = onDropped;
+			this.queuedAt = queuedAt;
+		}
+	}
+}
@@ -0,0 +1,36 @@
+/*******************************************************************************
+ * Copyright 2018 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ******************************************************************************/
+package org.sciserver.quota.manager.xfs;
+
+import java.util.concurrent.CancellationException;
+import java.util.function.Consumer;
+
+import org.sciserver.quota.manager.Priority;
+import org.sciserver.quota.manager.QueueFullException;
+
+@FunctionalInterface
+interface PrioritizedExecutor {
+	/**
+	 * @param onDropped called instead of the task if it is dropped without
+	 * being run, e.g. because the executor is shut down
+	 * @throws QueueFullException if there are too many tasks waiting with this priority
+	 */
+	void execute(Priority priority, Runnable task, Consumer<CancellationException> onDropped);
+
+	default void execute(Priority priority, Runnable task) {
+		execute(priority, task, dropped -> { });
+	}
+}
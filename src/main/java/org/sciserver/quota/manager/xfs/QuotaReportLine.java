@@ -15,35 +15,68 @@
  ******************************************************************************/
 package org.sciserver.quota.manager.xfs;
 
+/**
+ * One line of xfs_quota report output. Instances are reused by
+ * {@link QuotaReportParser} for every line, so consumers must copy
+ * out what they need.
+ */
 class QuotaReportLine {
 	/* Project ID   Used   Soft   Hard Warn/Grace
 	 * Project IDs are set to simply be the full path
+	 *
+	 * When blocks and inodes are reported together (report -bi), the
+	 * used/soft/hard/warn/grace columns are repeated for inodes, giving
+	 * a second section.
 	 */
-	private final String fullPath;
-	private final long used;
-	private final long hardLimit;
+	static final int MAX_SECTIONS = 2;
 
-	QuotaReportLine(String line) {
-		String[] lineComponents = line.split("\\s+");
-		fullPath = lineComponents[0];
-		used = Long.parseLong(lineComponents[1]);
-		hardLimit = Long.parseLong(lineComponents[3]);
+	private String fullPath;
+	private final long[] used = new long[MAX_SECTIONS];
+	private final long[] hardLimit = new long[MAX_SECTIONS];
+	private int sections;
+
+	void reset(String fullPath) {
+		this.fullPath = fullPath;
+		sections = 0;
+	}
+
+	void addSection(long sectionUsed, long sectionHardLimit) {
+		used[sections] = sectionUsed;
+		hardLimit[sections] = sectionHardLimit;
+		sections++;
 	}
 
 	String getFullPath() {
 		return fullPath;
 	}
 
+	int getSections() {
+		return sections;
+	}
+
 	long getUsed() {
-		return used;
+		return used[0];
 	}
 
 	long getHardLimit() {
-		return hardLimit;
+		return hardLimit[0];
+	}
+
+	long getUsed(int section) {
+		return used[section];
+	}
+
+	long getHardLimit(int section) {
+		return hardLimit[section];
 	}
 
 	@Override
 	public String toString() {
-		return "QuotaReportLine [fullPath=" + fullPath + ", used=" + used + ", hardLimit=" + hardLimit + "]";
+		StringBuilder description = new StringBuilder("QuotaReportLine [fullPath=").append(fullPath);
+		for (int section = 0; section < sections; section++) {
+			description.append(", used=").append(used[section])
+				.append(", hardLimit=").append(hardLimit[section]);
+		}
+		return description.append("]").toString();
 	}
 }
@@ -0,0 +1,197 @@
+/*******************************************************************************
+ * Copyright 2018 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ******************************************************************************/
+package org.sciserver.quota.manager.xfs;
+
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Parses xfs_quota report output as it is written by the process, without
+ * building a String per line or using regular expressions. Numbers are read
+ * straight from the bytes, and the only allocation per line is the project
+ * path. Each line is handed to the consumer in the same reused
+ * {@link QuotaReportLine}.
+ *
+ * Each section of a line is "used soft hard warn grace", where the grace
+ * column is bracketed and may contain spaces, e.g. "[6 days]".
+ */
+class QuotaReportParser extends OutputStream {
+	private final Logger logger = LoggerFactory.getLogger(QuotaReportParser.class);
+
+	// output from xfs_quota is prefixed by this string
+	private static final String XFS_QUOTA_LOG_PREFIX = "[xfs_quota]";
+	private static final int COLUMNS_PER_SECTION = 5;
+	private static final int USED_COLUMN = 0;
+	private static final int HARD_LIMIT_COLUMN = 2;
+
+	private final int sections;
+	private final Consumer<QuotaReportLine> consumer;
+	private final QuotaReportLine reportLine = new QuotaReportLine();
+	private byte[] buffer = new byte[256];
+	private int length;
+	private long parseNanos;
+
+	/**
+	 * @param sections 1 for a report of blocks or inodes, 2 for both
+	 */
+	QuotaReportParser(int sections, Consumer<QuotaReportLine> consumer) {
+		if (sections < 1 || sections > QuotaReportLine.MAX_SECTIONS) {
+			throw new IllegalArgumentException("Unsupported number of sections: " + sections);
+		}
+		this.sections = sections;
+		this.consumer = consumer;
+	}
+
+	@Override
+	public void write(int b) {
+		if (b == '\n') {
+			endOfLine();
+		} else if (b != '\r') {
+			if (length == buffer.length) {
+				buffer = Arrays.copyOf(buffer, buffer.length * 2);
+			}
+			buffer[length++] = (byte) b;
+		}
+	}
+
+	@Override
+	public void write(byte[] bytes, int offset, int count) {
+		long start = System.nanoTime();
+		for (int i = offset; i < offset + count; i++) {
+			write(bytes[i]);
+		}
+		parseNanos += System.nanoTime() - start;
+	}
+
+	/**
+	 * @return the time spent parsing (and in the consumer) so far, not
+	 * counting output written a byte at a time
+	 */
+	long getParseNanos() {
+		return parseNanos;
+	}
+
+	// called by the PumpStreamHandler once the process is done, so handle a final unterminated line
+	@Override
+	public void flush() {
+		if (length > 0) {
+			endOfLine();
+		}
+	}
+
+	@Override
+	public void close() {
+		flush();
+	}
+
+	private void endOfLine() {
+		if (logger.isTraceEnabled()) {
+			logger.trace("{} {}", XFS_QUOTA_LOG_PREFIX, new String(buffer, 0, length, Charset.defaultCharset()));
+		}
+		try {
+			if (parse(buffer, length, reportLine)) {
+				consumer.accept(reportLine);
+			}
+		} catch (NumberFormatException e) {
+			logger.warn("Skipping unexpected xfs_quota report line: {}",
+					new String(buffer, 0, length, Charset.defaultCharset()));
+		}
+		length = 0;
+	}
+
+	/**
+	 * @return false if the line was blank
+	 */
+	boolean parse(byte[] line, int lineLength, QuotaReportLine into) {
+		int position = skipWhitespace(line, 0, lineLength);
+		if (position == lineLength) {
+			return false;
+		}
+		int pathEnd = tokenEnd(line, position, lineLength);
+		into.reset(new String(line, position, pathEnd - position, Charset.defaultCharset()));
+		position = pathEnd;
+
+		for (int section = 0; section < sections; section++) {
+			long used = 0;
+			long hardLimit = 0;
+			for (int column = 0; column < COLUMNS_PER_SECTION; column++) {
+				int start = skipWhitespace(line, position, lineLength);
+				if (start == lineLength) {
+					// the trailing warn/grace columns aren't needed
+					if (column > HARD_LIMIT_COLUMN) {
+						break;
+					}
+					throw new NumberFormatException("Missing columns");
+				}
+				position = tokenEnd(line, start, lineLength);
+				if (column == USED_COLUMN) {
+					used = parseLong(line, start, position);
+				} else if (column == HARD_LIMIT_COLUMN) {
+					hardLimit = parseLong(line, start, position);
+				}
+			}
+			into.addSection(used, hardLimit);
+		}
+		return true;
+	}
+
+	private static int skipWhitespace(byte[] line, int position, int lineLength) {
+		while (position < lineLength && isWhitespace(line[position])) {
+			position++;
+		}
+		return position;
+	}
+
+	// the end of the token at start, treating a [bracketed group] as one token
+	private static int tokenEnd(byte[] line, int start, int lineLength) {
+		int position = start;
+		if (line[position] == '[') {
+			while (position < lineLength && line[position] != ']') {
+				position++;
+			}
+			return Math.min(position + 1, lineLength);
+		}
+		while (position < lineLength && !isWhitespace(line[position])) {
+			position++;
+		}
+		return position;
+	}
+
+	private static boolean isWhitespace(byte b) {
+		return b == ' ' || b == '\t';
+	}
+
+	private static long parseLong(byte[] line, int start, int end) {
+		if (start == end) {
+			throw new NumberFormatException("Empty number");
+		}
+		long value = 0;
+		for (int i = start; i < end; i++) {
+			int digit = line[i] - '0';
+			if (digit < 0 || digit > 9) {
+				throw new NumberFormatException(
+						"Not a number: " + new String(line, start, end - start, Charset.defaultCharset()));
+			}
+			value = value * 10 + digit;
+		}
+		return value;
+	}
+}
@@ -15,6 +15,8 @@
  ******************************************************************************/
 package org.sciserver.quota.manager.xfs;
 
+import java.time.Duration;
+
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.stereotype.Component;
@@ -24,6 +26,17 @@ import org.springframework.stereotype.Component;
 @ConfigurationProperties(prefix="org.sciserver.quota.manager.xfs")
 public class XFSConfig {
 	private String mountedFileSystems;
+	private String projectsFile = "/etc/projects";
+	private String projidFile = "/etc/projid";
+	private String projectsJournalFile;
+	private int compactAfterRemovals = 100;
+	private Duration compactionInterval = Duration.ofMinutes(1);
+	private boolean combinedReports = true;
+	private int reportThreads = 4;
+	private int interactiveQueueCapacity = 10000;
+	private int bulkQueueCapacity = 1000;
+	private int bulkBatchSize = 500;
+	private Duration commandTimeout = Duration.ofMinutes(1);
 
 	public String getMountedFileSystems() {
 		return mountedFileSystems;
@@ -32,4 +45,110 @@ public class XFSConfig {
 	public void setMountedFileSystems(String mountedFileSystems) {
 		this.mountedFileSystems = mountedFileSystems;
 	}
+
+	public String getProjectsFile() {
+		return projectsFile;
+	}
+
+	public void setProjectsFile(String projectsFile) {
+		this.projectsFile = projectsFile;
+	}
+
+	public String getProjidFile() {
+		return projidFile;
+	}
+
+	public void setProjidFile(String projidFile) {
+		this.projidFile = projidFile;
+	}
+
+	/**
+	 * @return where removed projects are journaled, or null for the projects
+	 * file with ".journal" appended
+	 */
+	public String getProjectsJournalFile() {
+		return projectsJournalFile;
+	}
+
+	public void setProjectsJournalFile(String projectsJournalFile) {
+		this.projectsJournalFile = projectsJournalFile;
+	}
+
+	public int getCompactAfterRemovals() {
+		return compactAfterRemovals;
+	}
+
+	public void setCompactAfterRemovals(int compactAfterRemovals) {
+		this.compactAfterRemovals = compactAfterRemovals;
+	}
+
+	public Duration getCompactionInterval() {
+		return compactionInterval;
+	}
+
+	public void setCompactionInterval(Duration compactionInterval) {
+		this.compactionInterval = compactionInterval;
+	}
+
+	public boolean isCombinedReports() {
+		return combinedReports;
+	}
+
+	public void setCombinedReports(boolean combinedReports) {
+		this.combinedReports = combinedReports;
+	}
+
+	public int getReportThreads() {
+		return reportThreads;
+	}
+
+	public void setReportThreads(int reportThreads) {
+		this.reportThreads = reportThreads;
+	}
+
+	/**
+	 * @return how many batches of interactive changes can wait for the edit thread
+	 */
+	public int getInteractiveQueueCapacity() {
+		return interactiveQueueCapacity;
+	}
+
+	public void setInteractiveQueueCapacity(int interactiveQueueCapacity) {
+		this.interactiveQueueCapacity = interactiveQueueCapacity;
+	}
+
+	/**
+	 * @return how many batches of bulk changes can wait for the edit thread
+	 */
+	public int getBulkQueueCapacity() {
+		return bulkQueueCapacity;
+	}
+
+	public void setBulkQueueCapacity(int bulkQueueCapacity) {
+		this.bulkQueueCapacity = bulkQueueCapacity;
+	}
+
+	/**
+	 * @return the most bulk changes applied in one go, between which
+	 * interactive changes can be made
+	 */
+	public int getBulkBatchSize() {
+		return bulkBatchSize;
+	}
+
+	public void setBulkBatchSize(int bulkBatchSize) {
+		this.bulkBatchSize = bulkBatchSize;
+	}
+
+	/**
+	 * @return how long an xfs_quota session may take to answer a batch of
+	 * commands before it is stopped and the batch fails
+	 */
+	public Duration getCommandTimeout() {
+		return commandTimeout;
+	}
+
+	public void setCommandTimeout(Duration commandTimeout) {
+		this.commandTimeout = commandTimeout;
+	}
 }
@@ -15,42 +15,53 @@
  ******************************************************************************/
 package org.sciserver.quota.manager.xfs;
 
-import java.io.File;
 import java.io.IOException;
-import java.io.Reader;
 import java.nio.charset.Charset;
-import java.nio.file.Files;
-import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
+import javax.annotation.PostConstruct;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
 import org.apache.commons.exec.CommandLine;
 import org.apache.commons.exec.DefaultExecutor;
-import org.apache.commons.exec.ExecuteStreamHandler;
 import org.apache.commons.exec.LogOutputStream;
 import org.apache.commons.exec.PumpStreamHandler;
-import org.apache.commons.io.FileUtils;
 import org.sciserver.quota.manager.Config;
 import org.sciserver.quota.manager.FileSystemModule;
+import org.sciserver.quota.manager.Priority;
+import org.sciserver.quota.manager.QueueFullException;
+import org.sciserver.quota.manager.RootVolumeIndex;
+import org.sciserver.quota.manager.RootVolumeIndex.RootVolumeEntry;
+import org.sciserver.quota.manager.VolumeTrash;
 import org.sciserver.quota.manager.dto.Quota;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.context.annotation.Profile;
-import org.springframework.scheduling.annotation.Async;
+import org.springframework.core.task.AsyncTaskExecutor;
 import org.springframework.stereotype.Component;
-import org.springframework.util.StringUtils;
-
-import com.fasterxml.jackson.databind.MappingIterator;
-import com.fasterxml.jackson.dataformat.csv.CsvMapper;
-import com.fasterxml.jackson.dataformat.csv.CsvSchema;
 
 @Component
 @Profile("xfs")
@@ -61,169 +72,498 @@ public class XFSFileSystemModule implements FileSystemModule {
 	private static final String XFS_QUOTA_LOG_PREFIX = "[xfs_quota]";
 	private static final String XFS_QUOTA_COMMAND = "xfs_quota";
 
-	/* Note that despite this limit, the java code in this class
-	 * assumes that we can index on the project id, i.e., that
-	 * the project id's are less then Integer.MAX_VALUE (2^31)
-	 */
-	private static final long MAX_PROJECT_ID = 4294967296L - 2;
-	private static final long MIN_PROJECT_ID = 1;
-	private static final Path PROJECTS_FILE = Paths.get("/etc/projects");
-	private static final Path PROJIDS_FILE = Paths.get("/etc/projid");
-
-	private final Config config;
+	private final RootVolumeIndex rootVolumes;
 	private final XFSConfig xfsConfig;
-	private final DefaultExecutor quotaExecutor;
+	private final XFSProjectRegistry projectRegistry;
+	private final XFSQuotaCommandChannel quotaChannel;
+	private final PrioritizedExecutor editProjectsExecutor;
+	private final AsyncTaskExecutor reportExecutor;
+	private final VolumeTrash volumeTrash;
 
-	public XFSFileSystemModule(Config config, XFSConfig xfsConfig) {
-		this.config = config;
+	/* Quota changes that have not been applied yet, by path. A newer change
+	 * for a path replaces the pending one, and removals cancel it. Each batch
+	 * of new entries gets a task on the (single-threaded) edit executor, in
+	 * the lane for its priority, which only applies the entries that are still
+	 * pending. Bulk batches are split up so that interactive changes can be
+	 * made in between.
+	 */
+	private final Map<String, PendingLimit> pendingLimits = new HashMap<>();
+	// the last limit this module applied to each path
+	private final Map<String, Long> appliedLimits = new ConcurrentHashMap<>();
+	private final Counter limitsApplied;
+	private final Counter limitsCoalesced;
+	private final Counter limitsSkipped;
+	private final Counter limitsFailed;
+	private final MeterRegistry meterRegistry;
+	private final Timer aggregateTimer;
+
+	public XFSFileSystemModule(Config config, XFSConfig xfsConfig, XFSProjectRegistry projectRegistry,
+			XFSQuotaCommandChannel quotaChannel,
+			@Qualifier("xfsEditProjectsExecutor") PrioritizedExecutor editProjectsExecutor,
+			@Qualifier("xfsReportExecutor") AsyncTaskExecutor reportExecutor,
+			VolumeTrash volumeTrash, MeterRegistry meterRegistry) {
+		this.rootVolumes = RootVolumeIndex.of(config);
 		this.xfsConfig = xfsConfig;
-		quotaExecutor = new DefaultExecutor();
-		quotaExecutor.setStreamHandler(
-				new PumpStreamHandler(new LogOutputStream() {
-					@Override
-					protected void processLine(String line, int logLevel) {
-						logger.info("{} {}", XFS_QUOTA_LOG_PREFIX, line);
+		this.projectRegistry = projectRegistry;
+		this.quotaChannel = quotaChannel;
+		this.editProjectsExecutor = editProjectsExecutor;
+		this.reportExecutor = reportExecutor;
+		this.volumeTrash = volumeTrash;
+		limitsApplied = limitCounter(meterRegistry, "applied");
+		limitsCoalesced = limitCounter(meterRegistry, "coalesced");
+		limitsSkipped = limitCounter(meterRegistry, "skipped");
+		limitsFailed = limitCounter(meterRegistry, "failed");
+		this.meterRegistry = meterRegistry;
+		aggregateTimer = Timer.builder("quota.manager.xfs.report.aggregate")
+				.description("Matching reported projects up with root volumes")
+				.register(meterRegistry);
+	}
+
+	/* Ids held before a restart belong to volumes that were still being
+	 * deleted. What was left of them is in the trash, so the ids can be
+	 * reused once it is emptied. If that fails, they stay held, and the
+	 * leftovers are retried on the next start.
+	 */
+	@PostConstruct
+	void releaseIdsOfLeftoverTrash() {
+		Set<Long> heldIds = projectRegistry.getHeldIds();
+		if (heldIds.isEmpty()) {
+			return;
+		}
+		logger.info("Holding {} XFS project ids until the leftover trash is deleted", heldIds.size());
+		volumeTrash.leftoversDeleted().whenComplete((ignored, error) -> {
+			if (error == null) {
+				projectRegistry.releaseIds(heldIds);
+			} else {
+				logger.warn("Not all of the leftover trash was deleted, keeping {} XFS project ids held",
+						heldIds.size());
+			}
+		});
+	}
+
+	private static Counter limitCounter(MeterRegistry meterRegistry, String result) {
+		return Counter.builder("quota.manager.xfs.limits")
+				.description("Quota changes requested, by what became of them")
+				.tag("result", result)
+				.register(meterRegistry);
+	}
+
+	@Override
+	public CompletableFuture<Void> setQuota(String filePath, long numberOfBytes) {
+		return enqueue(Collections.singletonMap(filePath, numberOfBytes), false, Priority.INTERACTIVE)
+				.get(filePath);
+	}
+
+	/**
+	 * Unlike {@link #setQuota}, these limits are applied even if this module
+	 * applied the same ones before, since the caller has presumably seen that
+	 * they are no longer in place. New projects are added to the project files
+	 * in one write (per <code>bulk-batch-size</code> changes, for bulk changes),
+	 * and the xfs_quota commands are sent together.
+	 */
+	@Override
+	public CompletableFuture<Void> setQuotas(Map<String, Long> numberOfBytesByFilePath, Priority priority) {
+		return CompletableFuture.allOf(setEachQuota(numberOfBytesByFilePath, priority).values()
+				.toArray(new CompletableFuture<?>[0]));
+	}
+
+	@Override
+	public Map<String, CompletableFuture<Void>> setEachQuota(Map<String, Long> numberOfBytesByFilePath,
+			Priority priority) {
+		logger.info("Setting {} quotas ({})", numberOfBytesByFilePath.size(), priority.name().toLowerCase());
+		return enqueue(numberOfBytesByFilePath, true, priority);
+	}
+
+	/**
+	 * @return for each path, completes once it has the latest limit requested
+	 * for it, which may be from a later call if it replaced this one
+	 * @throws QueueFullException if the lane for <code>priority</code> is full,
+	 * in which case some of the changes may still have been queued
+	 */
+	private Map<String, CompletableFuture<Void>> enqueue(Map<String, Long> numberOfBytesByFilePath,
+			boolean force, Priority priority) {
+		Map<String, PendingLimit> batch = new LinkedHashMap<>();
+		// changes moved to a more urgent lane, as they were before
+		Map<String, PendingLimit> promotedFrom = new HashMap<>();
+		Map<String, CompletableFuture<Void>> results = new LinkedHashMap<>();
+		synchronized (pendingLimits) {
+			numberOfBytesByFilePath.forEach((filePath, numberOfBytes) -> {
+				PendingLimit pending = pendingLimits.get(filePath);
+				if (pending != null) {
+					/* a more urgent change is queued again in its own lane, and
+					 * applied by whichever task gets to it first
+					 */
+					if (priority.compareTo(pending.priority) < 0) {
+						promotedFrom.put(filePath,
+								new PendingLimit(pending.numberOfBytes, pending.force, pending.priority));
+						pending.priority = priority;
+						batch.put(filePath, pending);
 					}
-				},
-				new LogOutputStream() {
-					@Override
-					protected void processLine(String line, int logLevel) {
-						logger.error("{} {}", XFS_QUOTA_LOG_PREFIX, line);
+					logger.debug("Replacing pending quota of {} bytes on {} with {} bytes",
+							pending.numberOfBytes, filePath, numberOfBytes);
+					pending.numberOfBytes = numberOfBytes;
+					pending.force |= force;
+					limitsCoalesced.increment();
+					results.put(filePath, pending.result);
+					return;
+				}
+				PendingLimit newLimit = new PendingLimit(numberOfBytes, force, priority);
+				pendingLimits.put(filePath, newLimit);
+				batch.put(filePath, newLimit);
+				results.put(filePath, newLimit.result);
+			});
+			if (!batch.isEmpty()) {
+				submit(batch, priority, promotedFrom);
+			}
+		}
+		return results;
+	}
+
+	// called with the lock on pendingLimits held
+	private void submit(Map<String, PendingLimit> batch, Priority priority, Map<String, PendingLimit> promotedFrom) {
+		int chunkSize = priority == Priority.BULK ? Math.max(1, xfsConfig.getBulkBatchSize()) : batch.size();
+		List<Map<String, PendingLimit>> chunks = new ArrayList<>();
+		for (Map.Entry<String, PendingLimit> entry : batch.entrySet()) {
+			if (chunks.isEmpty() || chunks.get(chunks.size() - 1).size() == chunkSize) {
+				chunks.add(new LinkedHashMap<>());
+			}
+			chunks.get(chunks.size() - 1).put(entry.getKey(), entry.getValue());
+		}
+		for (int i = 0; i < chunks.size(); i++) {
+			Map<String, PendingLimit> chunk = chunks.get(i);
+			try {
+				editProjectsExecutor.execute(priority, () -> applyPending(chunk),
+						dropped -> dropPending(chunk, dropped));
+			} catch (QueueFullException e) {
+				/* changes that were already queued in another lane go back to how
+				 * they were, to be applied by the task in that lane, and only the
+				 * new ones are dropped
+				 */
+				chunks.subList(i, chunks.size()).forEach(rejected -> rejected.forEach((filePath, limit) -> {
+					PendingLimit previous = promotedFrom.get(filePath);
+					if (previous != null) {
+						limit.numberOfBytes = previous.numberOfBytes;
+						limit.force = previous.force;
+						limit.priority = previous.priority;
+					} else if (pendingLimits.remove(filePath, limit)) {
+						limit.result.completeExceptionally(e);
 					}
 				}));
+				throw e;
+			}
+		}
 	}
 
-	@Override
-	@Async("xfsEditProjectsExecutor")
-	public void setQuota(String filePath, long numberOfBytes) {
+	// fails the changes of a batch that will never be applied
+	private void dropPending(Map<String, PendingLimit> batch, CancellationException reason) {
+		synchronized (pendingLimits) {
+			batch.forEach((filePath, limit) -> {
+				if (pendingLimits.remove(filePath, limit)) {
+					limit.result.completeExceptionally(reason);
+				}
+			});
+		}
+	}
+
+	private void applyPending(Map<String, PendingLimit> batch) {
+		Map<String, PendingLimit> stillPending = new LinkedHashMap<>();
+		synchronized (pendingLimits) {
+			batch.forEach((filePath, limit) -> {
+				// not there if a removal cancelled it
+				if (pendingLimits.remove(filePath, limit)) {
+					stillPending.put(filePath, limit);
+				}
+			});
+		}
+		if (stillPending.isEmpty()) {
+			return;
+		}
 		try {
-			Map<String, Long> pathsToProjectIds = getXFSProjects();
+			applyQuotas(stillPending);
+		} catch (Exception e) {
+			stillPending.keySet().forEach(appliedLimits::remove);
+			limitsFailed.increment(stillPending.size());
+			logger.error(
+					"Error setting quotas on {}",
+					stillPending.keySet(),
+					e);
+			stillPending.values().forEach(limit -> limit.result.completeExceptionally(e));
+		}
+	}
 
-			long projectId;
-			if (pathsToProjectIds.containsKey(filePath)) {
+	private void applyQuotas(Map<String, PendingLimit> limits) throws IOException {
+		Map<String, Long> numberOfBytesByFilePath = new LinkedHashMap<>();
+		Set<String> newProjects = new HashSet<>();
+		for (Map.Entry<String, PendingLimit> limit : limits.entrySet()) {
+			String filePath = limit.getKey();
+			long numberOfBytes = limit.getValue().numberOfBytes;
+			if (!projectRegistry.getProjectId(filePath).isPresent()) {
+				newProjects.add(filePath);
+			} else if (!limit.getValue().force
+					&& Long.valueOf(numberOfBytes).equals(appliedLimits.get(filePath))) {
+				logger.debug("Quota on {} is already {} bytes", filePath, numberOfBytes);
+				limitsSkipped.increment();
+				limit.getValue().result.complete(null);
+				continue;
+			}
+			numberOfBytesByFilePath.put(filePath, numberOfBytes);
+		}
+		if (numberOfBytesByFilePath.isEmpty()) {
+			return;
+		}
+
+		Map<String, Long> projectIds = projectRegistry.addProjects(numberOfBytesByFilePath.keySet());
+		Map<String, List<String>> commandsByPath = new LinkedHashMap<>();
+		numberOfBytesByFilePath.forEach((filePath, numberOfBytes) -> {
+			long projectId = projectIds.get(filePath);
+			List<String> commands = new ArrayList<>(2);
+			if (newProjects.contains(filePath)) {
 				logger.info(
-						"Updating quota on {} (with project id={}) to {} bytes",
+						"Creating new XFS project {} on {} with {} bytes",
+						projectId,
 						filePath,
-						pathsToProjectIds.get(filePath),
 						numberOfBytes);
-				projectId = pathsToProjectIds.get(filePath);
+				// the path is given explicitly since the xfs_quota session
+				// may have read /etc/projects before this project was added
+				commands.add(String.format("project -s -p %s %d", quoteIfNeeded(filePath), projectId));
 			} else {
-				projectId = firstFreeId(pathsToProjectIds);
 				logger.info(
-						"Creating new XFS project {} on {} with {} bytes",
-						projectId,
+						"Updating quota on {} (with project id={}) to {} bytes",
 						filePath,
+						projectId,
 						numberOfBytes);
-				Files.write(
-						PROJECTS_FILE,
-						String.format("%d:%s\n", projectId, filePath).getBytes(),
-						StandardOpenOption.APPEND);
-				Files.write(
-						PROJIDS_FILE,
-						String.format("%s:%d\n", filePath, projectId).getBytes(),
-						StandardOpenOption.APPEND);
-
-				quotaExecutor.execute(new CommandLine("sudo")
-						.addArgument(XFS_QUOTA_COMMAND)
-						.addArgument("-xc")
-						.addArgument(String.format("project -s %d", projectId), false));
 			}
+			commands.add(String.format("limit -p bhard=%d %d", numberOfBytes, projectId));
+			commandsByPath.put(filePath, commands);
+		});
 
-			quotaExecutor.execute(new CommandLine("sudo")
-					.addArgument(XFS_QUOTA_COMMAND)
-					.addArgument("-xc")
-					.addArgument(String.format("limit -p bhard=%d %d", numberOfBytes, projectId), false)
-					.addArguments(splitIfPossible(xfsConfig.getMountedFileSystems())));
+		Map<String, String> errors = quotaChannel.executeAll(commandsByPath);
+		numberOfBytesByFilePath.forEach((filePath, numberOfBytes) -> {
+			String error = errors.get(filePath);
+			if (error != null) {
+				appliedLimits.remove(filePath);
+				limitsFailed.increment();
+				logger.error("Error setting quota {} on {}: {}", numberOfBytes, filePath, error);
+				limits.get(filePath).result.completeExceptionally(new IOException(error));
+			} else {
+				appliedLimits.put(filePath, numberOfBytes);
+				limitsApplied.increment();
+				limits.get(filePath).result.complete(null);
+			}
+		});
+	}
 
-		} catch (Exception e) {
-			logger.error(
-					"Error setting quota {} on {}",
-					numberOfBytes,
-					filePath,
-					e);
-		}
+	@Override
+	public CompletableFuture<Void> removeUserVolumeWithQuota(String filePath) {
+		return removeUserVolumesWithQuota(Collections.singletonList(filePath));
 	}
 
 	@Override
-	@Async("xfsEditProjectsExecutor")
-	public void removeUserVolumeWithQuota(String filePath) {
+	public CompletableFuture<Void> removeUserVolumesWithQuota(Collection<String> filePaths) {
+		List<String> batch = new ArrayList<>(filePaths);
+		CompletableFuture<Void> result = new CompletableFuture<>();
+		synchronized (pendingLimits) {
+			editProjectsExecutor.execute(Priority.INTERACTIVE, () -> removeNow(batch, result),
+					result::completeExceptionally);
+			for (String filePath : batch) {
+				PendingLimit cancelled = pendingLimits.remove(filePath);
+				if (cancelled != null) {
+					limitsCoalesced.increment();
+					cancelled.result.completeExceptionally(new CancellationException(
+							"The quota on " + filePath + " was removed before it was set"));
+				}
+			}
+		}
+		return result;
+	}
+
+	private void removeNow(List<String> filePaths, CompletableFuture<Void> result) {
+		Map<String, String> errors;
 		try {
-			logger.info("Removing {} from XFS project files", filePath);
-
-			Map<String, Long> pathsToProjectIds = getXFSProjects();
-			quotaExecutor.execute(new CommandLine("sudo")
-					.addArgument(XFS_QUOTA_COMMAND)
-					.addArgument("-xc")
-					.addArgument(String.format(
-							"limit -p bhard=%d %d", 0, pathsToProjectIds.get(filePath)), false)
-					.addArguments(splitIfPossible(xfsConfig.getMountedFileSystems())));
-
-			List<String> projidFileLines = FileUtils.readLines(
-					PROJIDS_FILE.toFile(), Charset.defaultCharset());
-			List<String> updatedProjidFileLines = projidFileLines
-					 .stream()
-					 .filter(s -> !s.contains(filePath + ":"))
-					 .collect(Collectors.toList());
-			FileUtils.writeLines(PROJIDS_FILE.toFile(), updatedProjidFileLines);
-
-			List<String> projectFileLines = FileUtils.readLines(
-					PROJECTS_FILE.toFile(), Charset.defaultCharset());
-			List<String> updatedProjectFileLines = projectFileLines
-					 .stream()
-					 .filter(s -> !s.contains(":" + filePath))
-					 .collect(Collectors.toList());
-			FileUtils.writeLines(PROJECTS_FILE.toFile(), updatedProjectFileLines);
-
-			FileUtils.deleteDirectory(new File(filePath));
+			logger.info("Removing {} from XFS project files", filePaths);
+			filePaths.forEach(appliedLimits::remove);
+
+			Map<String, List<String>> commandsByPath = new LinkedHashMap<>();
+			for (String filePath : filePaths) {
+				Optional<Long> projectId = projectRegistry.getProjectId(filePath);
+				if (projectId.isPresent()) {
+					commandsByPath.put(filePath, Collections.singletonList(
+							String.format("limit -p bhard=%d %d", 0, projectId.get())));
+				}
+			}
+			errors = quotaChannel.executeAll(commandsByPath);
+			errors.forEach((filePath, error) ->
+				logger.error("Error removing quota on {}: {}", filePath, error));
+
+			/* the files are still in the projects until they are deleted from the
+			 * trash, so the ids can't be given to new projects before then
+			 */
+			Map<String, Long> removedIds = projectRegistry.removeProjects(filePaths, true);
+			CompletableFuture<?>[] deletions = filePaths.stream()
+				.map(filePath -> volumeTrash.moveToTrash(Paths.get(filePath)))
+				.toArray(CompletableFuture<?>[]::new);
+			// released even if a deletion failed, so that the ids aren't held until a restart
+			CompletableFuture.allOf(deletions).whenComplete(
+					(ignored, error) -> projectRegistry.releaseIds(removedIds.values()));
 		} catch (Exception e) {
 			logger.error(
 					"Error remove quota on {}",
-					filePath,
+					filePaths,
 					e);
+			result.completeExceptionally(e);
+			return;
+		}
+		if (!errors.isEmpty()) {
+			result.completeExceptionally(new IOException(errors.values().iterator().next()));
+		} else {
+			result.complete(null);
 		}
 	}
 
 	@Override
 	public Collection<Quota> getUsage() throws IOException {
-		Map<String, Map<String, QuotaReportLine>> collectedQuotaOutput = new HashMap<>();
-
-		logAndRun("bytes", collectedQuotaOutput, new CommandLine("sudo")
-				.addArgument(XFS_QUOTA_COMMAND)
-				.addArgument("-xc")
-				.addArgument("report -Np", false)
-				.addArguments(splitIfPossible(xfsConfig.getMountedFileSystems())));
-		logAndRun("files", collectedQuotaOutput, new CommandLine("sudo")
-				.addArgument(XFS_QUOTA_COMMAND)
-				.addArgument("-xc")
-				.addArgument("report -Ni", false)
-				.addArguments(splitIfPossible(xfsConfig.getMountedFileSystems())));
-
-		return collectedQuotaOutput.entrySet()
-			.stream()
-			.map(folderEntry ->
-				config.getRootVolumes().entrySet().stream()
-					.filter(e -> folderEntry.getKey().startsWith(e.getValue().getPathOnFileServer()))
-					.findAny()
-					.map(rvEntry ->
-						new Quota(
-								rvEntry.getKey(),
-								folderEntry.getKey().replaceFirst("^"+rvEntry.getValue().getPathOnFileServer()+"/", ""),
-								folderEntry.getValue().get("files").getUsed(),
-								folderEntry.getValue().get("files").getHardLimit(),
-								// xfs_quota reports these in kilobytes
-								folderEntry.getValue().get("bytes").getUsed() * 1024,
-								folderEntry.getValue().get("bytes").getHardLimit() * 1024)
-					))
-			.filter(Optional::isPresent)
-			.map(Optional::get)
-			.collect(Collectors.toList());
+		Map<String, ProjectUsage> collectedQuotaOutput = new ConcurrentHashMap<>();
+
+		// one report per file system (and per report type, if they can't be combined)
+		List<Future<?>> reports = new ArrayList<>();
+		for (String[] fileSystem : fileSystemsToReportOn()) {
+			for (Report report : reportTypes()) {
+				reports.add(reportExecutor.submit(() -> {
+					logAndRun(report, collectedQuotaOutput, new CommandLine("sudo")
+							.addArgument(XFS_QUOTA_COMMAND)
+							.addArgument("-xc")
+							.addArgument(report.command, false)
+							.addArguments(fileSystem));
+					return null;
+				}));
+			}
+		}
+		try {
+			for (Future<?> report : reports) {
+				report.get();
+			}
+		} catch (InterruptedException e) {
+			reports.forEach(report -> report.cancel(true));
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for xfs_quota reports", e);
+		} catch (ExecutionException e) {
+			reports.forEach(report -> report.cancel(true));
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException("Error running xfs_quota report", e.getCause());
+		}
+
+		return aggregateTimer.record(() -> toQuotas(collectedQuotaOutput));
+	}
+
+	/**
+	 * Reports on just the project of <code>filePath</code>, by its id, through
+	 * the xfs_quota session for its file system.
+	 */
+	@Override
+	public Optional<Quota> getUsage(String filePath) throws IOException {
+		Optional<Long> projectId = projectRegistry.getProjectId(filePath);
+		if (!projectId.isPresent()) {
+			return Optional.empty();
+		}
+		Map<String, ProjectUsage> usageByPath = new HashMap<>();
+		for (Report report : reportTypes()) {
+			QuotaReportParser parser = new QuotaReportParser(report.sections, saveLine(report, usageByPath));
+			List<String> output = quotaChannel.execute(filePath,
+					String.format("%s -L %d -U %d", report.command, projectId.get(), projectId.get()));
+			for (String line : output) {
+				parser.write((line + '\n').getBytes(Charset.defaultCharset()));
+			}
+		}
+		ProjectUsage usage = usageByPath.get(filePath);
+		if (usage == null) {
+			return Optional.empty();
+		}
+		return toQuotas(Collections.singletonMap(filePath, usage)).stream().findFirst();
+	}
+
+	private List<Report> reportTypes() {
+		return xfsConfig.isCombinedReports() ?
+				Collections.singletonList(Report.BLOCKS_AND_INODES) :
+				Arrays.asList(Report.BLOCKS, Report.INODES);
+	}
+
+	// matches up reported projects with the root volumes they are in
+	Collection<Quota> toQuotas(Map<String, ProjectUsage> usageByPath) {
+		List<Quota> quotas = new ArrayList<>(usageByPath.size());
+		usageByPath.forEach((fullPath, usage) -> {
+			RootVolumeEntry rootVolume = rootVolumes.find(fullPath);
+			if (rootVolume == null) {
+				return;
+			}
+			quotas.add(new Quota(
+					rootVolume.getName(),
+					rootVolume.relativePath(fullPath),
+					usage.filesUsed,
+					usage.filesHardLimit,
+					// xfs_quota reports these in kilobytes
+					usage.blocksUsed * 1024,
+					usage.blocksHardLimit * 1024));
+		});
+		return quotas;
 	}
 
-	private void logAndRun(String label, Map<String, Map<String, QuotaReportLine>> outputHolder, CommandLine cmdLine) throws IOException {
+	// each configured file system, or all of them at once if none are configured
+	private List<String[]> fileSystemsToReportOn() {
+		String[] mountedFileSystems = splitIfPossible(xfsConfig.getMountedFileSystems());
+		if (mountedFileSystems == null) {
+			return Collections.singletonList(new String[0]);
+		}
+		return Arrays.stream(mountedFileSystems)
+				.map(fileSystem -> new String[] { fileSystem })
+				.collect(Collectors.toList());
+	}
+
+	private void logAndRun(Report report, Map<String, ProjectUsage> outputHolder, CommandLine cmdLine) throws IOException {
 		DefaultExecutor executor = new DefaultExecutor();
-		executor.setStreamHandler(saveLines(label, outputHolder));
+		QuotaReportParser parser = new QuotaReportParser(report.sections, saveLine(report, outputHolder));
+		executor.setStreamHandler(new PumpStreamHandler(parser, new LogOutputStream() {
+			@Override
+			protected void processLine(String line, int logLevel) {
+				logger.error("{} {}", XFS_QUOTA_LOG_PREFIX, line);
+			}
+		}));
 		logger.trace("Running command: {}", cmdLine);
-		executor.execute(cmdLine);
+		long start = System.nanoTime();
+		try {
+			executor.execute(cmdLine);
+		} finally {
+			// the output has all been parsed by the time the process is done
+			reportTimer("quota.manager.xfs.report.fork", "Running xfs_quota report, including parsing its output",
+					report).record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+			reportTimer("quota.manager.xfs.report.parse", "Parsing xfs_quota report output",
+					report).record(parser.getParseNanos(), TimeUnit.NANOSECONDS);
+		}
+	}
+
+	private static Consumer<QuotaReportLine> saveLine(Report report, Map<String, ProjectUsage> outputHolder) {
+		return line -> {
+			ProjectUsage usage = outputHolder.computeIfAbsent(line.getFullPath(), s -> new ProjectUsage());
+			if (report == Report.INODES) {
+				usage.filesUsed = line.getUsed();
+				usage.filesHardLimit = line.getHardLimit();
+			} else {
+				usage.blocksUsed = line.getUsed();
+				usage.blocksHardLimit = line.getHardLimit();
+			}
+			if (report == Report.BLOCKS_AND_INODES) {
+				usage.filesUsed = line.getUsed(1);
+				usage.filesHardLimit = line.getHardLimit(1);
+			}
+		};
+	}
+
+	private Timer reportTimer(String name, String description, Report report) {
+		return Timer.builder(name)
+				.description(description)
+				.tag("report", report.name().toLowerCase())
+				.register(meterRegistry);
 	}
 
 	// Helper method to split a string or pass on a null
@@ -233,59 +573,55 @@ public class XFSFileSystemModule implements FileSystemModule {
 		return line.split("\\s+");
 	}
 
-	private ExecuteStreamHandler saveLines(String label, Map<String, Map<String, QuotaReportLine>> outputHolder) {
-		return new PumpStreamHandler(new LogOutputStream() {
-			@Override
-			protected void processLine(String line, int logLevel) {
-				if (StringUtils.isEmpty(line)) return;
-				logger.trace("{} {}", XFS_QUOTA_LOG_PREFIX, line);
-				String[] quotaComponents = line.split("\\s+");
-				outputHolder.computeIfAbsent(quotaComponents[0], s -> new HashMap<>());
-				outputHolder.get(quotaComponents[0]).put(label, new QuotaReportLine(line));
-			}
-		},
-		new LogOutputStream() {
-			@Override
-			protected void processLine(String line, int logLevel) {
-				logger.error("%s %s", XFS_QUOTA_LOG_PREFIX, line);
-			}
-		});
+	// xfs_quota splits commands on whitespace unless the argument is quoted
+	private String quoteIfNeeded(String argument) {
+		if (!argument.matches(".*\\s.*")) return argument;
+		return '"' + argument + '"';
 	}
 
-	private Map<String, Long> getXFSProjects() throws IOException {
-		CsvSchema schema = CsvSchema.builder()
-				.addColumn("projectId", CsvSchema.ColumnType.NUMBER)
-				.addColumn("path")
-				.setColumnSeparator(':')
-				.build();
-		CsvMapper mapper = new CsvMapper();
-		Map<String, Long> pathsToProjectIds = new HashMap<>();
-
-		try (Reader input = Files.newBufferedReader(PROJECTS_FILE)) {
-			MappingIterator<Map<String, String>> it = mapper.readerFor(Map.class)
-					.with(schema)
-					.readValues(input);
-			while(it.hasNext()) {
-				Map<String, String> rowAsMap = it.next();
-				// skip trailing new lines or empty lines
-				if (StringUtils.isEmpty(rowAsMap.get("path")) && StringUtils.isEmpty(rowAsMap.get("projectId"))) {
-					continue;
-				}
-				pathsToProjectIds.put(rowAsMap.get("path"), Long.parseLong(rowAsMap.get("projectId")));
-			}
+	// what the reports said about one project; the fields are written by the report threads
+	static class ProjectUsage {
+		private long blocksUsed;
+		private long blocksHardLimit;
+		private long filesUsed;
+		private long filesHardLimit;
+
+		ProjectUsage() {
+		}
+
+		ProjectUsage(long blocksUsed, long blocksHardLimit, long filesUsed, long filesHardLimit) {
+			this.blocksUsed = blocksUsed;
+			this.blocksHardLimit = blocksHardLimit;
+			this.filesUsed = filesUsed;
+			this.filesHardLimit = filesHardLimit;
 		}
-		return pathsToProjectIds;
 	}
 
-	private long firstFreeId(Map<String, Long> pathsToProjectIds) {
-		List<Long> ids = new ArrayList<>(pathsToProjectIds.values());
-		Collections.sort(ids);
-		int numberOfIds = ids.size();
-		for(long i=0; i < MAX_PROJECT_ID; ++i) {
-			if (i >= numberOfIds || !ids.get((int) i).equals(i+MIN_PROJECT_ID)) {
-				return i+MIN_PROJECT_ID;
-			}
+	private static class PendingLimit {
+		private long numberOfBytes;
+		private boolean force;
+		// the most urgent lane the change has been queued in
+		private Priority priority;
+		private final CompletableFuture<Void> result = new CompletableFuture<>();
+
+		PendingLimit(long numberOfBytes, boolean force, Priority priority) {
+			this.numberOfBytes = numberOfBytes;
+			this.force = force;
+			this.priority = priority;
+		}
+	}
+
+	private enum Report {
+		BLOCKS("report -Npb", 1),
+		INODES("report -Npi", 1),
+		BLOCKS_AND_INODES("report -Npbi", 2);
+
+		private final String command;
+		private final int sections;
+
+		Report(String command, int sections) {
+			this.command = command;
+			this.sections = sections;
 		}
-		throw new IllegalStateException("There appears to be too many assigned projects");
 	}
 }
@@ -0,0 +1,73 @@
+/*******************************************************************************
+ * Copyright 2018 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ******************************************************************************/
+package org.sciserver.quota.manager.xfs;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+
+import org.sciserver.quota.manager.Priority;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.context.annotation.Profile;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.stereotype.Component;
+
+/**
+ * Gauges for the backlog of the XFS executors (by lane, for edits) and the
+ * size of the project registry. Metrics of the quota commands and reports
+ * themselves, and of how long edits wait, are recorded where they happen.
+ */
+@Component
+@Profile("xfs")
+class XFSMetrics implements MeterBinder {
+	private final XFSProjectRegistry projectRegistry;
+	private final LaneExecutor editProjectsExecutor;
+	private final ThreadPoolTaskExecutor reportExecutor;
+
+	XFSMetrics(XFSProjectRegistry projectRegistry,
+			@Qualifier("xfsEditProjectsExecutor") LaneExecutor editProjectsExecutor,
+			@Qualifier("xfsReportExecutor") ThreadPoolTaskExecutor reportExecutor) {
+		this.projectRegistry = projectRegistry;
+		this.editProjectsExecutor = editProjectsExecutor;
+		this.reportExecutor = reportExecutor;
+	}
+
+	@Override
+	public void bindTo(MeterRegistry registry) {
+		Gauge.builder("quota.manager.xfs.projects", projectRegistry, XFSProjectRegistry::size)
+			.description("Projects in the XFS project files")
+			.register(registry);
+		for (Priority priority : Priority.values()) {
+			Gauge.builder("quota.manager.xfs.edit.queued", editProjectsExecutor, e -> e.getQueued(priority))
+				.description("Quota changes waiting for the edit thread")
+				.tag("lane", priority.name().toLowerCase())
+				.register(registry);
+		}
+		Gauge.builder("quota.manager.xfs.executor.active", editProjectsExecutor, LaneExecutor::getActiveCount)
+			.description("Tasks being run")
+			.tag("executor", "edit-projects")
+			.register(registry);
+		Gauge.builder("quota.manager.xfs.executor.queued", reportExecutor,
+				e -> e.getThreadPoolExecutor().getQueue().size())
+			.description("Tasks waiting for a thread")
+			.tag("executor", "report")
+			.register(registry);
+		Gauge.builder("quota.manager.xfs.executor.active", reportExecutor, ThreadPoolTaskExecutor::getActiveCount)
+			.description("Tasks being run")
+			.tag("executor", "report")
+			.register(registry);
+	}
+}
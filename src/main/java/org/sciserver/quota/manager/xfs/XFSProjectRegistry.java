@@ -0,0 +1,623 @@
+/*******************************************************************************
+ * Copyright 2018 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ******************************************************************************/
+package org.sciserver.quota.manager.xfs;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.function.Function;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Profile;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
+import org.springframework.stereotype.Component;
+
+/**
+ * In-memory copy of the XFS project files (/etc/projects and /etc/projid).
+ *
+ * The files are read once at startup and then kept in sync with whatever is
+ * written through this class. If someone else edits the projects file (noticed
+ * by a change in its size or modification time), it is re-read before the next
+ * lookup.
+ *
+ * New projects are appended to both files, since xfs_quota needs to see them.
+ * Removals are appended to a journal instead of rewriting the files each time.
+ * A removed project's id is not handed out again until the removals have been
+ * compacted into the project files, which happens once enough of them have
+ * built up, or every <code>compaction-interval</code>. Ids that are held
+ * until their files are deleted are journaled as well ("id:hold" and
+ * "id:release"), and carried over to the journal left by a compaction, so
+ * they stay reserved across restarts.
+ *
+ * Compaction writes new copies of the files next to the journal, and then
+ * copies them over the project files in place. Only the directory of the
+ * journal needs to be writable, not the one holding the project files. The
+ * copies are renamed to their final names once they are complete, so if a
+ * crash interrupts the copying, it is finished on the next start. Otherwise,
+ * the journal is replayed and compacted again. While a file is being
+ * rewritten, a reader such as xfs_quota may briefly see it shorter than it is.
+ */
+@Component
+@Profile("xfs")
+class XFSProjectRegistry {
+	private final Logger logger = LoggerFactory.getLogger(XFSProjectRegistry.class);
+
+	/* XFS itself allows ids up to 2^32 - 2, but free ids are tracked
+	 * in a BitSet, which is indexed by int. Existing projects with larger
+	 * ids are still looked up, but their ids are never handed out.
+	 */
+	static final int MAX_PROJECT_ID = Integer.MAX_VALUE - 1;
+	static final int MIN_PROJECT_ID = 1;
+	static final long MAX_XFS_PROJECT_ID = 0xFFFFFFFEL;
+
+	private static final int DEFAULT_COMPACT_AFTER_REMOVALS = 100;
+	private static final String JOURNAL_SUFFIX = ".journal";
+	private static final String COMPACTION_SUFFIX = ".compacting";
+	private static final String COMPACTED_SUFFIX = ".compacted";
+	private static final String HOLD = "hold";
+	private static final String RELEASE = "release";
+
+	private final Path projectsFile;
+	private final Path projidFile;
+	private final Path journalFile;
+	private final int compactAfterRemovals;
+	private final Duration compactionInterval;
+	private final ThreadPoolTaskScheduler scheduler = new ThreadPoolTaskScheduler();
+
+	private final Map<String, Long> pathsToProjectIds = new HashMap<>();
+	private final Map<Long, String> projectIdsToPaths = new HashMap<>();
+	private final BitSet usedIds = new BitSet();
+	// every id below this one is known to be in use
+	private int lowestPossiblyFreeId = MIN_PROJECT_ID;
+	// removed projects ("id:path") that are still in the project files
+	private final Set<String> removedEntries = new HashSet<>();
+	// ids of removed projects whose files may still exist, which must not be reused yet;
+	// they are journaled so they survive a restart
+	private final Set<Long> heldIds = new HashSet<>();
+
+	private FileTime lastKnownModifiedTime;
+	private long lastKnownSize = -1;
+
+	@Autowired
+	XFSProjectRegistry(XFSConfig xfsConfig) {
+		this(Paths.get(xfsConfig.getProjectsFile()),
+				Paths.get(xfsConfig.getProjidFile()),
+				xfsConfig.getProjectsJournalFile() == null ?
+						Paths.get(xfsConfig.getProjectsFile() + JOURNAL_SUFFIX) :
+						Paths.get(xfsConfig.getProjectsJournalFile()),
+				xfsConfig.getCompactAfterRemovals(),
+				xfsConfig.getCompactionInterval());
+	}
+
+	XFSProjectRegistry(Path projectsFile, Path projidFile) {
+		this(projectsFile, projidFile, Paths.get(projectsFile + JOURNAL_SUFFIX),
+				DEFAULT_COMPACT_AFTER_REMOVALS, Duration.ZERO);
+	}
+
+	/**
+	 * @param compactionInterval how often to compact the journal, or zero to
+	 * only compact once <code>compactAfterRemovals</code> removals are journaled
+	 */
+	XFSProjectRegistry(Path projectsFile, Path projidFile, Path journalFile,
+			int compactAfterRemovals, Duration compactionInterval) {
+		this.projectsFile = projectsFile;
+		this.projidFile = projidFile;
+		this.journalFile = journalFile;
+		this.compactAfterRemovals = compactAfterRemovals;
+		this.compactionInterval = compactionInterval;
+	}
+
+	synchronized void load() throws IOException {
+		pathsToProjectIds.clear();
+		projectIdsToPaths.clear();
+		usedIds.clear();
+		lowestPossiblyFreeId = MIN_PROJECT_ID;
+		removedEntries.clear();
+
+		// finish a compaction that was interrupted while it was copying the files into place
+		copyCompactedFiles();
+		try (BufferedReader input = Files.newBufferedReader(projectsFile)) {
+			String line;
+			while ((line = input.readLine()) != null) {
+				// skip empty lines and comments
+				if (line.trim().isEmpty() || line.startsWith("#")) {
+					continue;
+				}
+				int separator = line.indexOf(':');
+				if (separator < 0) {
+					logger.warn("Ignoring malformed line in {}: {}", projectsFile, line);
+					continue;
+				}
+				String projectId = line.substring(0, separator).trim();
+				if (!isProjectId(projectId)) {
+					logger.warn("Ignoring project with an invalid id in {}: {}", projectsFile, line);
+					continue;
+				}
+				index(line.substring(separator + 1), Long.parseLong(projectId));
+			}
+		} catch (NoSuchFileException e) {
+			logger.warn("{} does not exist yet, starting with no XFS projects", projectsFile);
+		}
+		replayJournal();
+		heldIds.forEach(this::markUsed);
+		rememberFileState();
+		logger.info("Loaded {} XFS projects from {}", pathsToProjectIds.size(), projectsFile);
+	}
+
+	@PostConstruct
+	void start() throws IOException {
+		load();
+		scheduler.setPoolSize(1);
+		scheduler.setThreadNamePrefix("xfs-projects-compaction-");
+		scheduler.initialize();
+		if (!compactionInterval.isZero()) {
+			scheduler.scheduleWithFixedDelay(this::compactInBackground, compactionInterval.toMillis());
+		}
+	}
+
+	@PreDestroy
+	void stop() {
+		scheduler.shutdown();
+		compactInBackground();
+	}
+
+	synchronized Optional<Long> getProjectId(String path) throws IOException {
+		reloadIfChangedOnDisk();
+		return Optional.ofNullable(pathsToProjectIds.get(path));
+	}
+
+	synchronized Optional<String> getPath(long projectId) throws IOException {
+		reloadIfChangedOnDisk();
+		return Optional.ofNullable(projectIdsToPaths.get(projectId));
+	}
+
+	synchronized int size() {
+		return pathsToProjectIds.size();
+	}
+
+	/**
+	 * Registers a new project for the given path in the project files,
+	 * or returns the existing id if the path already has one.
+	 */
+	synchronized long addProject(String path) throws IOException {
+		return addProjects(Collections.singletonList(path)).get(path);
+	}
+
+	/**
+	 * Like {@link #addProject}, for several paths at once, with a single
+	 * write to each file.
+	 * @return the id of each path
+	 */
+	synchronized Map<String, Long> addProjects(Collection<String> paths) throws IOException {
+		reloadIfChangedOnDisk();
+		Map<String, Long> projectIds = new LinkedHashMap<>();
+		StringBuilder projectsEntries = new StringBuilder();
+		StringBuilder projidEntries = new StringBuilder();
+		for (String path : paths) {
+			Long existingId = pathsToProjectIds.get(path);
+			if (existingId != null) {
+				projectIds.put(path, existingId);
+				continue;
+			}
+			long projectId = nextFreeId();
+			projectsEntries.append(projectId).append(':').append(path).append('\n');
+			projidEntries.append(path).append(':').append(projectId).append('\n');
+			index(path, projectId);
+			projectIds.put(path, projectId);
+		}
+		if (projectsEntries.length() > 0) {
+			Files.write(
+					projectsFile,
+					projectsEntries.toString().getBytes(),
+					StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+			Files.write(
+					projidFile,
+					projidEntries.toString().getBytes(),
+					StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+			rememberFileState();
+		}
+		return projectIds;
+	}
+
+	/**
+	 * Removes the project for the given path. This only appends to the
+	 * journal; the project files are rewritten later, by {@link #compact()}.
+	 * @return the id the path had, if there was one
+	 */
+	synchronized Optional<Long> removeProject(String path) throws IOException {
+		return Optional.ofNullable(removeProjects(Collections.singletonList(path)).get(path));
+	}
+
+	/**
+	 * Like {@link #removeProject}, for several paths at once, with a single
+	 * write to the journal.
+	 * @return the ids of the paths that had one
+	 */
+	synchronized Map<String, Long> removeProjects(Collection<String> paths) throws IOException {
+		return removeProjects(paths, false);
+	}
+
+	/**
+	 * @param holdIds if true, the ids stay in use until they are passed to
+	 * {@link #releaseIds}, e.g. because files are still being deleted from them
+	 */
+	synchronized Map<String, Long> removeProjects(Collection<String> paths, boolean holdIds) throws IOException {
+		reloadIfChangedOnDisk();
+		Map<String, Long> projectIds = new LinkedHashMap<>();
+		List<String> entries = new ArrayList<>();
+		for (String path : paths) {
+			Long projectId = pathsToProjectIds.get(path);
+			if (projectId != null && !projectIds.containsKey(path)) {
+				projectIds.put(path, projectId);
+				entries.add(projectId + ":" + path);
+			}
+		}
+		if (entries.isEmpty()) {
+			return projectIds;
+		}
+
+		List<String> lines = new ArrayList<>(entries);
+		if (holdIds) {
+			projectIds.values().forEach(id -> lines.add(id + ":" + HOLD));
+		}
+		appendToJournal(lines);
+		entries.forEach(this::unindex);
+		if (holdIds) {
+			heldIds.addAll(projectIds.values());
+		}
+
+		if (removedEntries.size() >= compactAfterRemovals) {
+			compact();
+		}
+		return projectIds;
+	}
+
+	/**
+	 * Rewrites the project files without the removed projects, and empties
+	 * the journal, except for the ids that are still held.
+	 */
+	synchronized void compact() throws IOException {
+		reloadIfChangedOnDisk();
+		if (removedEntries.isEmpty()) {
+			return;
+		}
+		logger.info("Compacting {} removed projects out of {} and {}",
+				removedEntries.size(), projectsFile, projidFile);
+		Path newProjectsFile = writeWithoutRemovedEntries(projectsFile, line -> line);
+		Path newProjidFile = writeWithoutRemovedEntries(projidFile, XFSProjectRegistry::projidToProjectsEntry);
+		// the projects file is renamed last, so a complete copy of it means both are complete
+		Files.move(newProjidFile, compactedCopyOf(projidFile),
+				StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		Files.move(newProjectsFile, compactedCopyOf(projectsFile),
+				StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		syncDirectory(journalFile);
+		copyCompactedFiles();
+		rewriteJournalWithHeldIds();
+
+		for (String entry : removedEntries) {
+			freeId(idOf(entry));
+		}
+		removedEntries.clear();
+		rememberFileState();
+	}
+
+	/**
+	 * Lets ids held by {@link #removeProjects(Collection, boolean)} be reused
+	 * once they are compacted out of the project files.
+	 */
+	synchronized void releaseIds(Collection<Long> projectIds) {
+		List<String> releases = new ArrayList<>();
+		for (Long projectId : projectIds) {
+			if (heldIds.contains(projectId)) {
+				releases.add(projectId + ":" + RELEASE);
+			}
+		}
+		if (releases.isEmpty()) {
+			return;
+		}
+		try {
+			appendToJournal(releases);
+		} catch (IOException e) {
+			// better to keep the ids than to have them held again after a restart
+			logger.error("Could not journal the release of XFS project ids {}, keeping them held", projectIds, e);
+			return;
+		}
+		for (Long projectId : projectIds) {
+			long id = projectId;
+			if (heldIds.remove(id)) {
+				boolean stillInFiles = removedEntries.stream().anyMatch(entry -> idOf(entry) == id);
+				if (!stillInFiles) {
+					freeId(id);
+				}
+			}
+		}
+	}
+
+	private void freeId(long projectId) {
+		if (projectId > MAX_PROJECT_ID
+				|| heldIds.contains(projectId) || projectIdsToPaths.containsKey(projectId)) {
+			return;
+		}
+		usedIds.clear((int) projectId);
+		lowestPossiblyFreeId = Math.min(lowestPossiblyFreeId, (int) projectId);
+	}
+
+	/**
+	 * @return a copy of the ids that are currently held, e.g. the ones
+	 * journaled before a restart
+	 */
+	synchronized Set<Long> getHeldIds() {
+		return new HashSet<>(heldIds);
+	}
+
+	private void compactInBackground() {
+		try {
+			compact();
+		} catch (Exception e) {
+			logger.error("Error compacting XFS project files", e);
+		}
+	}
+
+	// removes the project from the lookups, but keeps its id reserved until compaction
+	private void unindex(String entry) {
+		long projectId = idOf(entry);
+		String path = entry.substring(entry.indexOf(':') + 1);
+		if (Objects.equals(pathsToProjectIds.get(path), projectId)) {
+			pathsToProjectIds.remove(path);
+		}
+		if (Objects.equals(projectIdsToPaths.get(projectId), path)) {
+			projectIdsToPaths.remove(projectId);
+		}
+		removedEntries.add(entry);
+	}
+
+	private void appendToJournal(List<String> entries) throws IOException {
+		StringBuilder lines = new StringBuilder();
+		entries.forEach(entry -> lines.append(entry).append('\n'));
+		try (FileChannel journal = FileChannel.open(journalFile,
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+			ByteBuffer buffer = ByteBuffer.wrap(lines.toString().getBytes(Charset.defaultCharset()));
+			while (buffer.hasRemaining()) {
+				journal.write(buffer);
+			}
+			journal.force(false);
+		}
+	}
+
+	private void replayJournal() throws IOException {
+		if (!Files.exists(journalFile)) {
+			return;
+		}
+		try (BufferedReader input = Files.newBufferedReader(journalFile)) {
+			String line;
+			while ((line = input.readLine()) != null) {
+				int separator = line.indexOf(':');
+				// a partly written last line won't match any project or keyword
+				if (separator <= 0 || !isProjectId(line.substring(0, separator))) {
+					continue;
+				}
+				String value = line.substring(separator + 1);
+				if (value.equals(HOLD)) {
+					heldIds.add(idOf(line));
+				} else if (value.equals(RELEASE)) {
+					heldIds.remove(idOf(line));
+				} else {
+					unindex(line);
+				}
+			}
+		}
+		if (!removedEntries.isEmpty()) {
+			logger.info("{} removed projects are waiting to be compacted out of {}",
+					removedEntries.size(), projectsFile);
+		}
+	}
+
+	// replaces the journal with one that only holds the ids that are still held
+	private void rewriteJournalWithHeldIds() throws IOException {
+		if (heldIds.isEmpty()) {
+			Files.deleteIfExists(journalFile);
+			return;
+		}
+		Path newJournal = journalFile.resolveSibling(journalFile.getFileName() + COMPACTION_SUFFIX);
+		StringBuilder lines = new StringBuilder();
+		heldIds.forEach(id -> lines.append(id).append(':').append(HOLD).append('\n'));
+		try (FileChannel output = FileChannel.open(newJournal, StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			ByteBuffer buffer = ByteBuffer.wrap(lines.toString().getBytes(Charset.defaultCharset()));
+			while (buffer.hasRemaining()) {
+				output.write(buffer);
+			}
+			output.force(true);
+		}
+		Files.move(newJournal, journalFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		syncDirectory(journalFile);
+	}
+
+	/**
+	 * Copies <code>file</code> to a new file next to the journal, leaving out
+	 * the lines for removed projects, and syncs it to disk.
+	 * @param toEntry turns a line of the file into an "id:path" entry
+	 */
+	private Path writeWithoutRemovedEntries(Path file, Function<String, String> toEntry)
+			throws IOException {
+		Path newFile = journalFile.resolveSibling(file.getFileName() + COMPACTION_SUFFIX);
+		try (FileChannel output = FileChannel.open(newFile, StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			Writer writer = new BufferedWriter(new OutputStreamWriter(
+					Channels.newOutputStream(output), Charset.defaultCharset()));
+			if (Files.exists(file)) {
+				try (BufferedReader input = Files.newBufferedReader(file)) {
+					String line;
+					while ((line = input.readLine()) != null) {
+						if (!removedEntries.contains(toEntry.apply(line))) {
+							writer.write(line);
+							writer.write('\n');
+						}
+					}
+				}
+			}
+			writer.flush();
+			output.force(true);
+		}
+		return newFile;
+	}
+
+	private Path compactedCopyOf(Path file) {
+		return journalFile.resolveSibling(file.getFileName() + COMPACTED_SUFFIX);
+	}
+
+	/**
+	 * Overwrites the project files with the complete copies left by
+	 * {@link #compact()}, if there are any, and removes the copies.
+	 */
+	private void copyCompactedFiles() throws IOException {
+		Path compactedProjectsFile = compactedCopyOf(projectsFile);
+		Path compactedProjidFile = compactedCopyOf(projidFile);
+		if (Files.exists(compactedProjectsFile) && Files.exists(compactedProjidFile)) {
+			overwrite(projidFile, compactedProjidFile);
+			overwrite(projectsFile, compactedProjectsFile);
+		}
+		Files.deleteIfExists(compactedProjectsFile);
+		Files.deleteIfExists(compactedProjidFile);
+	}
+
+	// rewrites the file itself rather than replacing it, so its directory can stay read-only
+	private static void overwrite(Path file, Path contents) throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(contents));
+		try (FileChannel output = FileChannel.open(file, StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			while (buffer.hasRemaining()) {
+				output.write(buffer);
+			}
+			output.force(true);
+		}
+	}
+
+	// "path:id" to "id:path"
+	private static String projidToProjectsEntry(String line) {
+		int separator = line.lastIndexOf(':');
+		if (separator < 0) {
+			return line;
+		}
+		return line.substring(separator + 1) + ":" + line.substring(0, separator);
+	}
+
+	private static long idOf(String entry) {
+		return Long.parseLong(entry.substring(0, entry.indexOf(':')));
+	}
+
+	private static boolean isProjectId(String value) {
+		if (value.isEmpty() || value.length() > 10) {
+			return false;
+		}
+		for (int i = 0; i < value.length(); i++) {
+			if (!Character.isDigit(value.charAt(i))) {
+				return false;
+			}
+		}
+		long projectId = Long.parseLong(value);
+		return projectId >= MIN_PROJECT_ID && projectId <= MAX_XFS_PROJECT_ID;
+	}
+
+	// makes the rename durable; not every platform can open a directory for this
+	private void syncDirectory(Path file) {
+		Path directory = file.toAbsolutePath().getParent();
+		try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+			channel.force(true);
+		} catch (IOException e) {
+			logger.debug("Could not sync {}", directory, e);
+		}
+	}
+
+	private void index(String path, long projectId) {
+		pathsToProjectIds.put(path, projectId);
+		projectIdsToPaths.put(projectId, path);
+		markUsed(projectId);
+	}
+
+	// ids beyond what the BitSet can track are never handed out anyway
+	private void markUsed(long projectId) {
+		if (projectId <= MAX_PROJECT_ID) {
+			usedIds.set((int) projectId);
+		}
+	}
+
+	private int nextFreeId() {
+		int id = usedIds.nextClearBit(lowestPossiblyFreeId);
+		if (id > MAX_PROJECT_ID || id < MIN_PROJECT_ID) {
+			throw new IllegalStateException("There appears to be too many assigned projects");
+		}
+		lowestPossiblyFreeId = id + 1;
+		return id;
+	}
+
+	private void reloadIfChangedOnDisk() throws IOException {
+		FileTime modifiedTime = null;
+		long size = -1;
+		if (Files.exists(projectsFile)) {
+			BasicFileAttributes attributes = Files.readAttributes(projectsFile, BasicFileAttributes.class);
+			modifiedTime = attributes.lastModifiedTime();
+			size = attributes.size();
+		}
+		if (size != lastKnownSize || !Objects.equals(modifiedTime, lastKnownModifiedTime)) {
+			logger.info("{} was changed outside of the quota manager, reloading", projectsFile);
+			load();
+		}
+	}
+
+	private void rememberFileState() throws IOException {
+		if (Files.exists(projectsFile)) {
+			BasicFileAttributes attributes = Files.readAttributes(projectsFile, BasicFileAttributes.class);
+			lastKnownModifiedTime = attributes.lastModifiedTime();
+			lastKnownSize = attributes.size();
+		} else {
+			lastKnownModifiedTime = null;
+			lastKnownSize = -1;
+		}
+	}
+}
@@ -0,0 +1,372 @@
+/*******************************************************************************
+ * Copyright 2018 Johns Hopkins University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ******************************************************************************/
+package org.sciserver.quota.manager.xfs;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PreDestroy;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.annotation.Profile;
+import org.springframework.stereotype.Component;
+
+/**
+ * Keeps one interactive <code>xfs_quota -x</code> process open per mounted
+ * file system and sends it commands on stdin, instead of forking
+ * <code>sudo xfs_quota -xc ...</code> for each one.
+ *
+ * xfs_quota has no way to echo text, so after each command a made-up command
+ * name is sent. xfs_quota answers that with a "command not found" message,
+ * which marks the end of the output of the real command. The process flushes
+ * stdout before reading each line of input, so with stderr redirected into
+ * stdout the marker always comes after the output it terminates.
+ *
+ * Each command is timed from the end of the previous command's output (or
+ * from when the commands were sent) to the end of its own.
+ *
+ * The output of each process is read by a thread of its own, so that a batch
+ * of commands can be given up on if xfs_quota hangs. If the output of a batch
+ * isn't complete within <code>command-timeout</code>, the process is stopped
+ * and the batch fails like it would if the process had died.
+ */
+@Component
+@Profile("xfs")
+class XFSQuotaCommandChannel {
+	private final Logger logger = LoggerFactory.getLogger(XFSQuotaCommandChannel.class);
+
+	// output from xfs_quota is prefixed by this string
+	private static final String XFS_QUOTA_LOG_PREFIX = "[xfs_quota]";
+	private static final String XFS_QUOTA_PROMPT = "xfs_quota> ";
+	// errors from xfs_quota are prefixed by the program name
+	private static final String XFS_QUOTA_ERROR_PREFIX = "xfs_quota:";
+	private static final String END_MARKER_PREFIX = "sciserver-quota-manager-end-";
+	/* commands are written this many at a time, so that neither xfs_quota nor
+	 * this class blocks on a full pipe while the other one is writing
+	 */
+	private static final int COMMANDS_PER_WRITE = 50;
+	// queued by the output reader when the process closes its output, compared by identity
+	private static final String END_OF_OUTPUT = new String("end of output");
+
+	private final Session defaultSession;
+	private final Map<String, Session> sessionsByMount = new LinkedHashMap<>();
+	private final List<String> mountsLongestFirst;
+	private final MeterRegistry meterRegistry;
+	private final Duration commandTimeout;
+
+	XFSQuotaCommandChannel(XFSConfig xfsConfig, MeterRegistry meterRegistry) {
+		this.meterRegistry = meterRegistry;
+		this.commandTimeout = xfsConfig.getCommandTimeout();
+		defaultSession = new Session(null);
+		String mountedFileSystems = xfsConfig.getMountedFileSystems();
+		List<String> mounts = new ArrayList<>();
+		if (mountedFileSystems != null && !mountedFileSystems.trim().isEmpty()) {
+			mounts.addAll(Arrays.asList(mountedFileSystems.trim().split("\\s+")));
+		}
+		mounts.forEach(mount -> sessionsByMount.put(mount, new Session(mount)));
+		mounts.sort(Comparator.comparingInt(String::length).reversed());
+		mountsLongestFirst = Collections.unmodifiableList(mounts);
+	}
+
+	/**
+	 * Runs a command in the session for the file system holding
+	 * <code>filePath</code>.
+	 * @return the lines written by xfs_quota in response to the command
+	 * @throws IOException if xfs_quota reported an error or could not be run
+	 */
+	List<String> execute(String filePath, String command) throws IOException {
+		return sessionFor(filePath).execute(command);
+	}
+
+	/**
+	 * Runs several commands, each in the session for its path. The commands
+	 * for one file system are written together and their output read back
+	 * in one go, rather than waiting for each command in turn.
+	 * @param commandsByPath the commands to run for each path, in order
+	 * @return the first error xfs_quota reported for each path that had one
+	 * @throws IOException if xfs_quota could not be run
+	 */
+	Map<String, String> executeAll(Map<String, List<String>> commandsByPath) throws IOException {
+		Map<Session, List<String>> pathsBySession = new LinkedHashMap<>();
+		commandsByPath.keySet().forEach(filePath ->
+			pathsBySession.computeIfAbsent(sessionFor(filePath), session -> new ArrayList<>()).add(filePath));
+
+		Map<String, String> errorsByPath = new LinkedHashMap<>();
+		for (Map.Entry<Session, List<String>> sessionEntry : pathsBySession.entrySet()) {
+			List<String> commands = new ArrayList<>();
+			List<String> pathOfCommand = new ArrayList<>();
+			for (String filePath : sessionEntry.getValue()) {
+				for (String command : commandsByPath.get(filePath)) {
+					commands.add(command);
+					pathOfCommand.add(filePath);
+				}
+			}
+			List<List<String>> outputs = sessionEntry.getKey().executeAll(commands);
+			for (int i = 0; i < outputs.size(); i++) {
+				for (String line : outputs.get(i)) {
+					if (line.startsWith(XFS_QUOTA_ERROR_PREFIX)) {
+						errorsByPath.putIfAbsent(pathOfCommand.get(i), String.format(
+								"'%s' failed on %s: %s", commands.get(i), sessionEntry.getKey().describe(), line));
+					}
+				}
+			}
+		}
+		return errorsByPath;
+	}
+
+	@PreDestroy
+	void close() {
+		defaultSession.stop();
+		sessionsByMount.values().forEach(Session::stop);
+	}
+
+	/**
+	 * @param mountPoint the file system to run xfs_quota on, or null to let it pick one
+	 */
+	List<String> commandLine(String mountPoint) {
+		List<String> commandLine = new ArrayList<>(Arrays.asList("sudo", "xfs_quota", "-x"));
+		if (mountPoint != null) {
+			commandLine.add(mountPoint);
+		}
+		return commandLine;
+	}
+
+	private Session sessionFor(String filePath) {
+		for (String mount : mountsLongestFirst) {
+			if (filePath.equals(mount)
+					|| filePath.startsWith(mount.endsWith("/") ? mount : mount + "/")) {
+				return sessionsByMount.get(mount);
+			}
+		}
+		// not under any configured file system, so let xfs_quota pick one
+		return defaultSession;
+	}
+
+	private void recordCommand(String command, List<String> output, long nanos) {
+		boolean failed = output.stream().anyMatch(line -> line.startsWith(XFS_QUOTA_ERROR_PREFIX));
+		int endOfName = command.indexOf(' ');
+		Timer.builder("quota.manager.xfs.commands")
+				.description("Commands run by the xfs_quota sessions")
+				.tag("command", endOfName < 0 ? command : command.substring(0, endOfName))
+				.tag("result", failed ? "failure" : "success")
+				.register(meterRegistry)
+				.record(nanos, TimeUnit.NANOSECONDS);
+	}
+
+	private class Session {
+		private final String mountPoint;
+		private Process process;
+		private Writer input;
+		private BlockingQueue<String> output;
+		private long commandsSent;
+
+		private Session(String mountPoint) {
+			this.mountPoint = mountPoint;
+		}
+
+		synchronized List<String> execute(String command) throws IOException {
+			List<String> result = executeAll(Collections.singletonList(command)).get(0);
+			for (String line : result) {
+				if (line.startsWith(XFS_QUOTA_ERROR_PREFIX)) {
+					throw new IOException(String.format(
+							"'%s' failed on %s: %s", command, describe(), line));
+				}
+			}
+			return result;
+		}
+
+		/**
+		 * @return the output of each command
+		 */
+		synchronized List<List<String>> executeAll(List<String> commands) throws IOException {
+			for (String command : commands) {
+				if (command.indexOf('\n') >= 0 || command.indexOf('\r') >= 0) {
+					throw new IllegalArgumentException("Commands must be a single line: " + command);
+				}
+			}
+			List<List<String>> outputs = new ArrayList<>(commands.size());
+			for (int start = 0; start < commands.size(); start += COMMANDS_PER_WRITE) {
+				List<String> chunk = commands.subList(start, Math.min(start + COMMANDS_PER_WRITE, commands.size()));
+				try {
+					outputs.addAll(send(chunk));
+				} catch (ProcessDiedException e) {
+					/* the commands can all be run again without harm; a session that
+					 * timed out is not retried, so a hung xfs_quota fails the batch
+					 * after one timeout rather than two
+					 */
+					logger.warn("xfs_quota session for {} died, restarting it", describe(), e);
+					stop();
+					outputs.addAll(send(chunk));
+				}
+			}
+			return outputs;
+		}
+
+		private List<List<String>> send(List<String> commands) throws IOException {
+			startIfNeeded();
+			List<String> endsOfOutput = new ArrayList<>(commands.size());
+			try {
+				for (String command : commands) {
+					String marker = END_MARKER_PREFIX + (++commandsSent);
+					endsOfOutput.add(String.format("command \"%s\" not found", marker));
+					logger.trace("Sending command to xfs_quota for {}: {}", describe(), command);
+					input.write(command);
+					input.write('\n');
+					input.write(marker);
+					input.write('\n');
+				}
+				input.flush();
+				long endOfPrevious = System.nanoTime();
+				long deadline = endOfPrevious + commandTimeout.toNanos();
+
+				List<List<String>> outputs = new ArrayList<>(commands.size());
+				List<String> lines = new ArrayList<>();
+				String line;
+				while ((line = nextLine(deadline)) != END_OF_OUTPUT) {
+					while (line.startsWith(XFS_QUOTA_PROMPT)) {
+						line = line.substring(XFS_QUOTA_PROMPT.length());
+					}
+					if (line.contains(endsOfOutput.get(outputs.size()))) {
+						long now = System.nanoTime();
+						recordCommand(commands.get(outputs.size()), lines, now - endOfPrevious);
+						endOfPrevious = now;
+						outputs.add(lines);
+						if (outputs.size() == commands.size()) {
+							return outputs;
+						}
+						lines = new ArrayList<>();
+					} else if (!line.isEmpty()) {
+						logger.info("{} {}", XFS_QUOTA_LOG_PREFIX, line);
+						lines.add(line);
+					}
+				}
+			} catch (ProcessDiedException | CommandTimeoutException | InterruptedIOException e) {
+				throw e;
+			} catch (IOException e) {
+				throw new ProcessDiedException(e);
+			}
+			throw new ProcessDiedException("xfs_quota exited before answering every command");
+		}
+
+		private String nextLine(long deadline) throws IOException {
+			String line;
+			try {
+				line = output.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for xfs_quota");
+			}
+			if (line == null) {
+				logger.error("xfs_quota session for {} did not answer within {}, stopping it",
+						describe(), commandTimeout);
+				stop();
+				throw new CommandTimeoutException("xfs_quota did not answer within " + commandTimeout);
+			}
+			return line;
+		}
+
+		private void startIfNeeded() throws IOException {
+			if (process != null && process.isAlive()) {
+				return;
+			}
+			stop();
+			logger.info("Starting xfs_quota session for {}", describe());
+			process = new ProcessBuilder(commandLine(mountPoint))
+					.redirectErrorStream(true)
+					.start();
+			input = new OutputStreamWriter(process.getOutputStream(), Charset.defaultCharset());
+			output = new LinkedBlockingQueue<>();
+			Thread reader = new Thread(readOutput(process, output),
+					"xfs-quota-output-" + (mountPoint == null ? "default" : mountPoint));
+			reader.setDaemon(true);
+			reader.start();
+		}
+
+		// runs until the process closes its output, even if this session has given up on it
+		private Runnable readOutput(Process readFrom, BlockingQueue<String> into) {
+			return () -> {
+				try (BufferedReader reader = new BufferedReader(
+						new InputStreamReader(readFrom.getInputStream(), Charset.defaultCharset()))) {
+					String line;
+					while ((line = reader.readLine()) != null) {
+						into.add(line);
+					}
+				} catch (IOException e) {
+					logger.debug("Stopped reading the output of xfs_quota for {}", describe(), e);
+				}
+				into.add(END_OF_OUTPUT);
+			};
+		}
+
+		synchronized void stop() {
+			if (process == null) {
+				return;
+			}
+			try {
+				input.write("quit\n");
+				input.flush();
+			} catch (IOException e) {
+				// the process is already gone
+			}
+			process.destroy();
+			process = null;
+		}
+
+		private String describe() {
+			return mountPoint == null ? "the default file system" : mountPoint;
+		}
+	}
+
+	private static class ProcessDiedException extends IOException {
+		private static final long serialVersionUID = 4137709125385071530L;
+
+		ProcessDiedException(IOException cause) {
+			super("xfs_quota exited unexpectedly", cause);
+		}
+
+		ProcessDiedException(String message) {
+			super(message);
+		}
+	}
+
+	private static class CommandTimeoutException extends IOException {
+		private static final long serialVersionUID = -2807136218046273915L;
+
+		CommandTimeoutException(String message) {
+			super(message);
+		}
+	}
+}
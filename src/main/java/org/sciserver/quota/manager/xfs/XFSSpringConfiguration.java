@@ -1,23 +1,37 @@
 package org.sciserver.quota.manager.xfs;
 
-import java.util.concurrent.Executor;
+import java.util.EnumMap;
+import java.util.Map;
 
+import io.micrometer.core.instrument.MeterRegistry;
+
+import org.sciserver.quota.manager.Priority;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Profile;
-import org.springframework.scheduling.annotation.EnableAsync;
 import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
 
 @Configuration
-@EnableAsync
 @Profile("xfs")
 public class XFSSpringConfiguration {
-	@Bean(name="xfsEditProjectsExecutor")
-	public Executor xfsEditProjectsExecutor() {
+	// enough for a full set of reports on a few dozen file systems
+	private static final int REPORT_QUEUE_CAPACITY = 64;
+
+	@Bean(name="xfsEditProjectsExecutor", destroyMethod="shutdown")
+	LaneExecutor xfsEditProjectsExecutor(XFSConfig xfsConfig, MeterRegistry meterRegistry) {
+		Map<Priority, Integer> capacities = new EnumMap<>(Priority.class);
+		capacities.put(Priority.INTERACTIVE, xfsConfig.getInteractiveQueueCapacity());
+		capacities.put(Priority.BULK, xfsConfig.getBulkQueueCapacity());
+		return new LaneExecutor("xfs-helper-1", capacities, meterRegistry);
+	}
+
+	@Bean(name="xfsReportExecutor")
+	public ThreadPoolTaskExecutor xfsReportExecutor(XFSConfig xfsConfig) {
 		ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
-		executor.setCorePoolSize(1);
-		executor.setMaxPoolSize(1);
-		executor.setThreadNamePrefix("xfs-helper-");
+		executor.setCorePoolSize(xfsConfig.getReportThreads());
+		executor.setMaxPoolSize(xfsConfig.getReportThreads());
+		executor.setQueueCapacity(REPORT_QUEUE_CAPACITY);
+		executor.setThreadNamePrefix("xfs-report-");
 		executor.initialize();
 		return executor;
 	}
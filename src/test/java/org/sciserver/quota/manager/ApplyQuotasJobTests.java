@@ -0,0 +1,52 @@
+package org.sciserver.quota.manager;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CancellationException;
+
+import org.junit.Test;
+
+public class ApplyQuotasJobTests {
+	@Test
+	public void estimatesCompletionFromProgress() {
+		ApplyQuotasJob job = new ApplyQuotasJob("1", ApplyQuotasJobs.REQUEST, 4);
+		assertNull(job.getEstimatedCompletion());
+
+		job.scanning();
+		assertNull(job.getEstimatedCompletion());
+		job.folderScanned();
+		assertNotNull(job.getEstimatedCompletion());
+		job.folderScanned();
+		job.folderScanned();
+		job.folderScanned();
+		// the previous run's count is only a guess, so don't estimate past it
+		assertNull(job.getEstimatedCompletion());
+
+		job.applying(2);
+		job.changesQueued(2);
+		job.changeApplied();
+		assertNotNull(job.getEstimatedCompletion());
+		job.changeFailed();
+		assertNull(job.getEstimatedCompletion());
+
+		job.succeeded(null);
+		assertEquals(ApplyQuotasJob.State.SUCCEEDED, job.getState());
+		assertEquals(4, job.getFoldersScanned());
+		assertEquals(1, job.getChangesApplied());
+		assertEquals(1, job.getChangesFailed());
+		assertTrue(job.isFinished());
+	}
+
+	@Test(expected = CancellationException.class)
+	public void stopsOnceCancelled() {
+		ApplyQuotasJob job = new ApplyQuotasJob("1", ApplyQuotasJobs.SCHEDULE, 0);
+		job.scanning();
+		job.checkNotCancelled();
+		job.cancel();
+		assertTrue(job.isCancelRequested());
+		job.checkNotCancelled();
+	}
+}
@@ -0,0 +1,131 @@
+package org.sciserver.quota.manager;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sciserver.quota.manager.simulated.SimulatedConfig;
+import org.sciserver.quota.manager.simulated.SimulatedFileSystemModule;
+
+public class ApplyQuotasJobsTests {
+	private static final int USERS = 25;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private final Config config = new Config();
+	private final SimulatedConfig simulatedConfig = new SimulatedConfig();
+	private UsageSnapshotCache usageCache;
+	private ApplyQuotasJobs jobs;
+
+	@Before
+	public void setUp() throws Exception {
+		Path root = folder.getRoot().toPath();
+		for (int user = 0; user < USERS; user++) {
+			Files.createDirectory(root.resolve(String.format("user%02d", user)));
+		}
+		Config.RootVolume rootVolume = new Config.RootVolume();
+		rootVolume.setPathOnFileServer(root.toString());
+		rootVolume.setPerUserQuota(1000);
+		config.getRootVolumes().put("persistent", rootVolume);
+		config.getUsageCache().setRefreshInterval(Duration.ZERO);
+		config.getApplyQuotas().setBatchSize(10);
+		config.getApplyQuotas().setKeepJobs(2);
+
+		SimulatedFileSystemModule fileSystemModule = new SimulatedFileSystemModule(config, simulatedConfig,
+				new VolumeTrash(config));
+		usageCache = new UsageSnapshotCache(config, fileSystemModule, event -> { });
+		usageCache.startRefreshing();
+		QuotaApplier quotaApplier = new QuotaApplier(config, fileSystemModule, usageCache,
+				new UserFolderScanner(config));
+		jobs = new ApplyQuotasJobs(config, quotaApplier);
+		jobs.startScheduling();
+	}
+
+	@After
+	public void tearDown() {
+		jobs.stopScheduling();
+		usageCache.stopRefreshing();
+	}
+
+	@Test
+	public void waitsForRoomToQueueEachBatch() throws Exception {
+		simulatedConfig.setQueueCapacity(10);
+		simulatedConfig.setSetQuotaLatency(Duration.ofMillis(50));
+		ApplyQuotasJob job = jobs.start(ApplyQuotasJobs.REQUEST);
+		awaitFinished(job);
+
+		assertEquals(ApplyQuotasJob.State.SUCCEEDED, job.getState());
+		assertEquals(USERS, job.getFoldersScanned());
+		assertEquals(USERS, job.getChangesFound());
+		assertEquals(USERS, job.getChangesQueued());
+		assertEquals(USERS, job.getChangesApplied());
+		assertEquals(0, job.getChangesFailed());
+		assertEquals(USERS, job.getSummary().getChanges().size());
+	}
+
+	@Test
+	public void countsFailedChanges() throws Exception {
+		simulatedConfig.setFailureRate(1);
+		ApplyQuotasJob job = jobs.start(ApplyQuotasJobs.REQUEST);
+		awaitFinished(job);
+
+		assertEquals(ApplyQuotasJob.State.SUCCEEDED, job.getState());
+		assertEquals(0, job.getChangesApplied());
+		assertEquals(USERS, job.getChangesFailed());
+	}
+
+	@Test
+	public void cancelsBetweenBatches() throws Exception {
+		simulatedConfig.setQueueCapacity(10);
+		simulatedConfig.setSetQuotaLatency(Duration.ofSeconds(5));
+		ApplyQuotasJob job = jobs.start(ApplyQuotasJobs.REQUEST);
+		// a second request gets the run that is already going
+		assertSame(job, jobs.start(ApplyQuotasJobs.REQUEST));
+		long deadline = System.nanoTime() + Duration.ofSeconds(10).toNanos();
+		while (job.getChangesQueued() == 0 && System.nanoTime() < deadline) {
+			Thread.sleep(10);
+		}
+		jobs.cancel(job.getId());
+		awaitFinished(job);
+
+		assertEquals(ApplyQuotasJob.State.CANCELLED, job.getState());
+		// the first batch filled the queue, so the others were never queued
+		assertEquals(10, job.getChangesQueued());
+		assertEquals(0, job.getChangesApplied());
+	}
+
+	@Test
+	public void remembersTheLastRuns() throws Exception {
+		ApplyQuotasJob first = jobs.start(ApplyQuotasJobs.REQUEST);
+		awaitFinished(first);
+		ApplyQuotasJob second = jobs.start(ApplyQuotasJobs.SCHEDULE);
+		awaitFinished(second);
+		// already correct after the first run
+		assertEquals(0, second.getChangesFound());
+		ApplyQuotasJob third = jobs.start(ApplyQuotasJobs.REQUEST);
+		awaitFinished(third);
+
+		assertFalse(jobs.get(first.getId()).isPresent());
+		assertSame(second, jobs.get(second.getId()).get());
+		assertSame(third, jobs.get(third.getId()).get());
+	}
+
+	private static void awaitFinished(ApplyQuotasJob job) throws InterruptedException {
+		long deadline = System.nanoTime() + Duration.ofSeconds(30).toNanos();
+		while (!job.isFinished() && System.nanoTime() < deadline) {
+			Thread.sleep(10);
+		}
+		assertTrue("Run did not finish: " + job.getState(), job.isFinished());
+	}
+}
@@ -0,0 +1,49 @@
+package org.sciserver.quota.manager;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.sciserver.quota.manager.RootVolumeIndex.RootVolumeEntry;
+
+public class RootVolumeIndexTests {
+	private RootVolumeIndex index;
+
+	@Before
+	public void setUp() {
+		Config config = new Config();
+		addRootVolume(config, "persistent", "/data/persistent");
+		addRootVolume(config, "workspaces", "/data/persistent/workspaces/");
+		addRootVolume(config, "scratch", "/data/scratch+1");
+		index = RootVolumeIndex.of(config);
+	}
+
+	@Test
+	public void choosesInnermostRootVolume() {
+		assertMatch("persistent", "user/vol", "/data/persistent/user/vol");
+		assertMatch("workspaces", "user/vol", "/data/persistent/workspaces/user/vol");
+		assertMatch("persistent", "workspaces2/vol", "/data/persistent/workspaces2/vol");
+	}
+
+	@Test
+	public void onlyMatchesWholePathComponents() {
+		assertNull(index.find("/data/persistent2/user"));
+		assertNull(index.find("/data/persistent"));
+		assertNull(index.find("/data/persistent/"));
+		assertNull(index.find("/data"));
+		assertMatch("scratch", "user", "/data/scratch+1/user");
+	}
+
+	private void assertMatch(String rootVolumeName, String relativePath, String fullPath) {
+		RootVolumeEntry entry = index.find(fullPath);
+		assertEquals(rootVolumeName, entry.getName());
+		assertEquals(relativePath, entry.relativePath(fullPath));
+	}
+
+	private static void addRootVolume(Config config, String name, String path) {
+		Config.RootVolume rootVolume = new Config.RootVolume();
+		rootVolume.setPathOnFileServer(path);
+		config.getRootVolumes().put(name, rootVolume);
+	}
+}
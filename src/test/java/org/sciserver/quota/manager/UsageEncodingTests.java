@@ -0,0 +1,76 @@
+package org.sciserver.quota.manager;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.Test;
+import org.sciserver.quota.manager.dto.Quota;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+
+public class UsageEncodingTests {
+	@Test
+	public void picksTheMostPreferredEncoding() {
+		assertEquals(UsageEncoding.JSON, UsageEncoding.forAccept(null));
+		assertEquals(UsageEncoding.JSON, UsageEncoding.forAccept("*/*"));
+		assertEquals(UsageEncoding.JSON, UsageEncoding.forAccept("text/html"));
+		assertEquals(UsageEncoding.SMILE, UsageEncoding.forAccept("application/x-jackson-smile"));
+		assertEquals(UsageEncoding.CBOR,
+				UsageEncoding.forAccept("application/json;q=0.5, application/cbor"));
+		assertEquals(UsageEncoding.SMILE,
+				UsageEncoding.forAccept("application/x-jackson-smile, application/json;q=0.9, */*;q=0.1"));
+	}
+
+	@Test
+	public void writesSmileThatReadsBack() throws IOException {
+		ObjectMapper objectMapper = new ObjectMapper();
+		List<Quota> quotas = new ArrayList<>();
+		for (int i = 0; i < 100; i++) {
+			quotas.add(new Quota("persistent", "user" + i, i, 0, i * 1024L, 1024 * 1024));
+		}
+		ByteArrayOutputStream smile = write(UsageEncoding.SMILE, objectMapper, quotas);
+		ByteArrayOutputStream json = write(UsageEncoding.JSON, objectMapper, quotas);
+		assertTrue(smile.size() < json.size() / 2);
+
+		assertEquals(objectMapper.readTree(json.toByteArray()),
+				new ObjectMapper(new SmileFactory()).readTree(smile.toByteArray()));
+	}
+
+	@Test
+	public void binaryEncodingsAndGzipShrinkThePayload() throws IOException {
+		ObjectMapper objectMapper = new ObjectMapper();
+		List<Quota> quotas = new ArrayList<>();
+		for (int i = 0; i < 1000; i++) {
+			quotas.add(new Quota("persistent", "user" + i, i, 0, i * 1024L, 1024 * 1024));
+		}
+		int json = write(UsageEncoding.JSON, objectMapper, quotas).size();
+		for (UsageEncoding encoding : UsageEncoding.values()) {
+			byte[] payload = write(encoding, objectMapper, quotas).toByteArray();
+			if (encoding != UsageEncoding.JSON) {
+				assertTrue(encoding + " is not smaller than JSON", payload.length < json);
+			}
+			ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+			try (GZIPOutputStream gzip = new GZIPOutputStream(gzipped)) {
+				gzip.write(payload);
+			}
+			assertTrue(encoding + " does not shrink with gzip", gzipped.size() < payload.length);
+		}
+	}
+
+	private static ByteArrayOutputStream write(UsageEncoding encoding, ObjectMapper objectMapper,
+			List<Quota> quotas) throws IOException {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		try (JsonGenerator generator = encoding.createGenerator(objectMapper, output)) {
+			UsageEncoding.writeQuotas(quotas, generator);
+		}
+		return output;
+	}
+}
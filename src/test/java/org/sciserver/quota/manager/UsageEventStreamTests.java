@@ -0,0 +1,74 @@
+package org.sciserver.quota.manager;
+
+import static org.junit.Assert.assertEquals;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.Test;
+import org.sciserver.quota.manager.dto.Quota;
+import org.sciserver.quota.manager.dto.QuotaRemoved;
+import org.sciserver.quota.manager.dto.ThresholdCrossed;
+
+public class UsageEventStreamTests {
+	@Test
+	public void reportsChangedRemovedAndCrossingQuotas() {
+		UsageSnapshot before = snapshot(quota("a", 10), quota("b", 50), quota("c", 90), quota("d", 10));
+		UsageSnapshot after = snapshot(quota("a", 10), quota("b", 85), quota("c", 70), quota("e", 100));
+		List<String> events = new ArrayList<>();
+		UsageEventStream.diff(before, after, Arrays.asList(0.8, 0.95, 1.0), (name, data) -> {
+			if (data instanceof Quota) {
+				events.add(name + " " + ((Quota) data).getRelativePath());
+			} else if (data instanceof QuotaRemoved) {
+				events.add(name + " " + ((QuotaRemoved) data).getRelativePath());
+			} else {
+				ThresholdCrossed crossed = (ThresholdCrossed) data;
+				events.add(name + " " + crossed.getRelativePath() + " "
+						+ (crossed.isAbove() ? "above " : "below ") + crossed.getThreshold());
+			}
+		});
+
+		assertEquals(Arrays.asList(
+				"changed b", "threshold b above 0.8",
+				"changed c", "threshold c below 0.8",
+				"removed d",
+				"changed e", "threshold e above 0.8", "threshold e above 0.95", "threshold e above 1.0"),
+				events);
+	}
+
+	@Test
+	public void replaysMissedEventsOrResets() {
+		Config config = new Config();
+		config.getEvents().setBufferSize(2);
+		UsageEventStream stream = new UsageEventStream(config);
+		stream.publishChanges(refreshed(quota("a", 10)));
+		stream.publishChanges(refreshed(quota("a", 20)));
+		// a reset carries the id of the latest event
+		String firstEventId = stream.eventsAfter("unknown").get(0).getId();
+		stream.publishChanges(refreshed(quota("a", 30)));
+		stream.publishChanges(refreshed(quota("a", 40)));
+
+		assertEquals(Arrays.asList(30L, 40L), stream.eventsAfter(firstEventId).stream()
+				.map(event -> ((Quota) event.getData()).getNumberOfBytesUsed())
+				.collect(Collectors.toList()));
+
+		stream.publishChanges(refreshed(quota("a", 50)));
+		assertEquals(UsageEventStream.RESET, stream.eventsAfter(firstEventId).get(0).getName());
+		stream.stop();
+	}
+
+	private static UsageSnapshotRefreshed refreshed(Quota... quotas) {
+		return new UsageSnapshotRefreshed(UsageEventStreamTests.class, snapshot(quotas));
+	}
+
+	private static UsageSnapshot snapshot(Quota... quotas) {
+		return new UsageSnapshot(Arrays.asList(quotas), Instant.now());
+	}
+
+	private static Quota quota(String relativePath, long bytesUsed) {
+		return new Quota("persistent", relativePath, 0, 0, bytesUsed, 100);
+	}
+}
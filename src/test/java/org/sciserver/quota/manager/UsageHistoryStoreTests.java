@@ -0,0 +1,87 @@
+package org.sciserver.quota.manager;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sciserver.quota.manager.dto.Quota;
+import org.sciserver.quota.manager.dto.UsageHistory;
+import org.sciserver.quota.manager.dto.UsageHistory.Sample;
+
+public class UsageHistoryStoreTests {
+	private static final Instant START = Instant.parse("2018-10-01T00:00:00Z");
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private Config config;
+	private UsageHistoryStore store;
+
+	@Before
+	public void setUp() throws Exception {
+		config = new Config();
+		config.getHistory().setDirectory(folder.getRoot().toString());
+		config.getHistory().setMaxProjects(10);
+		config.getHistory().setResolutions(Arrays.asList(
+				new Config.Resolution(Duration.ofMinutes(1), 3),
+				new Config.Resolution(Duration.ofHours(1), 24)));
+		store = new UsageHistoryStore(config);
+		store.open();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		store.close();
+	}
+
+	@Test
+	public void keepsTheLastSamplesAtEachResolutionAcrossRestarts() throws Exception {
+		for (int minute = 0; minute < 5; minute++) {
+			record(START.plus(Duration.ofMinutes(minute)), usage("user1", 1000 * minute));
+		}
+		record(START.plus(Duration.ofMinutes(5)), usage("user2", 1));
+		store.close();
+		store = new UsageHistoryStore(config);
+		store.open();
+
+		UsageHistory minutes = store.get("persistent", "user1", null).get();
+		assertEquals(Arrays.asList(3000L, 4000L), bytesUsed(minutes.getSamples()));
+		assertEquals(1000 * 60 * 24, minutes.getGrowthInBytesPerDay(), 0.001);
+
+		List<Sample> hours = store.get("persistent", "user1", Duration.ofHours(1)).get().getSamples();
+		assertEquals(Collections.singletonList(4000L), bytesUsed(hours));
+		assertEquals(START, hours.get(0).getTime());
+
+		assertEquals(Collections.singletonList(1L),
+				bytesUsed(store.get("persistent", "user2", null).get().getSamples()));
+		assertFalse(store.get("persistent", "user3", null).isPresent());
+	}
+
+	@Test(expected = InvalidUsageQueryException.class)
+	public void rejectsResolutionsThatAreNotKept() throws Exception {
+		store.get("persistent", "user1", Duration.ofMinutes(5));
+	}
+
+	private void record(Instant takenAt, Quota... quotas) throws Exception {
+		store.record(new UsageSnapshotRefreshed(this, new UsageSnapshot(Arrays.asList(quotas), takenAt)));
+	}
+
+	private static Quota usage(String relativePath, long bytesUsed) {
+		return new Quota("persistent", relativePath, 1, 0, bytesUsed, 0);
+	}
+
+	private static List<Long> bytesUsed(List<Sample> samples) {
+		return samples.stream().map(Sample::getNumberOfBytesUsed).collect(Collectors.toList());
+	}
+}
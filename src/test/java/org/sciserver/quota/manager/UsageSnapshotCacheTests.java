@@ -0,0 +1,90 @@
+package org.sciserver.quota.manager;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.time.Duration;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sciserver.quota.manager.dto.Quota;
+import org.sciserver.quota.manager.simulated.SimulatedConfig;
+import org.sciserver.quota.manager.simulated.SimulatedFileSystemModule;
+
+public class UsageSnapshotCacheTests {
+	private final AtomicInteger reports = new AtomicInteger();
+	private final CountDownLatch firstReportStarted = new CountDownLatch(1);
+	private final CountDownLatch finishFirstReport = new CountDownLatch(1);
+	private final ExecutorService callers = Executors.newFixedThreadPool(3);
+	private UsageSnapshotCache usageCache;
+
+	@Before
+	public void setUp() {
+		Config config = new Config();
+		config.getUsageCache().setRefreshInterval(Duration.ZERO);
+		FileSystemModule fileSystemModule = new SimulatedFileSystemModule(config, new SimulatedConfig(),
+				new VolumeTrash(config)) {
+			// each report says which one it was in its usage
+			@Override
+			public Collection<Quota> getUsage() {
+				int report = reports.incrementAndGet();
+				if (report == 1) {
+					firstReportStarted.countDown();
+					try {
+						finishFirstReport.await();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+				return Collections.singletonList(new Quota("persistent", "a", 0, 0, report, 100));
+			}
+		};
+		usageCache = new UsageSnapshotCache(config, fileSystemModule, event -> { });
+		usageCache.startRefreshing();
+	}
+
+	@After
+	public void tearDown() {
+		finishFirstReport.countDown();
+		usageCache.stopRefreshing();
+		callers.shutdownNow();
+	}
+
+	@Test
+	public void forcedRefreshWaitsForAReportStartedAfterIt() throws Exception {
+		CompletableFuture<UsageSnapshot> first = CompletableFuture.supplyAsync(this::snapshot, callers);
+		firstReportStarted.await(10, TimeUnit.SECONDS);
+		CompletableFuture<UsageSnapshot> second = CompletableFuture.supplyAsync(this::snapshot, callers);
+		CompletableFuture<UsageSnapshot> third = CompletableFuture.supplyAsync(this::snapshot, callers);
+		Thread.sleep(100);
+		assertFalse(second.isDone());
+		finishFirstReport.countDown();
+
+		assertEquals(1, bytesUsed(first.get(10, TimeUnit.SECONDS)));
+		// both callers that came in during the first report share the next one
+		assertEquals(2, bytesUsed(second.get(10, TimeUnit.SECONDS)));
+		assertEquals(2, bytesUsed(third.get(10, TimeUnit.SECONDS)));
+		assertEquals(2, reports.get());
+	}
+
+	private UsageSnapshot snapshot() {
+		try {
+			return usageCache.getSnapshot(true);
+		} catch (Exception e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static long bytesUsed(UsageSnapshot snapshot) {
+		return snapshot.getQuotas().iterator().next().getNumberOfBytesUsed();
+	}
+}
@@ -0,0 +1,65 @@
+package org.sciserver.quota.manager;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.Test;
+import org.sciserver.quota.manager.dto.Quota;
+import org.sciserver.quota.manager.dto.QuotaRemoved;
+
+public class UsageSnapshotTests {
+	private static final Instant START = Instant.parse("2018-10-01T00:00:00Z");
+
+	@Test
+	public void givesChangesSinceEarlierVersions() {
+		UsageSnapshot first = new UsageSnapshot(Arrays.asList(quota("a", 10), quota("b", 20), quota("c", 30)), START);
+		UsageSnapshot unchanged = first.next(Arrays.asList(quota("c", 30), quota("a", 10), quota("b", 20)),
+				START.plusSeconds(30), 10);
+		assertEquals(first.getVersion(), unchanged.getVersion());
+
+		UsageSnapshot second = unchanged.next(Arrays.asList(quota("a", 10), quota("b", 25), quota("d", 40)),
+				START.plusSeconds(60), 10);
+		UsageSnapshot third = second.next(Arrays.asList(quota("a", 15), quota("b", 25), quota("c", 5)),
+				START.plusSeconds(90), 10);
+		assertTrue(third.getVersion() > second.getVersion());
+
+		assertEquals(Arrays.asList("b", "d"), paths(second.changedSince(first.getVersion())));
+		assertEquals(Arrays.asList("c"), removedPaths(second.removedSince(first.getVersion())));
+		assertEquals(Arrays.asList("a", "c"), paths(third.changedSince(second.getVersion())));
+		assertEquals(Arrays.asList("d"), removedPaths(third.removedSince(second.getVersion())));
+		// c came back, so its removal is replaced by a change
+		assertEquals(Arrays.asList("a", "b", "c"), paths(third.changedSince(first.getVersion())));
+		assertEquals(Arrays.asList("d"), removedPaths(third.removedSince(first.getVersion())));
+		assertTrue(third.changedSince(third.getVersion()).isEmpty());
+	}
+
+	@Test
+	public void forgetsOldRemovals() {
+		UsageSnapshot first = new UsageSnapshot(Arrays.asList(quota("a", 10), quota("b", 20), quota("c", 30)), START);
+		UsageSnapshot second = first.next(Arrays.asList(quota("b", 20), quota("c", 30)), START.plusSeconds(30), 1);
+		UsageSnapshot third = second.next(Arrays.asList(quota("c", 30)), START.plusSeconds(60), 1);
+
+		assertFalse(third.hasChangesSince(first.getVersion()));
+		assertTrue(third.hasChangesSince(second.getVersion()));
+		assertEquals(Arrays.asList("b"), removedPaths(third.removedSince(second.getVersion())));
+		assertFalse(third.hasChangesSince(third.getVersion() + 1));
+	}
+
+	private static List<String> paths(List<Quota> quotas) {
+		return quotas.stream().map(Quota::getRelativePath).collect(Collectors.toList());
+	}
+
+	private static List<String> removedPaths(List<QuotaRemoved> quotas) {
+		return quotas.stream().map(QuotaRemoved::getRelativePath).collect(Collectors.toList());
+	}
+
+	private static Quota quota(String relativePath, long bytesUsed) {
+		return new Quota("persistent", relativePath, 0, 0, bytesUsed, 100);
+	}
+}
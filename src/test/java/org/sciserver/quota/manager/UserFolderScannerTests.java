@@ -0,0 +1,71 @@
+package org.sciserver.quota.manager;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class UserFolderScannerTests {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private Path rootVolume;
+	private Config config;
+
+	@Before
+	public void setUp() throws Exception {
+		rootVolume = Files.createDirectories(folder.getRoot().toPath().resolve("persistent"));
+		config = new Config();
+		config.setFolderCacheFile(folder.getRoot().toPath().resolve("folders.cache").toString());
+	}
+
+	@Test
+	public void listsUsersAndVolumesButNotTrash() throws Exception {
+		Files.createDirectories(rootVolume.resolve("user1/volume1"));
+		Files.createDirectories(rootVolume.resolve("user2"));
+		Files.createDirectories(rootVolume.resolve(VolumeTrash.TRASH_DIRECTORY + "/old"));
+
+		assertEquals(Arrays.asList("user1", "user1/volume1", "user2"),
+				relativePaths(new UserFolderScanner(config).list(rootVolume)));
+	}
+
+	@Test
+	public void reusesSavedListingsOfUnchangedFolders() throws Exception {
+		Path user = Files.createDirectories(rootVolume.resolve("user"));
+		Files.createDirectories(user.resolve("volume1"));
+		FileTime modifiedTime = FileTime.fromMillis(System.currentTimeMillis() - 60_000);
+		Files.setLastModifiedTime(rootVolume, modifiedTime);
+		Files.setLastModifiedTime(user, modifiedTime);
+		UserFolderScanner scanner = new UserFolderScanner(config);
+		scanner.list(rootVolume);
+		scanner.saveCache();
+
+		// a change that leaves the modification time alone goes unnoticed...
+		Files.createDirectories(user.resolve("volume2"));
+		Files.setLastModifiedTime(user, modifiedTime);
+		UserFolderScanner restarted = new UserFolderScanner(config);
+		restarted.loadCache();
+		assertEquals(Arrays.asList("user", "user/volume1"), relativePaths(restarted.list(rootVolume)));
+
+		// ...but any other change is picked up
+		Files.setLastModifiedTime(user, FileTime.fromMillis(System.currentTimeMillis() - 30_000));
+		assertEquals(Arrays.asList("user", "user/volume1", "user/volume2"),
+				relativePaths(restarted.list(rootVolume)));
+	}
+
+	private List<String> relativePaths(List<Path> folders) {
+		return folders.stream()
+			.map(folder -> rootVolume.relativize(folder).toString())
+			.sorted()
+			.collect(Collectors.toList());
+	}
+}
@@ -0,0 +1,78 @@
+package org.sciserver.quota.manager;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class VolumeTrashTests {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private Path rootVolume;
+	private VolumeTrash trash;
+
+	@Before
+	public void setUp() {
+		rootVolume = folder.getRoot().toPath().resolve("persistent");
+		Config config = new Config();
+		Config.RootVolume rv = new Config.RootVolume();
+		rv.setPathOnFileServer(rootVolume.toString());
+		config.getRootVolumes().put("persistent", rv);
+		trash = new VolumeTrash(config);
+	}
+
+	@After
+	public void tearDown() {
+		trash.stop();
+	}
+
+	@Test
+	public void movesVolumeAwayAndDeletesItInTheBackground() throws Exception {
+		Path volume = createTree(rootVolume.resolve("user/volume"));
+
+		trash.moveToTrash(volume).get(10, TimeUnit.SECONDS);
+
+		assertFalse(Files.exists(volume));
+		assertEquals(0, count(rootVolume.resolve(VolumeTrash.TRASH_DIRECTORY)));
+	}
+
+	@Test
+	public void emptiesTrashLeftFromLastRun() throws Exception {
+		Path trashDirectory = rootVolume.resolve(VolumeTrash.TRASH_DIRECTORY);
+		createTree(trashDirectory.resolve("volume-1234"));
+
+		trash.emptyLeftoverTrash();
+
+		long deadline = System.currentTimeMillis() + 10000;
+		while (count(trashDirectory) > 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(0, count(trashDirectory));
+	}
+
+	private static Path createTree(Path volume) throws Exception {
+		for (int i = 0; i < 5; i++) {
+			Path directory = Files.createDirectories(volume.resolve("dir" + i).resolve("nested"));
+			for (int j = 0; j < 20; j++) {
+				Files.write(directory.resolve("file" + j), new byte[] { 1 });
+			}
+		}
+		return volume;
+	}
+
+	private static long count(Path directory) throws Exception {
+		try (Stream<Path> entries = Files.list(directory)) {
+			return entries.count();
+		}
+	}
+}
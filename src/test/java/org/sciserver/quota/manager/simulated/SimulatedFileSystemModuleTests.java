@@ -0,0 +1,62 @@
+package org.sciserver.quota.manager.simulated;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.sciserver.quota.manager.ApplyQuotasEndpoint;
+import org.sciserver.quota.manager.ApplyQuotasJob;
+import org.sciserver.quota.manager.Config;
+import org.sciserver.quota.manager.FileSystemModule;
+import org.sciserver.quota.manager.dto.ApplyQuotasSummary;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.junit4.SpringRunner;
+
+@RunWith(SpringRunner.class)
+@SpringBootTest(properties = {
+		"org.sciserver.quota.manager.root-volumes.persistent.path-on-file-server="
+				+ "${user.dir}/target/simulated-tests/persistent",
+		"org.sciserver.quota.manager.root-volumes.persistent.per-user-quota=1000",
+		"org.sciserver.quota.manager.usage-cache.refresh-interval=0s",
+		"org.sciserver.quota.manager.simulated.seed-users=100"
+})
+@ActiveProfiles("simulated")
+public class SimulatedFileSystemModuleTests {
+	private static final Set<ApplyQuotasJob.State> FINISHED = EnumSet.of(
+			ApplyQuotasJob.State.SUCCEEDED, ApplyQuotasJob.State.FAILED, ApplyQuotasJob.State.CANCELLED);
+
+	@Autowired
+	private Config config;
+	@Autowired
+	private FileSystemModule fileSystemModule;
+	@Autowired
+	private ApplyQuotasEndpoint applyQuotas;
+
+	@Test
+	public void appliesQuotasToSeededUsers() throws Exception {
+		String firstUser = Paths.get(config.getRootVolumes().get("persistent").getPathOnFileServer(), "user000000")
+				.toString();
+		fileSystemModule.setQuota(firstUser, 500).get(10, TimeUnit.SECONDS);
+
+		ApplyQuotasJob job = applyQuotas.applyQuotas();
+		Instant deadline = Instant.now().plus(Duration.ofSeconds(30));
+		while (!FINISHED.contains(job.getState()) && Instant.now().isBefore(deadline)) {
+			Thread.sleep(50);
+		}
+		assertEquals(ApplyQuotasJob.State.SUCCEEDED, job.getState());
+		ApplyQuotasSummary summary = job.getSummary();
+
+		assertEquals(100, summary.getFoldersChecked());
+		assertEquals(99, summary.getQuotasAlreadyCorrect());
+		assertEquals(firstUser, summary.getChanges().get(0).getPath());
+	}
+}
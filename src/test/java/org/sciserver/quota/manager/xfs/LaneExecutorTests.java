@@ -0,0 +1,105 @@
+package org.sciserver.quota.manager.xfs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sciserver.quota.manager.Priority;
+import org.sciserver.quota.manager.QueueFullException;
+
+public class LaneExecutorTests {
+	private final List<String> ran = new CopyOnWriteArrayList<>();
+	private final CountDownLatch release = new CountDownLatch(1);
+	private final CountDownLatch done = new CountDownLatch(1);
+	private SimpleMeterRegistry meterRegistry;
+	private LaneExecutor executor;
+
+	@Before
+	public void setUp() throws Exception {
+		Map<Priority, Integer> capacities = new EnumMap<>(Priority.class);
+		capacities.put(Priority.INTERACTIVE, 10);
+		capacities.put(Priority.BULK, 3);
+		meterRegistry = new SimpleMeterRegistry();
+		executor = new LaneExecutor("lane-executor-test", capacities, meterRegistry);
+		// keeps the worker busy until the test has queued its tasks
+		CountDownLatch started = new CountDownLatch(1);
+		executor.execute(Priority.BULK, () -> {
+			started.countDown();
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		});
+		assertTrue(started.await(10, TimeUnit.SECONDS));
+	}
+
+	@After
+	public void tearDown() {
+		release.countDown();
+		executor.shutdown();
+	}
+
+	@Test
+	public void runsInteractiveTasksFirst() throws Exception {
+		executor.execute(Priority.BULK, () -> ran.add("bulk 1"));
+		executor.execute(Priority.BULK, () -> ran.add("bulk 2"));
+		executor.execute(Priority.INTERACTIVE, () -> ran.add("interactive"));
+		executor.execute(Priority.BULK, done::countDown);
+		release.countDown();
+
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		assertEquals(Arrays.asList("interactive", "bulk 1", "bulk 2"), ran);
+		assertEquals(1, meterRegistry.get("quota.manager.xfs.edit.wait").tag("lane", "interactive")
+				.timer().count());
+	}
+
+	@Test(expected = QueueFullException.class)
+	public void rejectsTasksWhenALaneIsFull() {
+		executor.execute(Priority.BULK, () -> ran.add("bulk 1"));
+		executor.execute(Priority.BULK, () -> ran.add("bulk 2"));
+		executor.execute(Priority.BULK, () -> ran.add("bulk 3"));
+		try {
+			executor.execute(Priority.INTERACTIVE, () -> ran.add("interactive"));
+			executor.execute(Priority.BULK, () -> ran.add("bulk 4"));
+		} finally {
+			assertEquals(3, executor.getQueued(Priority.BULK));
+			assertEquals(1, meterRegistry.get("quota.manager.xfs.edit.rejected").tag("lane", "bulk")
+					.counter().count(), 0);
+		}
+	}
+
+	@Test
+	public void dropsQueuedTasksOnShutdown() throws Exception {
+		CompletableFuture<Void> result = new CompletableFuture<>();
+		executor.execute(Priority.BULK, () -> result.complete(null), result::completeExceptionally);
+		Thread shutdown = new Thread(executor::shutdown);
+		shutdown.start();
+		// the bulk task is dropped right away, while the running one is still blocked
+		try {
+			result.get(10, TimeUnit.SECONDS);
+			fail("Expected the task to be dropped");
+		} catch (CancellationException e) {
+			// dropped
+		}
+		release.countDown();
+		shutdown.join(TimeUnit.SECONDS.toMillis(10));
+		assertFalse(shutdown.isAlive());
+	}
+}
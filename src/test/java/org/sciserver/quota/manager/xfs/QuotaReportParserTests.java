@@ -0,0 +1,67 @@
+package org.sciserver.quota.manager.xfs;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class QuotaReportParserTests {
+	private static final String BLOCKS_REPORT =
+			"/data/persistent/alice          4      0   4096     00 [--------]\n"
+			+ "\n"
+			+ "/data/persistent/bob   1048576 0 1048576  01 [6 days]\n"
+			+ "#12  0  0  0  00 [--------]\r\n"
+			+ "/data/scratch/carol 17 0 0 00 [--------]";
+
+	private static final String COMBINED_REPORT =
+			"/data/persistent/alice 4 0 4096 00 [--------] 12 0 0 00 [--------]\n"
+			+ "/data/persistent/bob 1048576 0 1048576 01 [6 days] 3 0 10 00 [7 days]\n";
+
+	@Test
+	public void matchesSplittingOnWhitespace() throws IOException {
+		List<String> parsed = parse(1, BLOCKS_REPORT);
+
+		// what the report parser used to do with each line
+		List<String> expected = new ArrayList<>();
+		for (String line : BLOCKS_REPORT.split("\r?\n")) {
+			if (line.isEmpty()) continue;
+			String[] lineComponents = line.split("\\s+");
+			expected.add(lineComponents[0] + " " + Long.parseLong(lineComponents[1])
+					+ " " + Long.parseLong(lineComponents[3]));
+		}
+		assertEquals(expected, parsed);
+	}
+
+	@Test
+	public void readsBlocksAndInodesFromOneLine() throws IOException {
+		List<String> parsed = parse(2, COMBINED_REPORT);
+
+		List<String> expected = new ArrayList<>();
+		expected.add("/data/persistent/alice 4 4096 12 0");
+		expected.add("/data/persistent/bob 1048576 1048576 3 10");
+		assertEquals(expected, parsed);
+	}
+
+	private List<String> parse(int sections, String report) throws IOException {
+		List<String> parsed = new ArrayList<>();
+		try (QuotaReportParser parser = new QuotaReportParser(sections, line -> {
+				StringBuilder description = new StringBuilder(line.getFullPath());
+				for (int section = 0; section < line.getSections(); section++) {
+					description.append(' ').append(line.getUsed(section))
+						.append(' ').append(line.getHardLimit(section));
+				}
+				parsed.add(description.toString());
+			})) {
+			// write in uneven chunks, like a stream pumper would
+			byte[] bytes = report.getBytes(StandardCharsets.UTF_8);
+			for (int offset = 0; offset < bytes.length; offset += 7) {
+				parser.write(bytes, offset, Math.min(7, bytes.length - offset));
+			}
+		}
+		return parsed;
+	}
+}
@@ -0,0 +1,215 @@
+package org.sciserver.quota.manager.xfs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sciserver.quota.manager.Config;
+import org.sciserver.quota.manager.Priority;
+import org.sciserver.quota.manager.QueueFullException;
+import org.sciserver.quota.manager.VolumeTrash;
+import org.sciserver.quota.manager.dto.Quota;
+
+public class XFSFileSystemModuleTests {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private final List<Runnable> queuedTasks = new ArrayList<>();
+	private final List<Priority> queuedPriorities = new ArrayList<>();
+	private final List<String> commands = new ArrayList<>();
+	private Priority fullLane;
+	private SimpleMeterRegistry meterRegistry;
+	private Path projectsFile;
+	private XFSProjectRegistry registry;
+	private XFSFileSystemModule module;
+
+	@Before
+	public void setUp() throws Exception {
+		Path root = folder.getRoot().toPath();
+		projectsFile = root.resolve("projects");
+		registry = new XFSProjectRegistry(projectsFile, root.resolve("projid"));
+		registry.load();
+		XFSConfig xfsConfig = new XFSConfig();
+		xfsConfig.setBulkBatchSize(2);
+		XFSQuotaCommandChannel channel = new XFSQuotaCommandChannel(xfsConfig, new SimpleMeterRegistry()) {
+			@Override
+			Map<String, String> executeAll(Map<String, List<String>> commandsByPath) {
+				commandsByPath.values().forEach(commands::addAll);
+				return Collections.emptyMap();
+			}
+
+			@Override
+			List<String> execute(String filePath, String command) {
+				commands.add(command);
+				return Collections.singletonList(filePath + " 8 0 16 00 [--------] 3 0 10 00 [--------]");
+			}
+		};
+		meterRegistry = new SimpleMeterRegistry();
+		Config config = new Config();
+		Config.RootVolume rootVolume = new Config.RootVolume();
+		rootVolume.setPathOnFileServer("/data");
+		config.getRootVolumes().put("persistent", rootVolume);
+		module = new XFSFileSystemModule(config, xfsConfig, registry, channel,
+				(priority, task, onDropped) -> {
+					if (priority == fullLane) {
+						throw new QueueFullException("The " + priority + " lane is full");
+					}
+					queuedPriorities.add(priority);
+					queuedTasks.add(task);
+				}, null, new VolumeTrash(new Config()), meterRegistry);
+	}
+
+	@Test
+	public void coalescesPendingChangesToTheSamePath() {
+		CompletableFuture<Void> first = module.setQuota("/data/a", 1);
+		CompletableFuture<Void> second = module.setQuota("/data/a", 2);
+		assertEquals(1, queuedTasks.size());
+		assertFalse(first.isDone());
+		runQueuedTasks();
+		assertTrue(first.isDone() && !first.isCompletedExceptionally());
+		assertTrue(second.isDone() && !second.isCompletedExceptionally());
+		assertEquals(Arrays.asList("project -s -p /data/a 1", "limit -p bhard=2 1"), commands);
+		assertEquals(1, count("coalesced"), 0);
+	}
+
+	@Test
+	public void skipsLimitsThatAreAlreadyApplied() {
+		module.setQuota("/data/a", 1);
+		runQueuedTasks();
+		commands.clear();
+
+		module.setQuota("/data/a", 1);
+		runQueuedTasks();
+		assertEquals(Collections.emptyList(), commands);
+		assertEquals(1, count("skipped"), 0);
+
+		module.setQuotas(Collections.singletonMap("/data/a", 1L));
+		runQueuedTasks();
+		assertEquals(Arrays.asList("limit -p bhard=1 1"), commands);
+	}
+
+	@Test
+	public void removalCancelsPendingChange() {
+		CompletableFuture<Void> cancelled = module.setQuota("/data/a", 1);
+		module.removeUserVolumeWithQuota("/data/a");
+		module.setQuota("/data/a", 2);
+		assertTrue(cancelled.isCompletedExceptionally());
+		runQueuedTasks();
+		// the first change is dropped, the removal finds no project, and the last change creates one
+		assertEquals(Arrays.asList("project -s -p /data/a 1", "limit -p bhard=2 1"), commands);
+	}
+
+	@Test
+	public void releasesIdsOfRemovedProjectsWhenTheLanesAreFull() throws Exception {
+		module.setQuota("/data/a", 1);
+		runQueuedTasks();
+		module.removeUserVolumeWithQuota("/data/a");
+		fullLane = Priority.INTERACTIVE;
+		runQueuedTasks();
+		fullLane = null;
+
+		registry.compact();
+		commands.clear();
+		module.setQuota("/data/b", 2);
+		runQueuedTasks();
+		assertEquals(Arrays.asList("project -s -p /data/b 1", "limit -p bhard=2 1"), commands);
+	}
+
+	@Test
+	public void appliesBatchesInOneTask() throws Exception {
+		Map<String, Long> quotas = new LinkedHashMap<>();
+		quotas.put("/data/a", 1L);
+		quotas.put("/data/b", 2L);
+		module.setQuotas(quotas);
+		assertEquals(1, queuedTasks.size());
+		runQueuedTasks();
+		assertEquals(Arrays.asList(
+				"project -s -p /data/a 1", "limit -p bhard=1 1",
+				"project -s -p /data/b 2", "limit -p bhard=2 2"), commands);
+		assertEquals("1:/data/a\n2:/data/b\n", new String(Files.readAllBytes(projectsFile)));
+	}
+
+	@Test
+	public void splitsBulkBatchesAndQueuesUrgentChangesAgain() {
+		Map<String, Long> quotas = new LinkedHashMap<>();
+		quotas.put("/data/a", 1L);
+		quotas.put("/data/b", 2L);
+		quotas.put("/data/c", 3L);
+		module.setQuotas(quotas, Priority.BULK);
+		module.setQuota("/data/c", 4);
+		assertEquals(Arrays.asList(Priority.BULK, Priority.BULK, Priority.INTERACTIVE), queuedPriorities);
+
+		// run the interactive change first, as the lane executor would
+		queuedTasks.remove(2).run();
+		assertEquals(Arrays.asList("project -s -p /data/c 1", "limit -p bhard=4 1"), commands);
+		runQueuedTasks();
+		assertEquals(6, commands.size());
+	}
+
+	@Test
+	public void keepsBulkChangesWhenTheInteractiveLaneIsFull() {
+		CompletableFuture<Void> bulk = module.setQuotas(Collections.singletonMap("/data/a", 1L), Priority.BULK);
+		fullLane = Priority.INTERACTIVE;
+		Map<String, Long> quotas = new LinkedHashMap<>();
+		quotas.put("/data/a", 2L);
+		quotas.put("/data/b", 3L);
+		try {
+			module.setQuotas(quotas);
+			fail("Expected the interactive lane to be full");
+		} catch (QueueFullException e) {
+			// expected
+		}
+		fullLane = null;
+
+		runQueuedTasks();
+		assertTrue(bulk.isDone() && !bulk.isCompletedExceptionally());
+		// the rejected change neither replaced the bulk one nor stayed pending
+		assertEquals(Arrays.asList("project -s -p /data/a 1", "limit -p bhard=1 1"), commands);
+		CompletableFuture<Void> retried = module.setQuota("/data/b", 3);
+		assertEquals(1, queuedTasks.size());
+		runQueuedTasks();
+		assertTrue(retried.isDone() && !retried.isCompletedExceptionally());
+	}
+
+	@Test
+	public void reportsOnASingleProjectById() throws Exception {
+		assertFalse(module.getUsage("/data/a").isPresent());
+		module.setQuota("/data/a", 16 * 1024);
+		runQueuedTasks();
+		commands.clear();
+
+		Quota quota = module.getUsage("/data/a").get();
+		assertEquals(Collections.singletonList("report -Npbi -L 1 -U 1"), commands);
+		assertEquals("a", quota.getRelativePath());
+		assertEquals(8 * 1024, quota.getNumberOfBytesUsed());
+		assertEquals(16 * 1024, quota.getNumberOfBytesQuota());
+		assertEquals(3, quota.getNumberOfFilesUsed());
+	}
+
+	private void runQueuedTasks() {
+		while (!queuedTasks.isEmpty()) {
+			queuedTasks.remove(0).run();
+		}
+	}
+
+	private double count(String result) {
+		return meterRegistry.get("quota.manager.xfs.limits").tag("result", result).counter().count();
+	}
+}
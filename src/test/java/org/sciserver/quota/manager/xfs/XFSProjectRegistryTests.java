@@ -0,0 +1,130 @@
+package org.sciserver.quota.manager.xfs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.Optional;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class XFSProjectRegistryTests {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private Path projectsFile;
+	private Path projidFile;
+	private XFSProjectRegistry registry;
+
+	@Before
+	public void setUp() throws Exception {
+		projectsFile = folder.getRoot().toPath().resolve("projects");
+		projidFile = folder.getRoot().toPath().resolve("projid");
+		Files.write(projectsFile, "1:/data/a\n2:/data/b\n4:/data/d\n".getBytes());
+		Files.write(projidFile, "/data/a:1\n/data/b:2\n/data/d:4\n".getBytes());
+		registry = new XFSProjectRegistry(projectsFile, projidFile);
+		registry.load();
+	}
+
+	@Test
+	public void fillsGapsBeforeAppending() throws Exception {
+		assertEquals(3, registry.addProject("/data/c"));
+		assertEquals(5, registry.addProject("/data/e"));
+		assertEquals(Optional.of("/data/c"), registry.getPath(3));
+		assertEquals(
+				"1:/data/a\n2:/data/b\n4:/data/d\n3:/data/c\n5:/data/e\n",
+				new String(Files.readAllBytes(projectsFile)));
+	}
+
+	@Test
+	public void reusesIdsOfRemovedProjectsAfterCompaction() throws Exception {
+		assertEquals(Optional.of(2L), registry.removeProject("/data/b"));
+		assertFalse(registry.getProjectId("/data/b").isPresent());
+		assertEquals(3, registry.addProject("/data/c"));
+
+		registry.compact();
+		assertEquals(2, registry.addProject("/data/f"));
+		assertEquals("1:/data/a\n4:/data/d\n3:/data/c\n2:/data/f\n",
+				new String(Files.readAllBytes(projectsFile)));
+		assertEquals("/data/a:1\n/data/d:4\n/data/c:3\n/data/f:2\n",
+				new String(Files.readAllBytes(projidFile)));
+	}
+
+	@Test
+	public void replaysJournaledRemovals() throws Exception {
+		Files.write(projectsFile, "5:/data/a/b\n".getBytes(), StandardOpenOption.APPEND);
+		registry.removeProject("/data/a");
+		assertEquals("1:/data/a\n2:/data/b\n4:/data/d\n5:/data/a/b\n",
+				new String(Files.readAllBytes(projectsFile)));
+
+		XFSProjectRegistry restarted = new XFSProjectRegistry(projectsFile, projidFile);
+		restarted.load();
+		assertFalse(restarted.getProjectId("/data/a").isPresent());
+		assertEquals(Optional.of(5L), restarted.getProjectId("/data/a/b"));
+		restarted.compact();
+		assertEquals("2:/data/b\n4:/data/d\n5:/data/a/b\n",
+				new String(Files.readAllBytes(projectsFile)));
+	}
+
+	@Test
+	public void keepsHeldIdsAcrossRestarts() throws Exception {
+		registry.removeProjects(Collections.singletonList("/data/b"), true);
+		registry.compact();
+
+		XFSProjectRegistry restarted = new XFSProjectRegistry(projectsFile, projidFile);
+		restarted.load();
+		assertEquals(Collections.singleton(2L), restarted.getHeldIds());
+		assertEquals(3, restarted.addProject("/data/c"));
+
+		restarted.releaseIds(Collections.singleton(2L));
+		restarted = new XFSProjectRegistry(projectsFile, projidFile);
+		restarted.load();
+		assertEquals(Collections.emptySet(), restarted.getHeldIds());
+		assertEquals(2, restarted.addProject("/data/f"));
+	}
+
+	@Test
+	public void finishesInterruptedCompaction() throws Exception {
+		registry.removeProject("/data/b");
+		// as if compact() stopped after writing its copies
+		Files.write(folder.getRoot().toPath().resolve("projects.compacted"), "1:/data/a\n4:/data/d\n".getBytes());
+		Files.write(folder.getRoot().toPath().resolve("projid.compacted"), "/data/a:1\n/data/d:4\n".getBytes());
+
+		XFSProjectRegistry restarted = new XFSProjectRegistry(projectsFile, projidFile);
+		restarted.load();
+		assertEquals("1:/data/a\n4:/data/d\n", new String(Files.readAllBytes(projectsFile)));
+		assertEquals("/data/a:1\n/data/d:4\n", new String(Files.readAllBytes(projidFile)));
+		assertFalse(Files.exists(folder.getRoot().toPath().resolve("projects.compacted")));
+		assertFalse(restarted.getProjectId("/data/b").isPresent());
+		restarted.compact();
+		assertEquals(2, restarted.addProject("/data/f"));
+	}
+
+	@Test
+	public void keepsProjectsWithIdsBeyondTheAllocator() throws Exception {
+		Files.write(projectsFile, "3000000000:/data/big\n9999999999:/data/invalid\n".getBytes(),
+				StandardOpenOption.APPEND);
+		assertEquals(Optional.of(3000000000L), registry.getProjectId("/data/big"));
+		assertEquals(Optional.of("/data/big"), registry.getPath(3000000000L));
+		assertFalse(registry.getPath(3000000000L - (1L << 32)).isPresent());
+		assertFalse(registry.getProjectId("/data/invalid").isPresent());
+		assertEquals(3, registry.addProject("/data/c"));
+
+		assertEquals(Optional.of(3000000000L), registry.removeProject("/data/big"));
+		registry.compact();
+		assertEquals(5, registry.addProject("/data/e"));
+	}
+
+	@Test
+	public void picksUpOutsideEdits() throws Exception {
+		Files.write(projectsFile, "3:/data/c\n".getBytes(), StandardOpenOption.APPEND);
+		assertEquals(Optional.of(3L), registry.getProjectId("/data/c"));
+		assertEquals(5, registry.addProject("/data/e"));
+	}
+}
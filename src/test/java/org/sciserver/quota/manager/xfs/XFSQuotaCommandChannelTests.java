@@ -0,0 +1,57 @@
+package org.sciserver.quota.manager.xfs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class XFSQuotaCommandChannelTests {
+	private final AtomicInteger started = new AtomicInteger();
+	private XFSQuotaCommandChannel channel;
+
+	@Before
+	public void setUp() {
+		XFSConfig xfsConfig = new XFSConfig();
+		xfsConfig.setCommandTimeout(Duration.ofMillis(200));
+		channel = new XFSQuotaCommandChannel(xfsConfig, new SimpleMeterRegistry()) {
+			// reads the commands but never answers them, like a hung xfs_quota
+			@Override
+			List<String> commandLine(String mountPoint) {
+				started.incrementAndGet();
+				return Arrays.asList("sh", "-c", "cat > /dev/null");
+			}
+		};
+	}
+
+	@After
+	public void tearDown() {
+		channel.close();
+	}
+
+	@Test
+	public void failsAHungSessionWithoutRetrying() {
+		long start = System.nanoTime();
+		try {
+			channel.executeAll(Collections.singletonMap("/data/a",
+					Collections.singletonList("limit -p bhard=1 1")));
+			fail("Expected the batch to time out");
+		} catch (IOException e) {
+			assertTrue(e.getMessage().contains("did not answer"));
+		}
+		// stopped after a single timeout, not tried again in a new process
+		assertEquals(1, started.get());
+		assertTrue(Duration.ofNanos(System.nanoTime() - start).compareTo(Duration.ofSeconds(5)) < 0);
+	}
+}